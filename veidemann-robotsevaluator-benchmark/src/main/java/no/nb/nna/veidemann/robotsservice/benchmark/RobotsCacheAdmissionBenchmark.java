@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice.benchmark;
+
+import no.nb.nna.veidemann.robotsservice.CanonicalizationPolicy;
+import no.nb.nna.veidemann.robotsservice.RobotsCache;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Replays a trace of lookups against {@link RobotsCache} with and without admission, and prints the hit rate of
+ * each.
+ * <p>
+ * The trace is a file with one URL per line, given as the first argument. Without a file a synthetic trace is used,
+ * where lookups for a skewed set of hosts are interrupted by scans of hosts which are each seen only once. Every
+ * robots.txt fetch counts as a miss.
+ */
+public class RobotsCacheAdmissionBenchmark {
+
+    static final int CAPACITY = 1000;
+
+    static final int HOT_HOST_COUNT = 2000;
+
+    static final int LOOKUPS = 200_000;
+
+    static final int SCAN_EVERY = 20_000;
+
+    static final int SCAN_LENGTH = 5000;
+
+    public static void main(String[] args) throws IOException {
+        List<URL> trace = args.length > 0 ? readTrace(args[0]) : syntheticTrace();
+        System.out.printf("%d lookups of %d hosts, capacity %d%n", trace.size(),
+                trace.stream().map(URL::getHost).distinct().count(), CAPACITY);
+        for (boolean admission : new boolean[]{false, true}) {
+            System.out.printf("admission %s: hit rate %.2f%%%n", admission ? "on" : "off",
+                    100 * hitRate(trace, admission));
+        }
+    }
+
+    static double hitRate(List<URL> trace, boolean admission) throws IOException {
+        AtomicInteger fetches = new AtomicInteger();
+        MockWebServer proxy = new MockWebServer();
+        proxy.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                fetches.incrementAndGet();
+                return new MockResponse().setResponseCode(200)
+                        .setBody("user-agent: *\ndisallow: /private/\nallow: /private/public\n");
+            }
+        });
+        proxy.start();
+        HttpUrl proxyUrl = proxy.url("");
+
+        try (RobotsCache robotsCache = new RobotsCache(proxyUrl.host(), proxyUrl.port(), CAPACITY, 1,
+                CanonicalizationPolicy.STRICT)) {
+            robotsCache.setAdmission(admission);
+            for (URL url : trace) {
+                robotsCache.get(url, 3600, "eid", "jid", "cid");
+            }
+        } finally {
+            proxy.shutdown();
+        }
+        return 1.0 - (double) fetches.get() / trace.size();
+    }
+
+    static List<URL> readTrace(String file) throws IOException {
+        return Files.lines(Paths.get(file))
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .map(line -> {
+                    try {
+                        return new URL(line);
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Not a URL: " + line, e);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Lookups of hot hosts with Zipf-like popularity, and every {@link #SCAN_EVERY} lookups a scan of new hosts.
+     */
+    static List<URL> syntheticTrace() {
+        Random random = new Random(42);
+        List<URL> trace = new ArrayList<>(LOOKUPS + (LOOKUPS / SCAN_EVERY) * SCAN_LENGTH);
+        int scanned = 0;
+        for (int i = 1; i <= LOOKUPS; i++) {
+            // Inverse of a power law distribution over the hot hosts
+            int host = (int) (HOT_HOST_COUNT * Math.pow(random.nextDouble(), 3));
+            trace.add(RobotsCacheShardingBenchmark.url(host));
+            if (i % SCAN_EVERY == 0) {
+                for (int j = 0; j < SCAN_LENGTH; j++) {
+                    trace.add(RobotsCacheShardingBenchmark.url(HOT_HOST_COUNT + scanned++));
+                }
+            }
+        }
+        return trace;
+    }
+}
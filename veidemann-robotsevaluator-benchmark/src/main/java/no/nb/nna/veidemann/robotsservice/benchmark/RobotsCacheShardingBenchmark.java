@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice.benchmark;
+
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsservice.CanonicalizationPolicy;
+import no.nb.nna.veidemann.robotsservice.RobotsCache;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookup throughput of a warm {@link RobotsCache} with and without sharding.
+ * <p>
+ * Lookups are skewed so that a handful of hosts get most of the traffic, which is what the evaluator sees in
+ * production. Run {@link #main(String[])} to get results for 1 to 64 threads, or use the regular JMH command line
+ * with {@code -t} to pick a single thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RobotsCacheShardingBenchmark {
+
+    static final int HOST_COUNT = 10_000;
+
+    static final int HOT_HOST_COUNT = 16;
+
+    @Param({"1", "16", "64"})
+    public int shards;
+
+    MockWebServer proxy;
+
+    RobotsCache robotsCache;
+
+    URL[] urls;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        proxy = new MockWebServer();
+        proxy.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(200)
+                        .setBody("user-agent: *\ndisallow: /private/\nallow: /private/public\n");
+            }
+        });
+        proxy.start();
+        HttpUrl proxyUrl = proxy.url("");
+
+        robotsCache = new RobotsCache(proxyUrl.host(), proxyUrl.port(), HOST_COUNT * 2, shards,
+                CanonicalizationPolicy.STRICT);
+
+        urls = new URL[HOST_COUNT];
+        for (int i = 0; i < HOST_COUNT; i++) {
+            urls[i] = url(i);
+            robotsCache.get(urls[i], 3600, "eid", "jid", "cid");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        robotsCache.close();
+        proxy.shutdown();
+    }
+
+    @Benchmark
+    public RobotsTxt get() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Half of the lookups go to a few hot hosts, the rest are spread over the whole host set
+        int host = random.nextBoolean() ? random.nextInt(HOT_HOST_COUNT) : random.nextInt(HOST_COUNT);
+        return robotsCache.get(urls[host], 3600, "eid", "jid", "cid");
+    }
+
+    static URL url(int host) {
+        try {
+            return new URL("http://www.host" + host + ".com/page");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(RobotsCacheShardingBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
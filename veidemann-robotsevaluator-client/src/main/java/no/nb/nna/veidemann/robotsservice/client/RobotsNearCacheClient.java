@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.Status.Code;
+import io.grpc.StatusRuntimeException;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ConfigRef;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.api.frontier.v1.QueuedUri;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+import no.nb.nna.veidemann.commons.client.GrpcUtil;
+import no.nb.nna.veidemann.robots.v1.GetRulesReply;
+import no.nb.nna.veidemann.robots.v1.GetRulesRequest;
+import no.nb.nna.veidemann.robots.v1.RobotsDirective;
+import no.nb.nna.veidemann.robots.v1.RobotsRulesGrpc;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Robots evaluator client which evaluates urls locally.
+ * <p>
+ * The first lookup for a host, job execution and User Agent fetches the host's rules for the User Agent from the
+ * evaluator's RobotsRules service. The rules are kept until the evaluator's cached robots.txt expires, and later
+ * lookups are matched in-process with the evaluator's own matching code. If the rules can't be fetched, for example
+ * from an evaluator without the RobotsRules service, the lookup falls back to IsAllowed.
+ * <p>
+ * Only the obey policies are evaluated locally. Ignore needs no rules, and custom robots.txt are always evaluated by
+ * the evaluator.
+ * <p>
+ * Kept rules are not told about changes in the evaluator. When robots.txt is dropped from the evaluator by the admin
+ * api's Invalidate or EndJobExecution, this client goes on using the rules it already has until they expire. Use
+ * {@link #setMaxRulesAgeMs(long)} to bound how long that can be.
+ */
+public class RobotsNearCacheClient implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RobotsNearCacheClient.class);
+
+    public static final long DEFAULT_MAX_HOSTS = 10_000;
+
+    private final ManagedChannel channel;
+
+    private final RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub evaluatorStub;
+
+    private final RobotsRulesGrpc.RobotsRulesBlockingStub rulesStub;
+
+    private final Cache<RulesKey, HostRules> rules;
+
+    private volatile long maxRulesAgeMs = 0;
+
+    private final LongAdder localLookups = new LongAdder();
+
+    private final LongAdder rulesFetches = new LongAdder();
+
+    private final LongAdder remoteLookups = new LongAdder();
+
+    public RobotsNearCacheClient(final String host, final int port) {
+        this(ManagedChannelBuilder.forAddress(host, port).usePlaintext(), DEFAULT_MAX_HOSTS);
+        LOG.info("Robots near cache client pointing to " + host + ":" + port);
+    }
+
+    /**
+     * @param channelBuilder the channel to the robots evaluator
+     * @param maxHosts       the maximum number of host rules to keep
+     */
+    public RobotsNearCacheClient(ManagedChannelBuilder<?> channelBuilder, long maxHosts) {
+        LOG.info("Setting up Robots near cache client");
+        channel = channelBuilder.build();
+        evaluatorStub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+        rulesStub = RobotsRulesGrpc.newBlockingStub(channel);
+        rules = new Cache2kBuilder<RulesKey, HostRules>() {
+        }
+                .entryCapacity(maxHosts)
+                .expiryPolicy((key, value, loadTime, oldEntry) -> value.expiresAtMillis)
+                .build();
+    }
+
+    public boolean isAllowed(QueuedUri queuedUri, String userAgent, ConfigObject politeness, ConfigRef collectionRef) {
+        RobotsPolicy policy = politeness.getPolitenessConfig().getRobotsPolicy();
+        if (policy == RobotsPolicy.IGNORE_ROBOTS) {
+            localLookups.increment();
+            return true;
+        }
+        URL uri;
+        try {
+            uri = new URL(queuedUri.getUri());
+        } catch (MalformedURLException e) {
+            uri = null;
+        }
+        if (uri == null || (policy != RobotsPolicy.OBEY_ROBOTS && policy != RobotsPolicy.OBEY_ROBOTS_CLASSIC)) {
+            return isAllowedRemote(queuedUri, userAgent, politeness, collectionRef);
+        }
+
+        int ttlSeconds = politeness.getPolitenessConfig().getMinimumRobotsValidityDurationS();
+        RulesKey key = new RulesKey(uri, queuedUri.getJobExecutionId(), userAgent, ttlSeconds);
+        HostRules hostRules = rules.peek(key);
+        // The cache expires entries on a timer which may lag a little behind
+        if (hostRules == null || hostRules.expiresAtMillis <= System.currentTimeMillis()) {
+            try {
+                hostRules = fetchRules(uri, queuedUri, userAgent, ttlSeconds, collectionRef);
+            } catch (StatusRuntimeException ex) {
+                LOG.debug("Could not get rules for {}, asking the evaluator", uri.getHost(), ex);
+                return isAllowedRemote(queuedUri, userAgent, politeness, collectionRef);
+            }
+            rules.put(key, hostRules);
+        } else {
+            localLookups.increment();
+        }
+        return hostRules.group.isAllowed(uri);
+    }
+
+    private HostRules fetchRules(URL uri, QueuedUri queuedUri, String userAgent, int ttlSeconds,
+                                 ConfigRef collectionRef) {
+        GetRulesRequest request = GetRulesRequest.newBuilder()
+                .setUri(queuedUri.getUri())
+                .setUserAgent(userAgent)
+                .setExecutionId(queuedUri.getExecutionId())
+                .setJobExecutionId(queuedUri.getJobExecutionId())
+                .setCollectionId(collectionRef.getId())
+                .setTtlSeconds(ttlSeconds)
+                .build();
+
+        GetRulesReply reply = GrpcUtil.forkedCall(() -> rulesStub.getRules(request));
+        rulesFetches.increment();
+
+        List<RobotsTxt.Directive> directives = new ArrayList<>(reply.getDirectiveCount());
+        for (RobotsDirective directive : reply.getDirectiveList()) {
+            directives.add(new RobotsTxt.Directive(directive.getType() == RobotsDirective.Type.ALLOW
+                    ? RobotsTxt.DirectiveType.ALLOW : RobotsTxt.DirectiveType.DISALLOW, directive.getPath()));
+        }
+        LOG.debug("Got {} rules for {}", directives.size(), uri.getHost());
+        long expiresAtMillis = reply.getExpiresAtMs();
+        long maxRulesAgeMs = this.maxRulesAgeMs;
+        if (maxRulesAgeMs > 0) {
+            expiresAtMillis = Math.min(expiresAtMillis, System.currentTimeMillis() + maxRulesAgeMs);
+        }
+        return new HostRules(RobotsTxt.DirectiveGroup.of(directives), expiresAtMillis);
+    }
+
+    private boolean isAllowedRemote(QueuedUri queuedUri, String userAgent, ConfigObject politeness,
+                                    ConfigRef collectionRef) {
+        remoteLookups.increment();
+        try {
+            IsAllowedRequest request = IsAllowedRequest.newBuilder()
+                    .setJobExecutionId(queuedUri.getJobExecutionId())
+                    .setExecutionId(queuedUri.getExecutionId())
+                    .setUri(queuedUri.getUri())
+                    .setUserAgent(userAgent)
+                    .setPoliteness(politeness)
+                    .setCollectionRef(collectionRef)
+                    .build();
+
+            IsAllowedReply reply = GrpcUtil.forkedCall(() -> evaluatorStub.isAllowed(request));
+
+            return reply.getIsAllowed();
+        } catch (StatusRuntimeException ex) {
+            Code code = ex.getStatus().getCode();
+            if (code.equals(Status.CANCELLED.getCode())
+                    || code.equals(Status.DEADLINE_EXCEEDED.getCode())
+                    || code.equals(Status.ABORTED.getCode())) {
+                LOG.warn("Request was aborted", ex);
+            } else {
+                LOG.error("RPC failed: " + ex.getStatus(), ex);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Limit how long rules are kept, so that robots.txt invalidated in the evaluator stops being used within this time.
+     * <p>
+     * Applies to rules fetched from now on.
+     *
+     * @param maxRulesAgeMs the maximum time to keep rules, or 0 to keep them until the evaluator's robots.txt expires
+     */
+    public void setMaxRulesAgeMs(long maxRulesAgeMs) {
+        this.maxRulesAgeMs = maxRulesAgeMs;
+    }
+
+    /**
+     * @return the number of lookups answered from kept rules
+     */
+    public long getLocalLookups() {
+        return localLookups.sum();
+    }
+
+    /**
+     * @return the number of rule sets fetched from the evaluator
+     */
+    public long getRulesFetches() {
+        return rulesFetches.sum();
+    }
+
+    /**
+     * @return the number of lookups answered by the evaluator
+     */
+    public long getRemoteLookups() {
+        return remoteLookups.sum();
+    }
+
+    @Override
+    public void close() {
+        rules.close();
+        try {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * The rules of a host for one User Agent and until they expire.
+     */
+    private static final class HostRules {
+
+        final RobotsTxt.DirectiveGroup group;
+
+        final long expiresAtMillis;
+
+        HostRules(RobotsTxt.DirectiveGroup group, long expiresAtMillis) {
+            this.group = group;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private static final class RulesKey {
+
+        private final String protocol;
+
+        private final String host;
+
+        private final int port;
+
+        private final String jobExecutionId;
+
+        private final String userAgent;
+
+        private final int ttlSeconds;
+
+        RulesKey(URL uri, String jobExecutionId, String userAgent, int ttlSeconds) {
+            this.protocol = uri.getProtocol();
+            this.host = uri.getHost();
+            this.port = uri.getPort() == -1 ? uri.getDefaultPort() : uri.getPort();
+            this.jobExecutionId = jobExecutionId;
+            this.userAgent = userAgent;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(protocol, host, port, jobExecutionId, userAgent, ttlSeconds);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RulesKey)) {
+                return false;
+            }
+            RulesKey other = (RulesKey) obj;
+            return port == other.port && ttlSeconds == other.ttlSeconds && protocol.equals(other.protocol)
+                    && host.equals(other.host) && jobExecutionId.equals(other.jobExecutionId)
+                    && userAgent.equals(other.userAgent);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice.client;
+
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ConfigRef;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.api.frontier.v1.QueuedUri;
+import no.nb.nna.veidemann.robotsservice.RobotsApiServer;
+import no.nb.nna.veidemann.robotsservice.RobotsCache;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RobotsNearCacheClientTest {
+    RobotsCache robotsCache;
+    RobotsApiServer service;
+    RobotsNearCacheClient client;
+    MockWebServer webServer;
+    ConfigRef collectionRef = ConfigRef.newBuilder().setKind(Kind.collection).setId("collection1").build();
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new MockWebServer();
+        webServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getRequestLine().startsWith("GET http://www.example2.com/robots.txt")) {
+                    return new MockResponse().setResponseCode(200).setBody("user-agent: otherbot\ndisallow: /\n\n"
+                            + "user-agent: userAgent\ndisallow: /forbidden\nallow: /forbidden/open\n"
+                            + "disallow: /*.pdf$\n");
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        webServer.start();
+        HttpUrl baseUrl = webServer.url("");
+
+        robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000);
+        service = new RobotsApiServer(InProcessServerBuilder.forName("Robots near cache"), robotsCache);
+        service.start();
+
+        client = new RobotsNearCacheClient(InProcessChannelBuilder.forName("Robots near cache"), 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        service.close();
+        robotsCache.close();
+        webServer.shutdown();
+    }
+
+    @Test
+    public void rulesAreFetchedOnceAndEvaluatedLocally() {
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+
+        assertThat(isAllowed("http://www.example2.com/", politeness.build())).isTrue();
+        assertThat(isAllowed("http://www.example2.com/forbidden/page", politeness.build())).isFalse();
+        assertThat(isAllowed("http://www.example2.com/forbidden/open/page", politeness.build())).isTrue();
+        assertThat(isAllowed("http://www.example2.com/doc.pdf", politeness.build())).isFalse();
+        assertThat(isAllowed("http://www.example2.com/doc.pdf.html", politeness.build())).isTrue();
+        assertThat(isAllowed("http://www.example.com/forbidden", politeness.build())).isTrue();
+
+        assertThat(client.getRulesFetches()).isEqualTo(2);
+        assertThat(client.getLocalLookups()).isEqualTo(4);
+        assertThat(client.getRemoteLookups()).isEqualTo(0);
+        assertThat(webServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void rulesAreRefetchedAfterMaxAge() throws InterruptedException {
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+        client.setMaxRulesAgeMs(50);
+
+        assertThat(isAllowed("http://www.example2.com/forbidden/page", politeness.build())).isFalse();
+        assertThat(isAllowed("http://www.example2.com/page", politeness.build())).isTrue();
+        assertThat(client.getRulesFetches()).isEqualTo(1);
+
+        Thread.sleep(200);
+        assertThat(isAllowed("http://www.example2.com/forbidden/page", politeness.build())).isFalse();
+        assertThat(client.getRulesFetches()).isEqualTo(2);
+        assertThat(client.getLocalLookups()).isEqualTo(1);
+    }
+
+    @Test
+    public void customRobotsAreEvaluatedByTheEvaluator() {
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.CUSTOM_ROBOTS)
+                .setCustomRobots("user-agent: *\ndisallow: /custom\n");
+
+        assertThat(isAllowed("http://www.example2.com/custom", politeness.build())).isFalse();
+        assertThat(isAllowed("http://www.example2.com/forbidden", politeness.build())).isTrue();
+
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.IGNORE_ROBOTS);
+        assertThat(isAllowed("http://www.example2.com/forbidden", politeness.build())).isTrue();
+
+        assertThat(client.getRemoteLookups()).isEqualTo(2);
+        assertThat(client.getRulesFetches()).isEqualTo(0);
+        assertThat(webServer.getRequestCount()).isEqualTo(0);
+    }
+
+    boolean isAllowed(String uri, ConfigObject politeness) {
+        QueuedUri quri = QueuedUri.newBuilder()
+                .setUri(uri)
+                .setJobExecutionId("jid")
+                .setExecutionId("eid")
+                .build();
+        return client.isAllowed(quri, "userAgent", politeness, collectionRef);
+    }
+}
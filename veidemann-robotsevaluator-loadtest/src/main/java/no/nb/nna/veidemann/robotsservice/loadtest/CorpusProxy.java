@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import no.nb.nna.veidemann.robotsservice.loadtest.RobotsCorpus.Outcome;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the harvester proxy serving robots.txt from a {@link RobotsCorpus}.
+ * <p>
+ * Uses the JDK http server instead of MockWebServer, which keeps every request it has seen and would show up in the
+ * heap numbers of a long run.
+ */
+public class CorpusProxy implements AutoCloseable {
+
+    private final RobotsCorpus corpus;
+
+    private final int slowLorisBytesPerSecond;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final Map<Outcome, AtomicLong> served = new EnumMap<>(Outcome.class);
+
+    public CorpusProxy(RobotsCorpus corpus, int slowLorisBytesPerSecond) throws IOException {
+        this.corpus = corpus;
+        this.slowLorisBytesPerSecond = Math.max(1, slowLorisBytesPerSecond);
+        for (Outcome outcome : Outcome.values()) {
+            served.put(outcome, new AtomicLong());
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "corpus-proxy");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+    }
+
+    public CorpusProxy start() {
+        server.start();
+        return this;
+    }
+
+    public String getHost() {
+        return server.getAddress().getHostString();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getServed(Outcome outcome) {
+        return served.get(outcome).get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            // Proxy requests have the absolute url in the request line
+            URI uri = exchange.getRequestURI();
+            String host = uri.getHost() != null ? uri.getHost() : exchange.getRequestHeaders().getFirst("Host");
+            if (host == null || !"/robots.txt".equals(uri.getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            RobotsCorpus.Response response = corpus.responseFor(host);
+            served.get(response.outcome).incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(response.latencyMillis);
+
+            switch (response.outcome) {
+                case MISSING:
+                    exchange.sendResponseHeaders(404, -1);
+                    break;
+                case ERROR:
+                    exchange.sendResponseHeaders(503, -1);
+                    break;
+                case OK:
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(200, response.body.length);
+                    exchange.getResponseBody().write(response.body);
+                    break;
+                case SLOW:
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(200, response.body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    for (int off = 0; off < response.body.length; off += slowLorisBytesPerSecond) {
+                        out.write(response.body, off, Math.min(slowLorisBytesPerSecond, response.body.length - off));
+                        out.flush();
+                        TimeUnit.SECONDS.sleep(1);
+                    }
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Client gave up, typically on a slow body
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
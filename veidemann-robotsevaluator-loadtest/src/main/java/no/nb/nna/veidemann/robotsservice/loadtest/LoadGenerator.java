@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.loadtest;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ConfigRef;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+import org.HdrHistogram.Recorder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends IsAllowed requests at a fixed rate.
+ * <p>
+ * The load is open loop: requests are sent on schedule whether or not earlier requests have been answered, and
+ * latency is measured from the time a request was scheduled, so a stalled server shows up as latency instead of as
+ * a lower request rate.
+ */
+public class LoadGenerator {
+
+    private final RobotsEvaluatorGrpc.RobotsEvaluatorStub stub;
+
+    private final LoadTestSettings settings;
+
+    private final ConfigObject politeness;
+
+    private final ConfigRef collectionRef = ConfigRef.newBuilder().setKind(Kind.collection).setId("loadtest").build();
+
+    private final Semaphore outstanding;
+
+    private final Recorder latencyMicros = new Recorder(3);
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running;
+
+    public LoadGenerator(ManagedChannel channel, LoadTestSettings settings) {
+        this.stub = RobotsEvaluatorGrpc.newStub(channel);
+        this.settings = settings;
+        this.outstanding = new Semaphore(settings.getMaxOutstanding());
+
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS)
+                .setMinimumRobotsValidityDurationS(settings.getRobotsValidityS());
+        this.politeness = politeness.build();
+    }
+
+    /**
+     * Send requests until {@link #stop()} is called. Blocks the calling thread.
+     */
+    public void run() {
+        running = true;
+        SplittableRandom random = new SplittableRandom(settings.getSeed());
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / settings.getRequestsPerSecond();
+        long start = System.nanoTime();
+
+        for (long i = 0; running; i++) {
+            long intended = start + i * intervalNanos;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!outstanding.tryAcquire()) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            stub.isAllowed(nextRequest(random), new StreamObserver<IsAllowedReply>() {
+                @Override
+                public void onNext(IsAllowedReply value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done(intended);
+                    errors.incrementAndGet();
+                }
+
+                @Override
+                public void onCompleted() {
+                    done(intended);
+                }
+            });
+        }
+    }
+
+    private void done(long intended) {
+        outstanding.release();
+        latencyMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+        completed.incrementAndGet();
+    }
+
+    private IsAllowedRequest nextRequest(SplittableRandom random) {
+        int host = random.nextDouble() < settings.getHotShare()
+                ? random.nextInt(Math.min(settings.getHotHosts(), settings.getHosts()))
+                : random.nextInt(settings.getHosts());
+        return IsAllowedRequest.newBuilder()
+                .setUri("http://" + RobotsCorpus.hostName(host) + "/page/" + random.nextInt(1000))
+                .setExecutionId("eid")
+                .setJobExecutionId("jid")
+                .setUserAgent("veidemann/1.0")
+                .setPoliteness(politeness)
+                .setCollectionRef(collectionRef)
+                .build();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public Recorder getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getOutstanding() {
+        return settings.getMaxOutstanding() - outstanding.availablePermits();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.loadtest;
+
+import com.typesafe.config.ConfigBeanFactory;
+import com.typesafe.config.ConfigFactory;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import no.nb.nna.veidemann.robotsservice.CanonicalizationPolicy;
+import no.nb.nna.veidemann.robotsservice.RobotsApiServer;
+import no.nb.nna.veidemann.robotsservice.RobotsCache;
+import no.nb.nna.veidemann.robotsservice.loadtest.RobotsCorpus.Outcome;
+import org.HdrHistogram.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end load test of the evaluator.
+ * <p>
+ * Starts the evaluator's gRPC api with a {@link RobotsCache} fetching through a {@link CorpusProxy}, and drives it
+ * with a {@link LoadGenerator} at a fixed request rate. Latency, throughput, heap and thread counts are reported
+ * every report interval, and for the whole measurement after warm up when the run ends.
+ * <p>
+ * Settings are read from loadtest.conf and can be overridden with system properties.
+ */
+public class LoadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        LoadTestSettings settings = ConfigBeanFactory.create(ConfigFactory.load("loadtest"), LoadTestSettings.class);
+
+        try (CorpusProxy proxy = new CorpusProxy(new RobotsCorpus(settings), settings.getSlowLorisBytesPerSecond()).start();
+             RobotsCache robotsCache = new RobotsCache(proxy.getHost(), proxy.getPort(),
+                     settings.getCacheCapacityNumEntries(), settings.getCacheShards(), CanonicalizationPolicy.STRICT);
+             RobotsApiServer apiServer = new RobotsApiServer(settings.getApiPort(), robotsCache).start()) {
+
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", settings.getApiPort())
+                    .usePlaintext()
+                    .build();
+            LoadGenerator generator = new LoadGenerator(channel, settings);
+            Thread driver = new Thread(generator::run, "load-generator");
+            driver.start();
+
+            System.out.printf("Load test: %d requests/s over %d hosts, %ds warm up, %ds measurement%n",
+                    settings.getRequestsPerSecond(), settings.getHosts(), settings.getWarmupSeconds(),
+                    settings.getDurationSeconds());
+            System.out.printf("%8s %10s %10s %10s %10s %10s %8s %8s %8s %8s%n", "time(s)", "req/s",
+                    "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "errors", "dropped", "heap(MB)", "threads");
+
+            Histogram total = new Histogram(3);
+            long totalStart = 0;
+            long completedAtStart = 0;
+            long errorsAtStart = 0;
+            long droppedAtStart = 0;
+            long lastCompleted = 0;
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(settings.getWarmupSeconds() + settings.getDurationSeconds());
+            long warmupEnd = start + TimeUnit.SECONDS.toNanos(settings.getWarmupSeconds());
+            Histogram interval = null;
+
+            while (System.nanoTime() < end) {
+                TimeUnit.SECONDS.sleep(settings.getReportIntervalSeconds());
+                long now = System.nanoTime();
+                interval = generator.getLatencyMicros().getIntervalHistogram(interval);
+                long completed = generator.getCompleted();
+                report(now - start, completed - lastCompleted, settings.getReportIntervalSeconds(), interval,
+                        generator.getErrors(), generator.getDropped());
+                lastCompleted = completed;
+
+                if (now >= warmupEnd) {
+                    if (totalStart == 0) {
+                        totalStart = now;
+                        completedAtStart = completed;
+                        errorsAtStart = generator.getErrors();
+                        droppedAtStart = generator.getDropped();
+                    } else {
+                        total.add(interval);
+                    }
+                }
+            }
+
+            generator.stop();
+            driver.join();
+
+            long measured = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - totalStart));
+            System.out.println();
+            System.out.println("Summary after warm up");
+            System.out.printf("  throughput:   %.1f req/s%n", (double) (generator.getCompleted() - completedAtStart) / measured);
+            System.out.printf("  latency (ms): p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+                    ms(total.getValueAtPercentile(50)), ms(total.getValueAtPercentile(99)),
+                    ms(total.getValueAtPercentile(99.9)), ms(total.getMaxValue()));
+            System.out.printf("  errors:       %d%n", generator.getErrors() - errorsAtStart);
+            System.out.printf("  dropped:      %d%n", generator.getDropped() - droppedAtStart);
+            System.out.printf("  proxy:        ok=%d missing=%d error=%d slow=%d%n", proxy.getServed(Outcome.OK),
+                    proxy.getServed(Outcome.MISSING), proxy.getServed(Outcome.ERROR), proxy.getServed(Outcome.SLOW));
+
+            channel.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    private static void report(long elapsedNanos, long completed, int intervalSeconds, Histogram latency,
+                               long errors, long dropped) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%8d %10.1f %10.2f %10.2f %10.2f %10.2f %8d %8d %8d %8d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+                (double) completed / intervalSeconds,
+                ms(latency.getValueAtPercentile(50)),
+                ms(latency.getValueAtPercentile(99)),
+                ms(latency.getValueAtPercentile(99.9)),
+                ms(latency.getMaxValue()),
+                errors,
+                dropped,
+                memory.getHeapMemoryUsage().getUsed() / MB,
+                threads.getThreadCount());
+    }
+
+    private static double ms(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.loadtest;
+
+/**
+ * Configuration settings for the load test. See loadtest.conf for the meaning of each setting.
+ */
+public class LoadTestSettings {
+
+    private int apiPort;
+
+    private long cacheCapacityNumEntries;
+
+    private int cacheShards;
+
+    private int hosts;
+
+    private long seed;
+
+    private double missingRate;
+
+    private double errorRate;
+
+    private double slowLorisRate;
+
+    private int slowLorisBytesPerSecond;
+
+    private int bodySizeMedianBytes;
+
+    private double bodySizeSigma;
+
+    private int bodySizeMaxBytes;
+
+    private int latencyMedianMillis;
+
+    private double latencySigma;
+
+    private int requestsPerSecond;
+
+    private int hotHosts;
+
+    private double hotShare;
+
+    private int robotsValidityS;
+
+    private int maxOutstanding;
+
+    private int warmupSeconds;
+
+    private int durationSeconds;
+
+    private int reportIntervalSeconds;
+
+    public int getApiPort() {
+        return apiPort;
+    }
+
+    public void setApiPort(int apiPort) {
+        this.apiPort = apiPort;
+    }
+
+    public long getCacheCapacityNumEntries() {
+        return cacheCapacityNumEntries;
+    }
+
+    public void setCacheCapacityNumEntries(long cacheCapacityNumEntries) {
+        this.cacheCapacityNumEntries = cacheCapacityNumEntries;
+    }
+
+    public int getCacheShards() {
+        return cacheShards;
+    }
+
+    public void setCacheShards(int cacheShards) {
+        this.cacheShards = cacheShards;
+    }
+
+    public int getHosts() {
+        return hosts;
+    }
+
+    public void setHosts(int hosts) {
+        this.hosts = hosts;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public double getMissingRate() {
+        return missingRate;
+    }
+
+    public void setMissingRate(double missingRate) {
+        this.missingRate = missingRate;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public double getSlowLorisRate() {
+        return slowLorisRate;
+    }
+
+    public void setSlowLorisRate(double slowLorisRate) {
+        this.slowLorisRate = slowLorisRate;
+    }
+
+    public int getSlowLorisBytesPerSecond() {
+        return slowLorisBytesPerSecond;
+    }
+
+    public void setSlowLorisBytesPerSecond(int slowLorisBytesPerSecond) {
+        this.slowLorisBytesPerSecond = slowLorisBytesPerSecond;
+    }
+
+    public int getBodySizeMedianBytes() {
+        return bodySizeMedianBytes;
+    }
+
+    public void setBodySizeMedianBytes(int bodySizeMedianBytes) {
+        this.bodySizeMedianBytes = bodySizeMedianBytes;
+    }
+
+    public double getBodySizeSigma() {
+        return bodySizeSigma;
+    }
+
+    public void setBodySizeSigma(double bodySizeSigma) {
+        this.bodySizeSigma = bodySizeSigma;
+    }
+
+    public int getBodySizeMaxBytes() {
+        return bodySizeMaxBytes;
+    }
+
+    public void setBodySizeMaxBytes(int bodySizeMaxBytes) {
+        this.bodySizeMaxBytes = bodySizeMaxBytes;
+    }
+
+    public int getLatencyMedianMillis() {
+        return latencyMedianMillis;
+    }
+
+    public void setLatencyMedianMillis(int latencyMedianMillis) {
+        this.latencyMedianMillis = latencyMedianMillis;
+    }
+
+    public double getLatencySigma() {
+        return latencySigma;
+    }
+
+    public void setLatencySigma(double latencySigma) {
+        this.latencySigma = latencySigma;
+    }
+
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getHotHosts() {
+        return hotHosts;
+    }
+
+    public void setHotHosts(int hotHosts) {
+        this.hotHosts = hotHosts;
+    }
+
+    public double getHotShare() {
+        return hotShare;
+    }
+
+    public void setHotShare(double hotShare) {
+        this.hotShare = hotShare;
+    }
+
+    public int getRobotsValidityS() {
+        return robotsValidityS;
+    }
+
+    public void setRobotsValidityS(int robotsValidityS) {
+        this.robotsValidityS = robotsValidityS;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public void setWarmupSeconds(int warmupSeconds) {
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(int durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getReportIntervalSeconds() {
+        return reportIntervalSeconds;
+    }
+
+    public void setReportIntervalSeconds(int reportIntervalSeconds) {
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic robots.txt for a set of generated hosts.
+ * <p>
+ * Nothing is kept in memory. Each host's response is derived from a random generator seeded with the host name, so
+ * the same host always gets the same response and the corpus can be much larger than the heap.
+ */
+public class RobotsCorpus {
+
+    private static final String[] AGENTS = {"*", "*", "*", "googlebot", "bingbot", "veidemann", "ia_archiver",
+            "yandex", "baiduspider", "ahrefsbot"};
+
+    private static final String[] SEGMENTS = {"admin", "search", "cgi-bin", "private", "tmp", "cart", "login",
+            "api", "wp-admin", "print", "archive", "images", "user", "tag", "feed", "calendar"};
+
+    public enum Outcome {
+        OK,
+        MISSING,
+        ERROR,
+        SLOW
+    }
+
+    /**
+     * The response for one host.
+     */
+    public static final class Response {
+        public final Outcome outcome;
+
+        public final long latencyMillis;
+
+        public final byte[] body;
+
+        Response(Outcome outcome, long latencyMillis, byte[] body) {
+            this.outcome = outcome;
+            this.latencyMillis = latencyMillis;
+            this.body = body;
+        }
+    }
+
+    private final LoadTestSettings settings;
+
+    public RobotsCorpus(LoadTestSettings settings) {
+        this.settings = settings;
+    }
+
+    public static String hostName(int host) {
+        return "www.host" + host + ".com";
+    }
+
+    public Response responseFor(String host) {
+        Random random = new Random(host.hashCode() * 0x9E3779B97F4A7C15L ^ settings.getSeed());
+
+        double p = random.nextDouble();
+        Outcome outcome;
+        if (p < settings.getMissingRate()) {
+            outcome = Outcome.MISSING;
+        } else if ((p -= settings.getMissingRate()) < settings.getErrorRate()) {
+            outcome = Outcome.ERROR;
+        } else if (p - settings.getErrorRate() < settings.getSlowLorisRate()) {
+            outcome = Outcome.SLOW;
+        } else {
+            outcome = Outcome.OK;
+        }
+
+        long latency = logNormal(random, settings.getLatencyMedianMillis(), settings.getLatencySigma());
+        byte[] body = null;
+        if (outcome == Outcome.OK || outcome == Outcome.SLOW) {
+            long size = Math.min(settings.getBodySizeMaxBytes(),
+                    logNormal(random, settings.getBodySizeMedianBytes(), settings.getBodySizeSigma()));
+            body = robotsTxt(random, host, (int) size).getBytes(StandardCharsets.UTF_8);
+        }
+        return new Response(outcome, latency, body);
+    }
+
+    static String robotsTxt(Random random, String host, int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        sb.append("# robots.txt for ").append(host).append('\n');
+        while (sb.length() < size) {
+            sb.append('\n');
+            int agents = 1 + random.nextInt(2);
+            for (int i = 0; i < agents; i++) {
+                sb.append("User-agent: ").append(AGENTS[random.nextInt(AGENTS.length)]).append('\n');
+            }
+            int rules = 1 + random.nextInt(12);
+            for (int i = 0; i < rules && sb.length() < size; i++) {
+                sb.append(random.nextInt(4) == 0 ? "Allow: " : "Disallow: ").append(path(random)).append('\n');
+            }
+            if (random.nextInt(5) == 0) {
+                sb.append("Crawl-delay: ").append(1 + random.nextInt(10)).append('\n');
+            }
+        }
+        if (random.nextBoolean()) {
+            sb.append("\nSitemap: http://").append(host).append("/sitemap.xml\n");
+        }
+        return sb.toString();
+    }
+
+    private static String path(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1 + random.nextInt(3);
+        for (int i = 0; i < depth; i++) {
+            sb.append('/').append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                sb.append("/*.php");
+                break;
+            case 1:
+                sb.append("$");
+                break;
+            case 2:
+                sb.append('/');
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+
+    static long logNormal(Random random, double median, double sigma) {
+        return Math.max(0L, Math.round(median * Math.exp(sigma * random.nextGaussian())));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt.DirectiveGroup;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one instance of each distinct robots.txt group between all parsed files.
+ * <p>
+ * Files which differ as a whole often have groups in common, like the rules a CMS or a hosting provider puts in for
+ * all crawlers next to site specific ones. Groups are looked up by a structural hash of their User Agents, directives,
+ * crawl and cache delay and other fields, and compared in full before being shared, so a hash collision only costs
+ * a copy. Groups are compared without compiling them, and a shared lazy group is compiled once for all files.
+ * <p>
+ * Groups are held by weak reference. When no parsed robots.txt uses a group any more, it is collected and its slot
+ * in the table is removed on a later lookup.
+ */
+public class DirectiveGroupInternTable {
+
+    private static final Counter LOOKUPS = Counter.build()
+            .name("robots_group_intern_lookups_total")
+            .help("Number of parsed robots.txt groups looked up by content, by whether an identical one was shared")
+            .labelNames("result")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("robots_group_intern_entries")
+            .help("Number of distinct robots.txt groups shared between parsed files")
+            .register();
+
+    private final Map<Long, Entry> table = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<DirectiveGroup> collected = new ReferenceQueue<>();
+
+    /**
+     * Get the shared instance of a group.
+     *
+     * @param group a group which is completely parsed
+     * @return an identical group already in use, or the group itself if there is none
+     */
+    DirectiveGroup intern(DirectiveGroup group) {
+        purge();
+        long hash = group.structuralHash();
+        Entry entry = table.get(hash);
+        if (entry != null) {
+            DirectiveGroup shared = entry.get();
+            if (shared != null && shared.isSameAs(group)) {
+                LOOKUPS.labels("shared").inc();
+                return shared;
+            }
+        }
+
+        if (entry == null || entry.get() == null) {
+            // On a collision the first group keeps the slot
+            Entry created = new Entry(hash, group, collected);
+            if (entry == null ? table.putIfAbsent(hash, created) == null : table.replace(hash, entry, created)) {
+                SIZE.inc();
+            }
+        }
+        LOOKUPS.labels("new").inc();
+        return group;
+    }
+
+    /**
+     * Remove the entries of collected groups.
+     */
+    private void purge() {
+        Reference<? extends DirectiveGroup> ref;
+        while ((ref = collected.poll()) != null) {
+            Entry entry = (Entry) ref;
+            if (table.remove(entry.hash, entry)) {
+                SIZE.dec();
+            }
+        }
+    }
+
+    int size() {
+        purge();
+        return table.size();
+    }
+
+    private static final class Entry extends WeakReference<DirectiveGroup> {
+
+        final long hash;
+
+        Entry(long hash, DirectiveGroup group, ReferenceQueue<DirectiveGroup> queue) {
+            super(group, queue);
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser;
+
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply.OtherField;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ */
+public class RobotsTxt {
+    public final static IsAllowedReply EMPTY_ALLOWED_REPLY = IsAllowedReply.newBuilder().setIsAllowed(true).build();
+
+    final static UserAgentParser USER_AGENT_PARSER = new UserAgentParser();
+
+    final String sourceName;
+
+    final List<DirectiveGroup> directives = new ArrayList<>();
+
+    private final List<OtherField> otherFields = new ArrayList<>();
+
+    final List<String> sitemaps = new ArrayList<>();
+
+    final List<String> errors = new ArrayList<>();
+
+    /**
+     * The disallowed and allowed reply of each group, built on first use.
+     */
+    private volatile AtomicReferenceArray<IsAllowedReply> replies;
+
+    public RobotsTxt(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    void addOtherField(String name, String value) {
+        otherFields.add(OtherField.newBuilder().setName(name).setValue(value).build());
+    }
+
+    public IsAllowedReply isAllowed(String userAgent, URL uri) {
+        return isAllowedForBaseUserAgent(parseUserAgent(userAgent), uri);
+    }
+
+    /**
+     * Extract the name robots.txt groups are matched against from a User Agent string.
+     *
+     * @param userAgent the User Agent string of the crawler
+     * @return the lower cased base name of the User Agent
+     */
+    public static String parseUserAgent(String userAgent) {
+        return USER_AGENT_PARSER.parse(userAgent);
+    }
+
+    /**
+     * Same as {@link #isAllowed(String, URL)}, but with a User Agent already parsed with {@link #parseUserAgent}.
+     */
+    public IsAllowedReply isAllowedForBaseUserAgent(String baseUserAgent, URL uri) {
+        int group = matchingGroupIndex(baseUserAgent);
+        if (group < 0) {
+            return EMPTY_ALLOWED_REPLY;
+        }
+        return reply(group, directives.get(group).isAllowed(uri));
+    }
+
+    /**
+     * Get the reply for a group.
+     * <p>
+     * Apart from the decision, a reply only depends on the group and on the sitemaps and other fields of this file,
+     * so the two possible replies of each group are built once and shared by all lookups. The replies are kept with
+     * the file rather than with the group, since groups are shared between files (see
+     * {@link DirectiveGroupInternTable}). The same reply instance is returned every time, which lets the service
+     * keep the serialized form of large replies.
+     *
+     * @param group the index of the group in this file
+     */
+    private IsAllowedReply reply(int group, boolean allowed) {
+        AtomicReferenceArray<IsAllowedReply> replies = this.replies;
+        if (replies == null || replies.length() < directives.size() * 2) {
+            // Racing lookups may create the array more than once, which only costs rebuilding the replies
+            replies = new AtomicReferenceArray<>(directives.size() * 2);
+            this.replies = replies;
+        }
+        int slot = group * 2 + (allowed ? 1 : 0);
+        IsAllowedReply reply = replies.get(slot);
+        if (reply == null) {
+            DirectiveGroup directiveGroup = directives.get(group);
+            reply = IsAllowedReply.newBuilder()
+                    .setIsAllowed(allowed)
+                    .setCrawlDelay(directiveGroup.crawlDelay)
+                    .setCacheDelay(directiveGroup.cacheDelay)
+                    .addAllOtherFields(otherFields)
+                    .addAllOtherFields(directiveGroup.otherFields)
+                    .addAllSitemap(sitemaps)
+                    .build();
+            if (!replies.compareAndSet(slot, null, reply)) {
+                reply = replies.get(slot);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Get the group which applies to a User Agent.
+     *
+     * @param baseUserAgent a User Agent parsed with {@link #parseUserAgent}
+     * @return the group with the longest matching User Agent, or empty if no group applies
+     */
+    public Optional<DirectiveGroup> getMatchingGroup(String baseUserAgent) {
+        return findMatchingDirectives(baseUserAgent);
+    }
+
+    Optional<DirectiveGroup> findMatchingDirectives(String parsedUserAgent) {
+        int group = matchingGroupIndex(parsedUserAgent);
+        return group < 0 ? Optional.empty() : Optional.of(directives.get(group));
+    }
+
+    /**
+     * @return the index of the first group with the longest matching User Agent, or -1 if no group applies
+     */
+    private int matchingGroupIndex(String parsedUserAgent) {
+        int best = -1;
+        int bestLength = -1;
+        for (int i = 0; i < directives.size(); i++) {
+            Optional<DirectiveGroup.MatchedDirectiveGroup> match = directives.get(i).matchUserAgent(parsedUserAgent);
+            if (match.isPresent() && match.get().matchedLength > bestLength) {
+                best = i;
+                bestLength = match.get().matchedLength;
+            }
+        }
+        return best;
+    }
+
+    public List<DirectiveGroup> getDirectiveGroups() {
+        return Collections.unmodifiableList(directives);
+    }
+
+    public List<String> getSitemaps() {
+        return Collections.unmodifiableList(sitemaps);
+    }
+
+    /**
+     * @return the syntax errors found while parsing
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    @Override
+    public String toString() {
+        return "RobotsTxt{" + "\n  directives=" + directives + ",\n  otherFields=" + otherFields + '}';
+    }
+
+    public static class DirectiveGroup {
+
+        final List<String> userAgents = new ArrayList<>();
+
+        private List<Directive> directives = new ArrayList<>();
+
+        /**
+         * Paths of directives not compiled yet, with the allow directives marked in uncompiledAllows.
+         */
+        private List<String> uncompiledPaths;
+
+        private BitSet uncompiledAllows;
+
+        private volatile boolean compiled = true;
+
+        private final List<OtherField> otherFields = new ArrayList<>();
+
+        float crawlDelay = -1;
+
+        float cacheDelay = -1;
+
+        /**
+         * Create a group from directives compiled elsewhere, like rules sent to a client.
+         *
+         * @param directives the directives of the group
+         * @return a group without User Agents, for evaluation with {@link #isAllowed(URL)}
+         */
+        public static DirectiveGroup of(List<Directive> directives) {
+            DirectiveGroup group = new DirectiveGroup();
+            directives.forEach(group::addDirective);
+            return group;
+        }
+
+        void addDirective(Directive directive) {
+            directive.group = this;
+            directives.add(directive);
+        }
+
+        /**
+         * Add a directive to be compiled the first time the group is used.
+         */
+        void addUncompiledDirective(DirectiveType type, String path) {
+            if (uncompiledPaths == null) {
+                uncompiledPaths = new ArrayList<>();
+                uncompiledAllows = new BitSet();
+                compiled = false;
+            }
+            if (type == DirectiveType.ALLOW) {
+                uncompiledAllows.set(uncompiledPaths.size());
+            }
+            uncompiledPaths.add(path);
+        }
+
+        void addOtherField(String name, String value) {
+            otherFields.add(OtherField.newBuilder().setName(name).setValue(value).build());
+        }
+
+        private List<Directive> compiledDirectives() {
+            if (!compiled) {
+                compile();
+            }
+            return directives;
+        }
+
+        private synchronized void compile() {
+            if (compiled) {
+                return;
+            }
+            List<Directive> result = new ArrayList<>(directives.size() + uncompiledPaths.size());
+            result.addAll(directives);
+            for (int i = 0; i < uncompiledPaths.size(); i++) {
+                Directive directive = new Directive(
+                        uncompiledAllows.get(i) ? DirectiveType.ALLOW : DirectiveType.DISALLOW, uncompiledPaths.get(i));
+                directive.group = this;
+                result.add(directive);
+            }
+            directives = result;
+            uncompiledPaths = null;
+            uncompiledAllows = null;
+            compiled = true;
+            RobotsTxtParser.COMPILED_LAZY_GROUPS.inc();
+        }
+
+        /**
+         * @return true if the directives of this group are compiled
+         */
+        public boolean isCompiled() {
+            return compiled;
+        }
+
+        /**
+         * Get the number of directives in this group without compiling them.
+         */
+        public synchronized int getDirectiveCount() {
+            return directives.size() + (uncompiledPaths == null ? 0 : uncompiledPaths.size());
+        }
+
+        /**
+         * Visit the type and path of each directive in order, without compiling them.
+         * <p>
+         * Paths are given as {@link Directive#getPath()} gives them, so compiled and uncompiled groups look the same.
+         *
+         * @param action called with the type and path of each directive
+         */
+        public synchronized void forEachDirective(BiConsumer<DirectiveType, String> action) {
+            for (Directive directive : directives) {
+                action.accept(directive.type, directive.path);
+            }
+            if (uncompiledPaths != null) {
+                for (int i = 0; i < uncompiledPaths.size(); i++) {
+                    action.accept(uncompiledAllows.get(i) ? DirectiveType.ALLOW : DirectiveType.DISALLOW,
+                            Directive.normalizePath(uncompiledPaths.get(i)));
+                }
+            }
+        }
+
+        /**
+         * A hash of everything which decides how this group matches and what its replies hold.
+         */
+        long structuralHash() {
+            long hash = directiveKeys().hashCode();
+            hash = 31 * hash + Float.floatToIntBits(crawlDelay);
+            hash = 31 * hash + Float.floatToIntBits(cacheDelay);
+            hash = 31 * hash + userAgents.hashCode();
+            hash = 31 * hash + otherFields.hashCode();
+            return hash;
+        }
+
+        /**
+         * @return true if the other group would match and reply exactly like this one
+         */
+        boolean isSameAs(DirectiveGroup other) {
+            return crawlDelay == other.crawlDelay && cacheDelay == other.cacheDelay
+                    && userAgents.equals(other.userAgents) && otherFields.equals(other.otherFields)
+                    && directiveKeys().equals(other.directiveKeys());
+        }
+
+        private List<String> directiveKeys() {
+            List<String> keys = new ArrayList<>(getDirectiveCount());
+            forEachDirective((type, path) -> keys.add((type == DirectiveType.ALLOW ? "allow:" : "disallow:") + path));
+            return keys;
+        }
+
+        /**
+         * Return the number of characters matching this directives best user agent match.
+         *
+         * @param parsedUserAgent the User Agent to check access for
+         * @return an Optional with the number of characters matching, 0 for wildcard match ('*'), empty Optional for no
+         * match
+         */
+        Optional<MatchedDirectiveGroup> matchUserAgent(final String parsedUserAgent) {
+            return userAgents.stream()
+                    .map(ua -> compareUA(ua, parsedUserAgent))
+                    .filter(d -> d.matchedLength >= 0)
+                    .max(Comparator.comparingInt(l -> l.matchedLength));
+        }
+
+        /**
+         * Return the number of characters matching.
+         *
+         * @param ua              a User Agent from a robots.txt file
+         * @param parsedUserAgent the User Agent to check access for
+         * @return the number of characters matching, -1 for no match, 0 for wildcard match ('*')
+         */
+        MatchedDirectiveGroup compareUA(final String ua, final String parsedUserAgent) {
+            if ("*".equals(ua)) {
+                return new MatchedDirectiveGroup(0, this);
+            }
+            if (parsedUserAgent.length() < ua.length()) {
+                return new MatchedDirectiveGroup(-1, this);
+            }
+
+            int i;
+            for (i = 0; i < ua.length(); i++) {
+                if (ua.charAt(i) != parsedUserAgent.charAt(i)) {
+                    i--;
+                    break;
+                }
+            }
+
+            return new MatchedDirectiveGroup(i, this);
+        }
+
+        /**
+         * Check a url against the directives of this group.
+         *
+         * @param uri the url to check
+         * @return true if the longest matching directive allows the url, or if no directive matches
+         */
+        public boolean isAllowed(URL uri) {
+            final String path = uri.getPath();
+            Optional<MatchedDirective> match = compiledDirectives().stream()
+                    .map(d -> d.comparePath(path))
+                    .filter(md -> md.matchedLength >= 0)
+                    .max(Comparator.comparingInt(d -> d.matchedLength));
+            if (match.isPresent()) {
+                return match.get().directive.type == DirectiveType.ALLOW;
+            } else {
+                return true;
+            }
+        }
+
+        public List<String> getUserAgents() {
+            return Collections.unmodifiableList(userAgents);
+        }
+
+        /**
+         * Get the directives of this group, compiling them if they aren't already.
+         */
+        public List<Directive> getDirectives() {
+            return Collections.unmodifiableList(compiledDirectives());
+        }
+
+        /**
+         * @return the crawl-delay in seconds, or -1 if not set
+         */
+        public float getCrawlDelay() {
+            return crawlDelay;
+        }
+
+        /**
+         * @return the cache-delay in seconds, or -1 if not set
+         */
+        public float getCacheDelay() {
+            return cacheDelay;
+        }
+
+        @Override
+        public String toString() {
+            return "\n    DirectiveGroup{" + "userAgents=" + userAgents + ", directives=" + compiledDirectives()
+                    + ", otherFields=" + otherFields + ", crawlDelay=" + crawlDelay
+                    + ", cacheDelay=" + cacheDelay + '}';
+        }
+
+        static class MatchedDirective {
+
+            final int matchedLength;
+
+            final Directive directive;
+
+            public MatchedDirective(int matchedLength, Directive directive) {
+                this.matchedLength = matchedLength;
+                this.directive = directive;
+            }
+
+        }
+
+        static class MatchedDirectiveGroup {
+
+            final int matchedLength;
+
+            final DirectiveGroup directive;
+
+            public MatchedDirectiveGroup(int matchedLength, DirectiveGroup directive) {
+                this.matchedLength = matchedLength;
+                this.directive = directive;
+            }
+
+        }
+    }
+
+    public enum DirectiveType {
+        ALLOW,
+        DISALLOW
+    }
+
+    public static class Directive {
+
+        final DirectiveType type;
+
+        final String path;
+
+        final Pattern pattern;
+
+        DirectiveGroup group;
+
+        public Directive(DirectiveType type, String path) {
+            this.type = type;
+            path = normalizePath(path);
+            this.path = path;
+            if (path.endsWith("$") || path.contains("*")) {
+                String patternString = "^" + path.replaceAll("\\*", ".*");
+                if (!path.endsWith("$")) {
+                    patternString += ".*$";
+                }
+                pattern = Pattern.compile(patternString);
+            } else {
+                pattern = null;
+            }
+        }
+
+        /**
+         * Remove the trailing wildcard of a path, which matches like no wildcard.
+         */
+        static String normalizePath(String path) {
+            if (path.endsWith("*")) {
+                return path.substring(0, path.length() - 1);
+            }
+            return path;
+        }
+
+        DirectiveGroup.MatchedDirective comparePath(final String pathToCompare) {
+            if ("/".equals(path)) {
+                return new DirectiveGroup.MatchedDirective(1, this);
+            }
+
+            if (pattern != null) {
+                Matcher m = pattern.matcher(pathToCompare);
+                if (m.matches()) {
+                    return new DirectiveGroup.MatchedDirective(path.length(), this);
+                }
+            } else if (pathToCompare.startsWith(path)) {
+                return new DirectiveGroup.MatchedDirective(path.length(), this);
+            }
+
+            return new DirectiveGroup.MatchedDirective(-1, this);
+        }
+
+        public DirectiveType getType() {
+            return type;
+        }
+
+        /**
+         * @return the path pattern without any trailing wildcard
+         */
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return "Directive{" + type + ": " + path + '}';
+        }
+
+    }
+
+//    public static class NonGroupField {
+//
+//        private final String name;
+//
+//        private final String value;
+//
+//        public NonGroupField(String name, String value) {
+//            this.name = name;
+//            this.value = value;
+//        }
+//
+//        public String getName() {
+//            return name;
+//        }
+//
+//        public String getValue() {
+//            return value;
+//        }
+//
+//        @Override
+//        public String toString() {
+//            final StringBuffer sb = new StringBuffer("NonGroupField{");
+//            sb.append("name='").append(name).append('\'');
+//            sb.append(", value='").append(value).append('\'');
+//            sb.append('}');
+//            return sb.toString();
+//        }
+//    }
+}
@@ -21,6 +21,7 @@ import no.nb.nna.veidemann.robots.RobotstxtParserBaseListener;
 import no.nb.nna.veidemann.robotsparser.RobotsTxt.Directive;
 import no.nb.nna.veidemann.robotsparser.RobotsTxt.DirectiveGroup;
 import no.nb.nna.veidemann.robotsparser.RobotsTxt.DirectiveType;
+import io.prometheus.client.Counter;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
@@ -36,7 +37,54 @@ import java.io.Reader;
 public class RobotsTxtParser {
     private static final Logger LOG = LoggerFactory.getLogger(RobotsTxtParser.class);
 
+    static final Counter GROUPS = Counter.build()
+            .name("robots_parser_groups_total")
+            .help("Number of robots.txt groups parsed and not shared with an identical group, by whether their "
+                    + "directives were compiled while parsing or left for the first lookup")
+            .labelNames("compilation")
+            .register();
+
+    static final Counter COMPILED_LAZY_GROUPS = Counter.build()
+            .name("robots_parser_lazy_groups_compiled_total")
+            .help("Number of lazily parsed robots.txt groups compiled because a lookup resolved to them")
+            .register();
+
+    private final boolean lazyGroups;
+
+    private final DirectiveGroupInternTable groups;
+
     public RobotsTxtParser() {
+        this(false);
+    }
+
+    /**
+     * Create a parser.
+     * <p>
+     * With lazy groups the directives of a group are kept as text, and only compiled the first time a lookup
+     * resolves to the group. Robots.txt files often have many groups for other crawlers which are never looked up,
+     * and their path patterns then never cost time or heap. The number of groups never compiled is the difference
+     * between the robots_parser_groups_total{compilation="lazy"} and robots_parser_lazy_groups_compiled_total
+     * metrics.
+     *
+     * @param lazyGroups true to compile the directives of a group on first use
+     */
+    public RobotsTxtParser(boolean lazyGroups) {
+        this(lazyGroups, null);
+    }
+
+    /**
+     * Create a parser which shares groups with other parsed files.
+     *
+     * @param lazyGroups true to compile the directives of a group on first use
+     * @param groups     the table of shared groups, or null to give each file its own groups
+     */
+    public RobotsTxtParser(boolean lazyGroups, DirectiveGroupInternTable groups) {
+        this.lazyGroups = lazyGroups;
+        this.groups = groups;
+    }
+
+    public boolean isLazyGroups() {
+        return lazyGroups;
     }
 
     public RobotsTxt parse(String robotsContent, String sourceName) {
@@ -62,7 +110,9 @@ public class RobotsTxtParser {
 
         ParseTree p = parser.robotstxt();
         ParseTreeWalker walker = new ParseTreeWalker();
-        walker.walk(new RobotsListener(robotsTxt), p);
+        RobotsListener listener = new RobotsListener(robotsTxt, lazyGroups, groups);
+        walker.walk(listener, p);
+        GROUPS.labels(lazyGroups ? "lazy" : "eager").inc(listener.newGroups);
 
         if (!robotsTxt.errors.isEmpty()) {
             LOG.info("Errors found in {}:\n    {}", sourceName, String.join("\n    ", robotsTxt.errors));
@@ -90,8 +140,16 @@ public class RobotsTxtParser {
 
         final RobotsTxt robotsTxt;
 
-        public RobotsListener(RobotsTxt robotsTxt) {
+        final boolean lazyGroups;
+
+        final DirectiveGroupInternTable groups;
+
+        int newGroups;
+
+        public RobotsListener(RobotsTxt robotsTxt, boolean lazyGroups, DirectiveGroupInternTable groups) {
             this.robotsTxt = robotsTxt;
+            this.lazyGroups = lazyGroups;
+            this.groups = groups;
         }
 
         @Override
@@ -153,18 +211,30 @@ public class RobotsTxtParser {
         public void enterPathmemberfield(RobotstxtParser.PathmemberfieldContext ctx) {
             if (ctx.pathmembertype() != null && ctx.pathvalue() != null) {
                 if (ctx.pathmembertype().ALLOW() != null) {
-                    currentDirective.addDirective(new Directive(DirectiveType.ALLOW, ctx.pathvalue().getText()));
+                    addDirective(DirectiveType.ALLOW, ctx.pathvalue().getText());
                 }
                 if (ctx.pathmembertype().DISALLOW() != null) {
-                    currentDirective.addDirective(new Directive(DirectiveType.DISALLOW, ctx.pathvalue().getText()));
+                    addDirective(DirectiveType.DISALLOW, ctx.pathvalue().getText());
                 }
             }
         }
 
+        private void addDirective(DirectiveType type, String path) {
+            if (lazyGroups) {
+                currentDirective.addUncompiledDirective(type, path);
+            } else {
+                currentDirective.addDirective(new Directive(type, path));
+            }
+        }
+
         @Override
         public void exitEntry(RobotstxtParser.EntryContext ctx) {
             if (currentDirective != null) {
-                robotsTxt.directives.add(currentDirective);
+                DirectiveGroup group = groups == null ? currentDirective : groups.intern(currentDirective);
+                if (group == currentDirective) {
+                    newGroups++;
+                }
+                robotsTxt.directives.add(group);
                 currentDirective = null;
             }
         }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsparser;
+
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ *
+ */
+public class DirectiveGroupInternTableTest {
+
+    private static final String SHARED_GROUP = "User-agent: *\n"
+            + "Disallow: /wp-admin/\n"
+            + "Allow: /wp-admin/admin-ajax.php\n"
+            + "Crawl-delay: 2\n";
+
+    @Test
+    public void testIdenticalGroupsAreShared() throws MalformedURLException {
+        DirectiveGroupInternTable table = new DirectiveGroupInternTable();
+        RobotsTxtParser parser = new RobotsTxtParser(false, table);
+
+        RobotsTxt first = parser.parse("User-agent: foo\nDisallow: /\n\n" + SHARED_GROUP
+                + "Sitemap: http://first.example.com/sitemap.xml\n", "first");
+        RobotsTxt second = parser.parse(SHARED_GROUP + "\nUser-agent: bar\nDisallow: /private\n\n"
+                + "Sitemap: http://second.example.com/sitemap.xml\n", "second");
+
+        assertThat(first.getDirectiveGroups().get(1)).isSameAs(second.getDirectiveGroups().get(0));
+        assertThat(first.getDirectiveGroups().get(0)).isNotSameAs(second.getDirectiveGroups().get(1));
+        assertThat(table.size()).isEqualTo(3);
+
+        // The shared group answers for each file with that file's own sitemaps
+        URL uri = new URL("http://example.com/wp-admin/index.php");
+        IsAllowedReply firstReply = first.isAllowed("veidemann", uri);
+        IsAllowedReply secondReply = second.isAllowed("veidemann", uri);
+        assertThat(firstReply.getIsAllowed()).isFalse();
+        assertThat(firstReply.getCrawlDelay()).isEqualTo(2f);
+        assertThat(firstReply.getSitemapList()).containsExactly("http://first.example.com/sitemap.xml");
+        assertThat(secondReply.getIsAllowed()).isFalse();
+        assertThat(secondReply.getSitemapList()).containsExactly("http://second.example.com/sitemap.xml");
+    }
+
+    @Test
+    public void testDifferentGroupsAreNotShared() {
+        DirectiveGroupInternTable table = new DirectiveGroupInternTable();
+        RobotsTxtParser parser = new RobotsTxtParser(false, table);
+
+        RobotsTxt base = parser.parse(SHARED_GROUP, "base");
+        RobotsTxt otherDelay = parser.parse(SHARED_GROUP.replace("Crawl-delay: 2", "Crawl-delay: 3"), "delay");
+        RobotsTxt otherPath = parser.parse(SHARED_GROUP.replace("/wp-admin/\n", "/wp-login/\n"), "path");
+        RobotsTxt otherType = parser.parse(SHARED_GROUP.replace("Disallow: /wp-admin/", "Allow: /wp-admin/"), "type");
+        RobotsTxt otherAgent = parser.parse(SHARED_GROUP.replace("User-agent: *", "User-agent: foo"), "agent");
+
+        assertFirstGroupsDistinct(base, otherDelay, otherPath, otherType, otherAgent);
+        assertThat(table.size()).isEqualTo(5);
+    }
+
+    @Test
+    public void testLazyGroupsAreSharedUncompiled() throws MalformedURLException {
+        DirectiveGroupInternTable table = new DirectiveGroupInternTable();
+        RobotsTxtParser parser = new RobotsTxtParser(true, table);
+
+        RobotsTxt first = parser.parse(SHARED_GROUP, "first");
+        RobotsTxt second = parser.parse(SHARED_GROUP + "\nSitemap: http://second.example.com/sitemap.xml\n", "second");
+
+        RobotsTxt.DirectiveGroup group = first.getDirectiveGroups().get(0);
+        assertThat(second.getDirectiveGroups().get(0)).isSameAs(group);
+        assertThat(group.isCompiled()).isFalse();
+
+        assertThat(second.isAllowed("veidemann", new URL("http://example.com/wp-admin/admin-ajax.php"))
+                .getIsAllowed()).isTrue();
+        assertThat(group.isCompiled()).isTrue();
+        assertThat(first.isAllowed("veidemann", new URL("http://example.com/wp-admin/admin-ajax.php"))
+                .getSitemapList()).isEmpty();
+    }
+
+    private static void assertFirstGroupsDistinct(RobotsTxt... files) {
+        for (int i = 0; i < files.length; i++) {
+            for (int j = i + 1; j < files.length; j++) {
+                assertThat(files[i].getDirectiveGroups().get(0))
+                        .as("%s and %s", files[i].sourceName, files[j].sourceName)
+                        .isNotSameAs(files[j].getDirectiveGroups().get(0));
+            }
+        }
+    }
+}
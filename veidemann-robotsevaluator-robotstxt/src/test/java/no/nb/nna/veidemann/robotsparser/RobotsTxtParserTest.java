@@ -21,6 +21,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -61,4 +63,35 @@ public class RobotsTxtParserTest {
         assertThat(robots.isAllowed(BOT1, allowed).getIsAllowed()).isTrue();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void lazyGroupsAreCompiledOnFirstUse() throws IOException {
+        RobotsTxtParser parser = new RobotsTxtParser(true);
+        RobotsTxt robots = parser.parse("user-agent: googlebot\ndisallow: /denied\n\n"
+                + "user-agent: otherbot\ndisallow: /*.pdf$\n\n"
+                + "user-agent: *\nallow: /denied/open\ndisallow: /denied\n", "lazy");
+
+        assertThat(robots.getDirectiveGroups()).hasSize(3).noneMatch(RobotsTxt.DirectiveGroup::isCompiled);
+
+        // Counting directives, like when tagging a traced load, doesn't compile the groups
+        assertThat(robots.getDirectiveGroups()).extracting(RobotsTxt.DirectiveGroup::getDirectiveCount)
+                .containsExactly(1, 1, 2);
+        assertThat(robots.getDirectiveGroups()).noneMatch(RobotsTxt.DirectiveGroup::isCompiled);
+
+        // Listing directives, like the admin api does, doesn't compile the groups either
+        List<String> listed = new ArrayList<>();
+        robots.getDirectiveGroups().get(1).forEachDirective((type, path) -> listed.add(type + " " + path));
+        assertThat(listed).containsExactly("DISALLOW /*.pdf$");
+        assertThat(robots.getDirectiveGroups()).noneMatch(RobotsTxt.DirectiveGroup::isCompiled);
+
+        assertThat(robots.isAllowed(BOT1, new URL("http://example.com/denied")).getIsAllowed()).isFalse();
+        assertThat(robots.isAllowed(BOT2, new URL("http://example.com/denied/open")).getIsAllowed()).isTrue();
+        assertThat(robots.isAllowed(BOT2, new URL("http://example.com/denied")).getIsAllowed()).isFalse();
+        assertThat(robots.getDirectiveGroups()).extracting(RobotsTxt.DirectiveGroup::isCompiled)
+                .containsExactly(true, false, true);
+
+        // Directives are compiled in the order they were written
+        assertThat(robots.getDirectiveGroups().get(2).getDirectives())
+                .extracting(RobotsTxt.Directive::getType)
+                .containsExactly(RobotsTxt.DirectiveType.ALLOW, RobotsTxt.DirectiveType.DISALLOW);
+    }
+}
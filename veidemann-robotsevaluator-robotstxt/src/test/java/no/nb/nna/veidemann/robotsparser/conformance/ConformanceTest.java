@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser.conformance;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the matchers against the checked-in RFC 9309 conformance vectors.
+ * <p>
+ * The reference matcher predates RFC 9309 and disagrees with it on a number of vectors. Those are listed in
+ * reference-deviations.txt, and the test fails both on new deviations and on listed vectors which now pass, so the
+ * list has to be kept in step with changes to the matcher.
+ */
+public class ConformanceTest {
+
+    static final String DEVIATIONS = "/conformance/reference-deviations.txt";
+
+    private static List<ConformanceVectors.Case> vectors;
+
+    @BeforeClass
+    public static void loadVectors() {
+        vectors = ConformanceVectors.load();
+    }
+
+    @Test
+    public void vectorsAreNotEmpty() {
+        assertThat(vectors.stream().mapToInt(c -> c.checks.size()).sum()).isGreaterThan(3000);
+    }
+
+    @Test
+    public void oracleAgreesWithVectors() {
+        assertThat(mismatches(new Rfc9309Engine(), vectors)).isEmpty();
+    }
+
+    @Test
+    public void referenceDeviatesOnlyWhereListed() {
+        assertThat(mismatches(MatchEngine.REFERENCE, vectors)).isEqualTo(loadDeviations());
+    }
+
+    @Test
+    public void optimizedEnginesAgreeWithReference() {
+        for (MatchEngine<?> engine : MatchEngine.OPTIMIZED) {
+            assertThat(disagreements(engine, MatchEngine.REFERENCE, vectors)).as(engine.getName()).isEmpty();
+        }
+    }
+
+    /**
+     * Returns the checks where the engine gives another answer than the expected one, as caseId#checkIndex.
+     */
+    static <T> Set<String> mismatches(MatchEngine<T> engine, List<ConformanceVectors.Case> cases) {
+        Set<String> result = new TreeSet<>();
+        for (ConformanceVectors.Case c : cases) {
+            T compiled = engine.compile(c.robotsTxt);
+            for (int i = 0; i < c.checks.size(); i++) {
+                ConformanceVectors.Check check = c.checks.get(i);
+                if (engine.isAllowed(compiled, check.userAgent, check.toUrl()) != check.allowed) {
+                    result.add(c.id + "#" + i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the checks where two engines give different answers, with the robots.txt and url for diagnosis.
+     */
+    static <T, U> Set<String> disagreements(MatchEngine<T> engine, MatchEngine<U> reference,
+                                            List<ConformanceVectors.Case> cases) {
+        Set<String> result = new TreeSet<>();
+        for (ConformanceVectors.Case c : cases) {
+            T compiled = engine.compile(c.robotsTxt);
+            U expected = reference.compile(c.robotsTxt);
+            for (int i = 0; i < c.checks.size(); i++) {
+                ConformanceVectors.Check check = c.checks.get(i);
+                if (engine.isAllowed(compiled, check.userAgent, check.toUrl())
+                        != reference.isAllowed(expected, check.userAgent, check.toUrl())) {
+                    result.add(c.id + "#" + i + " " + check.userAgent + " " + check.url
+                            + "\n" + c.robotsTxt);
+                }
+            }
+        }
+        return result;
+    }
+
+    static Set<String> loadDeviations() {
+        Set<String> result = new TreeSet<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                ConformanceTest.class.getResourceAsStream(DEVIATIONS), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    result.add(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser.conformance;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads, writes and generates the conformance vectors in src/test/resources/conformance/rfc9309-vectors.tsv.
+ * <p>
+ * The file is a list of cases. A case is a line {@code R <id> <robots.txt>} followed by one line
+ * {@code C <user agent> <url> <ALLOW|DISALLOW>} per check. Fields are tab separated and the robots.txt is escaped
+ * with {@code \n}, {@code \r}, {@code \t} and {@code \\}.
+ * <p>
+ * The vectors are the examples from RFC 9309 and Google's robots.txt documentation, followed by generated cases
+ * exercising the same features in combination. Expected results come from {@link Rfc9309Engine}. Regenerate with
+ * {@link #main(String[])} when the generator changes, and review the diff.
+ */
+public class ConformanceVectors {
+
+    public static final String RESOURCE = "/conformance/rfc9309-vectors.tsv";
+
+    static final long SEED = 9309L;
+
+    static final int GENERATED_CASES = 450;
+
+    static final int CHECKS_PER_CASE = 8;
+
+    private static final String[] AGENT_KEYS = {"User-agent", "user-agent", "User-Agent", "USER-AGENT"};
+
+    private static final String[] AGENT_VALUES = {"*", "*", "googlebot", "Googlebot", "googlebot-news", "FooBot",
+            "foobot", "barbot", "nlnbot", "veidemann", "unknownbot"};
+
+    private static final String[] CRAWLERS = {"Googlebot/2.1 (+http://www.google.com/bot.html)", "googlebot-news",
+            "Googlebot-Image/1.0", "FooBot/1.0", "foobot", "BarBot", "nlnbot/1.0 (+http://www.nb.no/)",
+            "veidemann/1.0", "otherbot/2.0"};
+
+    private static final String[] SEGMENTS = {"fish", "Fish", "folder", "page", "a", "ab", "example", "publications",
+            "cgi-bin", "%7Euser", "%7euser", "~user", "p"};
+
+    private static final String[] EXTENSIONS = {".php", ".html", ".htm", ".gif", ".ph"};
+
+    private static final String[] SUFFIXES = {"", "", "/", ".html", "x", "/page", "?id=1", "?q=fish", ".php?a=b"};
+
+    public static final class Check {
+        public final String userAgent;
+
+        public final String url;
+
+        public final boolean allowed;
+
+        Check(String userAgent, String url, boolean allowed) {
+            this.userAgent = userAgent;
+            this.url = url;
+            this.allowed = allowed;
+        }
+
+        public URL toUrl() {
+            return url(url);
+        }
+    }
+
+    public static final class Case {
+        public final String id;
+
+        public final String robotsTxt;
+
+        public final List<Check> checks = new ArrayList<>();
+
+        Case(String id, String robotsTxt) {
+            this.id = id;
+            this.robotsTxt = robotsTxt;
+        }
+    }
+
+    public static List<Case> load() {
+        try (InputStream in = ConformanceVectors.class.getResourceAsStream(RESOURCE)) {
+            return read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static List<Case> read(InputStream in) throws IOException {
+        List<Case> cases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if ("R".equals(fields[0])) {
+                cases.add(new Case(fields[1], unescape(fields[2])));
+            } else if ("C".equals(fields[0])) {
+                cases.get(cases.size() - 1).checks.add(new Check(fields[1], fields[2], "ALLOW".equals(fields[3])));
+            } else {
+                throw new IllegalArgumentException("Unknown line: " + line);
+            }
+        }
+        return cases;
+    }
+
+    static void write(List<Case> cases, PrintWriter out) {
+        out.println("# RFC 9309 conformance vectors, see ConformanceVectors for the format.");
+        out.println("# Generated by ConformanceVectors.main. Expected results are computed by Rfc9309Engine.");
+        for (Case c : cases) {
+            out.println("R\t" + c.id + "\t" + escape(c.robotsTxt));
+            for (Check check : c.checks) {
+                out.println("C\t" + check.userAgent + "\t" + check.url + "\t" + (check.allowed ? "ALLOW" : "DISALLOW"));
+            }
+        }
+    }
+
+    /**
+     * Generate a random case with checks aimed at the rules in it.
+     */
+    public static Case randomCase(Random random, String id, int checkCount, Rfc9309Engine oracle) {
+        StringBuilder sb = new StringBuilder();
+        List<String> patterns = new ArrayList<>();
+        int groups = 1 + random.nextInt(4);
+        for (int g = 0; g < groups; g++) {
+            if (g > 0 || random.nextBoolean()) {
+                sb.append(random.nextInt(3) == 0 ? "# group " + g + "\n" : "\n");
+            }
+            int agents = 1 + random.nextInt(2);
+            for (int a = 0; a < agents; a++) {
+                sb.append(pick(random, AGENT_KEYS)).append(random.nextBoolean() ? ": " : ":")
+                        .append(pick(random, AGENT_VALUES)).append('\n');
+            }
+            int rules = random.nextInt(6);
+            for (int r = 0; r < rules; r++) {
+                String pattern = randomPattern(random);
+                patterns.add(pattern);
+                sb.append(random.nextInt(3) == 0 ? "Allow" : "Disallow").append(": ").append(pattern);
+                if (random.nextInt(8) == 0) {
+                    sb.append(" # comment");
+                }
+                sb.append('\n');
+            }
+            if (random.nextInt(5) == 0) {
+                sb.append("Crawl-delay: ").append(1 + random.nextInt(10)).append('\n');
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            sb.append("\nSitemap: http://example.com/sitemap.xml\n");
+        }
+
+        Case c = new Case(id, sb.toString());
+        List<Rfc9309Engine.Group> compiled = oracle.compile(c.robotsTxt);
+        for (int i = 0; i < checkCount; i++) {
+            String path = !patterns.isEmpty() && random.nextInt(4) != 0
+                    ? pathFromPattern(random, patterns.get(random.nextInt(patterns.size())))
+                    : randomPath(random);
+            String userAgent = pick(random, CRAWLERS);
+            String url = "http://example.com" + path;
+            c.checks.add(new Check(userAgent, url, oracle.isAllowed(compiled, userAgent, url(url))));
+        }
+        return c;
+    }
+
+    static String randomPattern(Random random) {
+        String base = randomPath(random);
+        switch (random.nextInt(10)) {
+            case 0:
+                return base + "/";
+            case 1:
+                return "/*" + pick(random, EXTENSIONS);
+            case 2:
+                return "/*" + pick(random, EXTENSIONS) + "$";
+            case 3:
+                return base + "*";
+            case 4:
+                return base + "*" + pick(random, EXTENSIONS);
+            case 5:
+                return random.nextBoolean() ? "/" : "/$";
+            case 6:
+                return base + "?id=";
+            case 7:
+                return "*" + pick(random, EXTENSIONS) + "$";
+            default:
+                return base;
+        }
+    }
+
+    static String randomPath(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1 + random.nextInt(2);
+        for (int i = 0; i < depth; i++) {
+            sb.append('/').append(pick(random, SEGMENTS));
+        }
+        return sb.toString();
+    }
+
+    static String pathFromPattern(Random random, String pattern) {
+        String path = pattern.endsWith("$") ? pattern.substring(0, pattern.length() - 1) : pattern;
+        StringBuilder sb = new StringBuilder();
+        for (char c : path.toCharArray()) {
+            if (c == '*') {
+                sb.append(random.nextBoolean() ? "" : pick(random, SEGMENTS) + (random.nextBoolean() ? "/" : ""));
+            } else {
+                sb.append(c);
+            }
+        }
+        if (sb.length() == 0 || sb.charAt(0) != '/') {
+            sb.insert(0, '/');
+        }
+        if (!pattern.endsWith("$") || random.nextInt(3) == 0) {
+            sb.append(pick(random, SUFFIXES));
+        }
+        if (random.nextInt(10) == 0) {
+            // Change case to check that paths are case sensitive
+            return sb.toString().toUpperCase();
+        }
+        return sb.toString();
+    }
+
+    static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+
+    static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char n = value.charAt(++i);
+                switch (n) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    default:
+                        sb.append(n);
+                        break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cases taken from the examples in RFC 9309 and Google's robots.txt documentation.
+     */
+    static List<Case> documentedCases(Rfc9309Engine oracle) {
+        List<Case> cases = new ArrayList<>();
+
+        // RFC 9309 section 5.1
+        cases.add(documented(oracle, "rfc9309-5.1",
+                "User-Agent: *\n"
+                        + "Disallow: *.gif$\n"
+                        + "Disallow: /example/\n"
+                        + "Allow: /publications/\n"
+                        + "\n"
+                        + "User-Agent: foobot\n"
+                        + "Disallow:/\n"
+                        + "Allow:/example/page.html\n"
+                        + "Allow:/example/allowed.gif\n"
+                        + "\n"
+                        + "User-Agent: barbot\n"
+                        + "User-Agent: bazbot\n"
+                        + "Disallow: /example/page.html\n"
+                        + "\n"
+                        + "User-Agent: quxbot\n",
+                Arrays.asList("foobot", "FooBot/1.0", "barbot", "bazbot/2.0", "quxbot", "otherbot"),
+                Arrays.asList("/", "/example/page.html", "/example/allowed.gif", "/example/other.gif",
+                        "/example/page.html.old", "/publications/", "/publications/a.gif", "/images/b.gif",
+                        "/images/b.gif?x=1", "/robots.txt")));
+
+        // RFC 9309 section 2.2.2, longest match and allow on a tie
+        cases.add(documented(oracle, "rfc9309-2.2.2",
+                "User-Agent: *\n"
+                        + "Allow: /example/page/\n"
+                        + "Disallow: /example/page/disallowed.gif\n"
+                        + "Allow: /tie\n"
+                        + "Disallow: /tie\n",
+                Arrays.asList("anybot"),
+                Arrays.asList("/example/page/", "/example/page/disallowed.gif", "/example/page/allowed.gif",
+                        "/tie", "/tie/more")));
+
+        // RFC 9309 section 2.2.3, special characters
+        cases.add(documented(oracle, "rfc9309-2.2.3",
+                "User-Agent: *\n"
+                        + "Disallow: /path/file-with-a-*.html\n"
+                        + "Disallow: /path/foo-$\n"
+                        + "Disallow: /foo/bar?baz=quz\n"
+                        + "Disallow: /foo/bar/%E3%83%84\n"
+                        + "Disallow: /bar/%7esomeone\n",
+                Arrays.asList("anybot"),
+                Arrays.asList("/path/file-with-a-wildcard.html", "/path/file-with-a-.html", "/path/file-with-a-x.htm",
+                        "/path/foo-", "/path/foo-bar", "/foo/bar?baz=quz", "/foo/bar?baz=other",
+                        "/foo/bar/%E3%83%84", "/foo/bar/%e3%83%84", "/bar/%7Esomeone", "/bar/%7esomeone/more")));
+
+        // Google, order of precedence for rules
+        String[][] precedence = {
+                {"Allow: /p\nDisallow: /\n", "/page"},
+                {"Allow: /folder\nDisallow: /folder\n", "/folder/page"},
+                {"Allow: /page\nDisallow: /*.htm\n", "/page.htm"},
+                {"Allow: /page\nDisallow: /*.ph\n", "/page.php"},
+                {"Allow: /$\nDisallow: /\n", "/"},
+                {"Allow: /$\nDisallow: /\n", "/page.htm"},
+        };
+        for (int i = 0; i < precedence.length; i++) {
+            cases.add(documented(oracle, "google-precedence-" + (i + 1), "user-agent: *\n" + precedence[i][0],
+                    Arrays.asList("Googlebot/2.1"), Arrays.asList(precedence[i][1])));
+        }
+
+        // Google, path matching examples
+        String[][] paths = {
+                {"/fish", "/fish", "/fish.html", "/fish/salmon.html", "/fishheads", "/fishheads/yummy.html",
+                        "/fish.php?id=anything", "/Fish.asp", "/catfish", "/?id=fish", "/desert/fish"},
+                {"/fish*", "/fish", "/fish.html", "/fish/salmon.html", "/fishheads", "/Fish.asp", "/catfish"},
+                {"/fish/", "/fish/", "/fish/?id=anything", "/fish/salmon.htm", "/fish", "/fish.html",
+                        "/animals/fish/", "/Fish/Salmon.asp"},
+                {"/*.php", "/index.php", "/filename.php", "/folder/filename.php", "/folder/filename.php?parameters",
+                        "/folder/any.php.file.html", "/filename.php/", "/", "/windows.PHP"},
+                {"/*.php$", "/filename.php", "/folder/filename.php", "/filename.php?parameters", "/filename.php/",
+                        "/filename.php5", "/windows.PHP"},
+                {"/fish*.php", "/fish.php", "/fishheads/catfish.php?parameters", "/Fish.PHP"},
+        };
+        for (String[] p : paths) {
+            cases.add(documented(oracle, "google-path-" + p[0].replaceAll("[^a-z]", ""),
+                    "user-agent: *\ndisallow: " + p[0] + "\n",
+                    Arrays.asList("Googlebot/2.1"), Arrays.asList(p).subList(1, p.length)));
+        }
+
+        // Google, user agent groups
+        cases.add(documented(oracle, "google-groups",
+                "user-agent: googlebot-news\n"
+                        + "disallow: /news-only\n"
+                        + "\n"
+                        + "user-agent: *\n"
+                        + "disallow: /everyone\n"
+                        + "\n"
+                        + "user-agent: googlebot\n"
+                        + "disallow: /google-only\n",
+                Arrays.asList("googlebot-news", "Googlebot/2.1 (+http://www.google.com/bot.html)",
+                        "Googlebot-Image/1.0", "otherbot"),
+                Arrays.asList("/news-only", "/everyone", "/google-only")));
+
+        // Google, groups for the same user agent are merged
+        cases.add(documented(oracle, "google-merge",
+                "user-agent: googlebot-news\n"
+                        + "disallow: /fish\n"
+                        + "\n"
+                        + "user-agent: *\n"
+                        + "disallow: /carrots\n"
+                        + "\n"
+                        + "user-agent: googlebot-news\n"
+                        + "disallow: /shrimp\n",
+                Arrays.asList("googlebot-news", "otherbot"),
+                Arrays.asList("/fish", "/shrimp", "/carrots")));
+
+        return cases;
+    }
+
+    private static Case documented(Rfc9309Engine oracle, String id, String robotsTxt, List<String> userAgents,
+                                   List<String> paths) {
+        Case c = new Case(id, robotsTxt);
+        List<Rfc9309Engine.Group> compiled = oracle.compile(robotsTxt);
+        for (String userAgent : userAgents) {
+            for (String path : paths) {
+                String url = "http://example.com" + path;
+                c.checks.add(new Check(userAgent, url, oracle.isAllowed(compiled, userAgent, url(url))));
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Regenerate the vectors.
+     *
+     * @param args the file to write, defaults to the file in src/test/resources
+     */
+    public static void main(String[] args) throws IOException {
+        String file = args.length > 0 ? args[0] : "src/test/resources" + RESOURCE;
+        Rfc9309Engine oracle = new Rfc9309Engine();
+        Random random = new Random(SEED);
+
+        List<Case> cases = documentedCases(oracle);
+        for (int i = 0; i < GENERATED_CASES; i++) {
+            cases.add(randomCase(random, "generated-" + i, CHECKS_PER_CASE, oracle));
+        }
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            write(cases, out);
+        }
+        System.out.printf("Wrote %d cases with %d checks to %s%n", cases.size(),
+                cases.stream().mapToInt(c -> c.checks.size()).sum(), file);
+    }
+}
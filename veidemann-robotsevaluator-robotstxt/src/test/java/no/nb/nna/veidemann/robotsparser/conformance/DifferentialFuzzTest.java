@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser.conformance;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the optimized matchers with the reference matcher on randomly generated robots.txt files, and reports the
+ * cost per evaluation of every matcher on the conformance vectors.
+ * <p>
+ * The seed is fixed to keep the build reproducible. Set the system property conformance.seed to explore other cases,
+ * a failure prints the seed and the cases needed to reproduce it.
+ */
+public class DifferentialFuzzTest {
+    private static final Logger LOG = LoggerFactory.getLogger(DifferentialFuzzTest.class);
+
+    private static final int FUZZ_CASES = 2000;
+
+    private static final int FUZZ_CHECKS_PER_CASE = 16;
+
+    private static final int TIMING_ROUNDS = 5;
+
+    @Test
+    public void optimizedEnginesAgreeWithReferenceOnRandomCases() {
+        long seed = Long.getLong("conformance.seed", ConformanceVectors.SEED + 1);
+        Random random = new Random(seed);
+        Rfc9309Engine oracle = new Rfc9309Engine();
+
+        List<ConformanceVectors.Case> cases = new ArrayList<>();
+        for (int i = 0; i < FUZZ_CASES; i++) {
+            cases.add(ConformanceVectors.randomCase(random, "fuzz-" + i, FUZZ_CHECKS_PER_CASE, oracle));
+        }
+
+        for (MatchEngine<?> engine : MatchEngine.OPTIMIZED) {
+            assertThat(ConformanceTest.disagreements(engine, MatchEngine.REFERENCE, cases))
+                    .as("%s with -Dconformance.seed=%d", engine.getName(), seed)
+                    .isEmpty();
+        }
+    }
+
+    @Test
+    public void reportNanosPerEvaluation() {
+        List<ConformanceVectors.Case> vectors = ConformanceVectors.load();
+
+        List<MatchEngine<?>> engines = new ArrayList<>();
+        engines.add(MatchEngine.REFERENCE);
+        engines.add(new Rfc9309Engine());
+        engines.addAll(MatchEngine.OPTIMIZED);
+
+        for (MatchEngine<?> engine : engines) {
+            Timing timing = time(engine, vectors);
+            LOG.info(String.format("%-12s compile %8.0f ns/op, isAllowed %8.0f ns/op",
+                    engine.getName(), timing.compileNanosPerOp, timing.matchNanosPerOp));
+        }
+    }
+
+    static final class Timing {
+        final double compileNanosPerOp;
+
+        final double matchNanosPerOp;
+
+        Timing(double compileNanosPerOp, double matchNanosPerOp) {
+            this.compileNanosPerOp = compileNanosPerOp;
+            this.matchNanosPerOp = matchNanosPerOp;
+        }
+    }
+
+    /**
+     * Times compile and isAllowed separately over all vectors. The first round warms up and is not counted.
+     */
+    static <T> Timing time(MatchEngine<T> engine, List<ConformanceVectors.Case> vectors) {
+        List<T> compiled = new ArrayList<>(vectors.size());
+        List<List<URL>> urls = new ArrayList<>(vectors.size());
+        for (ConformanceVectors.Case c : vectors) {
+            List<URL> caseUrls = new ArrayList<>(c.checks.size());
+            c.checks.forEach(check -> caseUrls.add(check.toUrl()));
+            urls.add(caseUrls);
+        }
+
+        long compileNanos = 0;
+        long compileOps = 0;
+        long matchNanos = 0;
+        long matchOps = 0;
+        int allowed = 0;
+        for (int round = 0; round <= TIMING_ROUNDS; round++) {
+            compiled.clear();
+            long start = System.nanoTime();
+            for (ConformanceVectors.Case c : vectors) {
+                compiled.add(engine.compile(c.robotsTxt));
+            }
+            long compileEnd = System.nanoTime();
+            for (int i = 0; i < vectors.size(); i++) {
+                T robots = compiled.get(i);
+                List<ConformanceVectors.Check> checks = vectors.get(i).checks;
+                for (int j = 0; j < checks.size(); j++) {
+                    if (engine.isAllowed(robots, checks.get(j).userAgent, urls.get(i).get(j))) {
+                        allowed++;
+                    }
+                }
+            }
+            long matchEnd = System.nanoTime();
+            if (round > 0) {
+                compileNanos += compileEnd - start;
+                compileOps += vectors.size();
+                matchNanos += matchEnd - compileEnd;
+                matchOps += urls.stream().mapToInt(List::size).sum();
+            }
+        }
+        // Keep the results alive
+        assertThat(allowed).isGreaterThan(0);
+        return new Timing((double) compileNanos / compileOps, (double) matchNanos / matchOps);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser.conformance;
+
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A robots.txt matcher under test.
+ * <p>
+ * Optimized matchers are added to {@link #OPTIMIZED} and are then required to agree with {@link #REFERENCE} on every
+ * conformance vector and fuzzed case.
+ *
+ * @param <T> the compiled form of a robots.txt
+ */
+public interface MatchEngine<T> {
+
+    /**
+     * The matcher used by the evaluator today.
+     */
+    MatchEngine<RobotsTxt> REFERENCE = new MatchEngine<RobotsTxt>() {
+        private final RobotsTxtParser parser = new RobotsTxtParser();
+
+        @Override
+        public String getName() {
+            return "reference";
+        }
+
+        @Override
+        public RobotsTxt compile(String robotsTxt) {
+            return parser.parse(robotsTxt, "conformance");
+        }
+
+        @Override
+        public boolean isAllowed(RobotsTxt compiled, String userAgent, URL url) {
+            return compiled.isAllowed(userAgent, url).getIsAllowed();
+        }
+    };
+
+    /**
+     * Matchers which must give the same answers as the reference matcher.
+     */
+    List<MatchEngine<?>> OPTIMIZED = Arrays.asList(
+            new MatchEngine<RobotsTxt>() {
+                private final RobotsTxtParser parser = new RobotsTxtParser(true);
+
+                @Override
+                public String getName() {
+                    return "lazy-groups";
+                }
+
+                @Override
+                public RobotsTxt compile(String robotsTxt) {
+                    return parser.parse(robotsTxt, "conformance");
+                }
+
+                @Override
+                public boolean isAllowed(RobotsTxt compiled, String userAgent, URL url) {
+                    return compiled.isAllowed(userAgent, url).getIsAllowed();
+                }
+            });
+
+    String getName();
+
+    T compile(String robotsTxt);
+
+    boolean isAllowed(T compiled, String userAgent, URL url);
+}
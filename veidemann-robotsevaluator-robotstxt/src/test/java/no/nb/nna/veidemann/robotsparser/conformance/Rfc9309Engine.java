@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsparser.conformance;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A straightforward implementation of RFC 9309 used as the oracle for the expected results in the conformance vectors.
+ * <p>
+ * Written for clarity, not speed:
+ * <ul>
+ * <li>Consecutive user-agent lines start a group, groups for the same product token are merged</li>
+ * <li>A crawler obeys the groups naming its product token, case insensitive, or else the '*' groups</li>
+ * <li>Rules are matched against path and query, the longest matching pattern wins, allow wins a tie</li>
+ * <li>'*' matches any sequence of characters and a trailing '$' anchors the pattern</li>
+ * <li>Percent-encoded octets are compared case insensitive and /robots.txt is always allowed</li>
+ * </ul>
+ */
+public class Rfc9309Engine implements MatchEngine<List<Rfc9309Engine.Group>> {
+
+    static final class Rule {
+        final boolean allow;
+
+        final String pattern;
+
+        Rule(boolean allow, String pattern) {
+            this.allow = allow;
+            this.pattern = normalize(pattern);
+        }
+    }
+
+    static final class Group {
+        final List<String> agents = new ArrayList<>();
+
+        final List<Rule> rules = new ArrayList<>();
+    }
+
+    @Override
+    public String getName() {
+        return "rfc9309";
+    }
+
+    @Override
+    public List<Group> compile(String robotsTxt) {
+        List<Group> groups = new ArrayList<>();
+        Group current = null;
+        boolean inRules = false;
+        for (String line : robotsTxt.split("\r\n|\r|\n")) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            switch (key) {
+                case "user-agent":
+                    if (current == null || inRules) {
+                        current = new Group();
+                        groups.add(current);
+                        inRules = false;
+                    }
+                    current.agents.add(value.equals("*") ? "*" : productToken(value));
+                    break;
+                case "allow":
+                case "disallow":
+                    if (current != null) {
+                        inRules = true;
+                        if (!value.isEmpty()) {
+                            current.rules.add(new Rule(key.equals("allow"), value));
+                        }
+                    }
+                    break;
+                default:
+                    // Other records neither end a group nor affect matching
+                    break;
+            }
+        }
+        return groups;
+    }
+
+    @Override
+    public boolean isAllowed(List<Group> groups, String userAgent, URL url) {
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        if ("/robots.txt".equals(path)) {
+            return true;
+        }
+        String target = normalize(url.getQuery() == null ? path : path + "?" + url.getQuery());
+
+        String token = productToken(userAgent);
+        List<Rule> rules = rulesFor(groups, token);
+        if (rules == null) {
+            rules = rulesFor(groups, "*");
+        }
+        if (rules == null) {
+            return true;
+        }
+
+        Rule best = null;
+        for (Rule rule : rules) {
+            if (matches(rule.pattern, target)) {
+                if (best == null || rule.pattern.length() > best.pattern.length()
+                        || (rule.pattern.length() == best.pattern.length() && rule.allow)) {
+                    best = rule;
+                }
+            }
+        }
+        return best == null || best.allow;
+    }
+
+    private static List<Rule> rulesFor(List<Group> groups, String agent) {
+        List<Rule> rules = null;
+        for (Group group : groups) {
+            if (group.agents.contains(agent)) {
+                if (rules == null) {
+                    rules = new ArrayList<>();
+                }
+                rules.addAll(group.rules);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * The product token is the leading run of letters, '-' and '_'.
+     */
+    static String productToken(String userAgent) {
+        int end = 0;
+        while (end < userAgent.length()) {
+            char c = userAgent.charAt(end);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-' || c == '_')) {
+                break;
+            }
+            end++;
+        }
+        return userAgent.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    static boolean matches(String pattern, String target) {
+        boolean anchored = pattern.endsWith("$");
+        if (anchored) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        return matches(pattern, 0, target, 0, anchored);
+    }
+
+    private static boolean matches(String pattern, int p, String target, int t, boolean anchored) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = t; i <= target.length(); i++) {
+                    if (matches(pattern, p + 1, target, i, anchored)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (t >= target.length() || target.charAt(t) != c) {
+                return false;
+            }
+            p++;
+            t++;
+        }
+        return !anchored || t == target.length();
+    }
+
+    /**
+     * Upper case the hex digits of percent-encoded octets so that %7e and %7E compare equal.
+     */
+    static String normalize(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length() && isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+                sb.append('%')
+                        .append(Character.toUpperCase(value.charAt(i + 1)))
+                        .append(Character.toUpperCase(value.charAt(i + 2)));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
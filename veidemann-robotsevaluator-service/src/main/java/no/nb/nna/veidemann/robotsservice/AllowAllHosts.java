@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Hosts known to have no robots.txt, kept as 64 bit fingerprints with an expiry time.
+ * <p>
+ * Most hosts have no robots.txt. In the main cache each of them costs a key, an entry and the cache's bookkeeping.
+ * Here each costs one slot of two longs in an open addressing table and two longs of tags, roughly 40 bytes with the
+ * table's spare room, and a lookup reads two array elements without creating any objects.
+ * <p>
+ * The tags are short hashes of the host name and the job execution, and a small Bloom filter of the domains the host
+ * is below, so that hosts can be removed by name, by domain or by job execution without knowing the other parts of
+ * their keys. Lookups don't read them.
+ * <p>
+ * Fingerprints are not compared with the hosts they were made from. Two keys with the same fingerprint would make
+ * one of them allow everything, but with 64 bits that is not expected to happen for a few million hosts.
+ * <p>
+ * The table is split in segments. Lookups are optimistic and only wait for a segment's lock if it was changed during
+ * the lookup. Expired fingerprints are dropped when a segment runs out of room.
+ */
+class AllowAllHosts {
+
+    private static final Counter EVENTS = Counter.build()
+            .name("robots_allow_all_hosts_events_total")
+            .help("Number of lookups answered from the set of hosts without robots.txt, and of hosts added to or "
+                    + "rejected by the full set")
+            .labelNames("event")
+            .register();
+
+    private static final Counter.Child HITS = EVENTS.labels("hit");
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("robots_allow_all_hosts")
+            .help("Number of hosts known to have no robots.txt")
+            .register();
+
+    static final int SEGMENTS = 64;
+
+    private static final long JOB_TAG_MASK = 0xffffffffL;
+
+    private static final long HOST_TAG_MASK = JOB_TAG_MASK << 32;
+
+    /**
+     * The number of bits set in the domain filter for each domain a host is below.
+     */
+    private static final int DOMAIN_BITS = 3;
+
+    private static final int INITIAL_SLOTS = 64;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final int maxSlots;
+
+    /**
+     * @param maxEntries the number of hosts to keep at most
+     */
+    AllowAllHosts(long maxEntries) {
+        long perSegment = Math.max(INITIAL_SLOTS / 2, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        // Room for the entries at a load factor of at most 3/4
+        maxSlots = (int) Math.min(1 << 29, Long.highestOneBit(perSegment * 4 / 3 - 1) << 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Check if a host is known to have no robots.txt.
+     *
+     * @param fingerprint the host's {@link #fingerprint}
+     * @param nowMillis   the current time
+     * @return true if the fingerprint is in the set and has not expired
+     */
+    boolean contains(long fingerprint, long nowMillis) {
+        fingerprint = nonZero(fingerprint);
+        if (segmentFor(fingerprint).expiresAt(fingerprint) > nowMillis) {
+            HITS.inc();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember a host without robots.txt.
+     *
+     * @param fingerprint     the host's {@link #fingerprint}
+     * @param expiresAtMillis when the host should be checked for robots.txt again
+     * @param tag             the host's {@link #tag}
+     * @param domains         the host's {@link #domains}
+     */
+    void add(long fingerprint, long expiresAtMillis, long tag, long domains) {
+        fingerprint = nonZero(fingerprint);
+        if (segmentFor(fingerprint).put(fingerprint, expiresAtMillis, tag, domains, maxSlots)) {
+            EVENTS.labels("added").inc();
+        } else {
+            EVENTS.labels("rejected").inc();
+        }
+    }
+
+    void remove(long fingerprint) {
+        fingerprint = nonZero(fingerprint);
+        segmentFor(fingerprint).remove(fingerprint);
+    }
+
+    /**
+     * Remove all hosts with a host name, a job execution or both. Scans the whole set.
+     * <p>
+     * The names are compared by their hashes, so a host which only shares the hash is removed as well. It is then
+     * checked for robots.txt the next time it is looked up.
+     *
+     * @param domain         the host name, or null for all hosts
+     * @param jobExecutionId the job execution id, or null for all job executions
+     * @return the number of hosts removed
+     */
+    int removeMatching(String domain, String jobExecutionId) {
+        long mask = (domain == null ? 0 : HOST_TAG_MASK) | (jobExecutionId == null ? 0 : JOB_TAG_MASK);
+        return removeMatching(mask, tag(domain, jobExecutionId) & mask, 0);
+    }
+
+    /**
+     * Remove all hosts below a domain, optionally only for one job execution. Scans the whole set.
+     * <p>
+     * The domains are compared by a Bloom filter, so a small share of the other hosts is removed as well. They are
+     * then checked for robots.txt the next time they are looked up.
+     *
+     * @param domain         the domain, whose subdomains are removed but not the domain itself
+     * @param jobExecutionId the job execution id, or null for all job executions
+     * @return the number of hosts removed
+     */
+    int removeBelow(String domain, String jobExecutionId) {
+        long mask = jobExecutionId == null ? 0 : JOB_TAG_MASK;
+        return removeMatching(mask, tag(null, jobExecutionId) & mask, domainBits(domain));
+    }
+
+    private int removeMatching(long mask, long value, long domainBits) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            removed += segment.removeMatching(mask, value, domainBits);
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of fingerprints, including expired ones not dropped yet
+     */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Make a fingerprint of the parts of a {@link RobotsCache.CacheKey} which make it equal to other keys.
+     */
+    static long fingerprint(String protocol, String domain, int port, String jobExecutionId, boolean hostOnly) {
+        long h = 0xcbf29ce484222325L;
+        if (!hostOnly) {
+            h = hash(h, protocol);
+            h = (h ^ port) * 0x100000001b3L;
+        }
+        h = hash(h, domain);
+        h = hash(h, jobExecutionId);
+        // Murmur3 finalizer, so that both the segment and the slot bits are well spread
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Make the tags of a host, a 32 bit hash of the host name followed by one of the job execution id.
+     */
+    static long tag(String domain, String jobExecutionId) {
+        return (fold(hash(0xcbf29ce484222325L, domain)) << 32) | fold(hash(0xcbf29ce484222325L, jobExecutionId));
+    }
+
+    /**
+     * Make the domain filter of a host, with bits set for each domain the host is below. A host is not below itself.
+     */
+    static long domains(String host) {
+        long domains = 0;
+        for (int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+            domains |= domainBits(host.substring(dot + 1));
+        }
+        return domains;
+    }
+
+    private static long domainBits(String domain) {
+        long h = fingerprint(null, domain, 0, null, true);
+        long bits = 0;
+        for (int i = 0; i < DOMAIN_BITS; i++) {
+            bits |= 1L << (h >>> (6 * i));
+        }
+        return bits;
+    }
+
+    private static long fold(long h) {
+        return (h ^ (h >>> 32)) & JOB_TAG_MASK;
+    }
+
+    /**
+     * FNV-1a of a string's chars, with a separator so that adjacent strings can't run into each other.
+     */
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return (h ^ 0xff) * 0x100000001b3L;
+    }
+
+    /**
+     * Zero marks an empty slot, so it can't be used as a fingerprint.
+     */
+    private static long nonZero(long fingerprint) {
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private Segment segmentFor(long fingerprint) {
+        return segments[(int) (fingerprint >>> 58)];
+    }
+
+    /**
+     * An open addressing table with linear probing. Each slot is two longs, the fingerprint followed by the expiry
+     * time, in a single array so that a lookup always sees a consistent table. The tags and domain filters are kept in
+     * separate arrays with one long per slot, which are only used while holding the write lock.
+     */
+    private static final class Segment {
+
+        final StampedLock lock = new StampedLock();
+
+        long[] table = new long[INITIAL_SLOTS * 2];
+
+        long[] tags = new long[INITIAL_SLOTS];
+
+        long[] domains = new long[INITIAL_SLOTS];
+
+        int size;
+
+        long expiresAt(long fingerprint) {
+            long stamp = lock.tryOptimisticRead();
+            long expiresAt = find(table, fingerprint);
+            if (lock.validate(stamp)) {
+                return expiresAt;
+            }
+            stamp = lock.readLock();
+            try {
+                return find(table, fingerprint);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * @return the expiry time of the fingerprint, or 0 if it isn't in the table
+         */
+        private static long find(long[] table, long fingerprint) {
+            int slots = table.length >>> 1;
+            int mask = slots - 1;
+            int slot = (int) fingerprint & mask;
+            // Bounded, since a lookup racing with a change may see a table without empty slots
+            for (int i = 0; i < slots; i++) {
+                long found = table[slot << 1];
+                if (found == fingerprint) {
+                    return table[(slot << 1) + 1];
+                }
+                if (found == 0) {
+                    return 0;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        boolean put(long fingerprint, long expiresAtMillis, long tag, long domainFilter, int maxSlots) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotOf(table, fingerprint);
+                if (table[slot << 1] == fingerprint) {
+                    table[(slot << 1) + 1] = expiresAtMillis;
+                    tags[slot] = tag;
+                    domains[slot] = domainFilter;
+                    return true;
+                }
+                int slots = table.length >>> 1;
+                if ((size + 1) * 4L > slots * 3L) {
+                    // Drop expired fingerprints, and grow unless that left the table at most half full
+                    long now = System.currentTimeMillis();
+                    int live = countLive(now);
+                    int newSlots = live * 2L > slots && slots < maxSlots ? slots * 2 : slots;
+                    if ((live + 1) * 4L > newSlots * 3L) {
+                        return false;
+                    }
+                    rehash(newSlots, now);
+                    slot = slotOf(table, fingerprint);
+                }
+                table[slot << 1] = fingerprint;
+                table[(slot << 1) + 1] = expiresAtMillis;
+                tags[slot] = tag;
+                domains[slot] = domainFilter;
+                size++;
+                SIZE.inc();
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void remove(long fingerprint) {
+            long stamp = lock.writeLock();
+            try {
+                removeLocked(fingerprint);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int removeMatching(long mask, long value, long domainBits) {
+            long stamp = lock.writeLock();
+            try {
+                List<Long> matching = new ArrayList<>();
+                for (int slot = 0; slot < tags.length; slot++) {
+                    if (table[slot << 1] != 0 && (tags[slot] & mask) == value
+                            && (domains[slot] & domainBits) == domainBits) {
+                        matching.add(table[slot << 1]);
+                    }
+                }
+                matching.forEach(this::removeLocked);
+                return matching.size();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void removeLocked(long fingerprint) {
+            int slot = slotOf(table, fingerprint);
+            if (table[slot << 1] != fingerprint) {
+                return;
+            }
+            // Shift following entries back into the hole, so that probing doesn't stop early
+            int mask = (table.length >>> 1) - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; table[next << 1] != 0; next = (next + 1) & mask) {
+                int home = (int) table[next << 1] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole << 1] = table[next << 1];
+                    table[(hole << 1) + 1] = table[(next << 1) + 1];
+                    tags[hole] = tags[next];
+                    domains[hole] = domains[next];
+                    hole = next;
+                }
+            }
+            table[hole << 1] = 0;
+            table[(hole << 1) + 1] = 0;
+            tags[hole] = 0;
+            domains[hole] = 0;
+            size--;
+            SIZE.dec();
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                SIZE.dec(size);
+                table = new long[INITIAL_SLOTS * 2];
+                tags = new long[INITIAL_SLOTS];
+                domains = new long[INITIAL_SLOTS];
+                size = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @return the slot holding the fingerprint, or the empty slot where it belongs
+         */
+        private static int slotOf(long[] table, long fingerprint) {
+            int mask = (table.length >>> 1) - 1;
+            int slot = (int) fingerprint & mask;
+            while (table[slot << 1] != 0 && table[slot << 1] != fingerprint) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int countLive(long now) {
+            int live = 0;
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] != 0 && table[i + 1] > now) {
+                    live++;
+                }
+            }
+            return live;
+        }
+
+        private void rehash(int slots, long now) {
+            long[] old = table;
+            long[] oldTags = tags;
+            long[] oldDomains = domains;
+            long[] rehashed = new long[slots * 2];
+            long[] rehashedTags = new long[slots];
+            long[] rehashedDomains = new long[slots];
+            int live = 0;
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != 0 && old[i + 1] > now) {
+                    int slot = slotOf(rehashed, old[i]);
+                    rehashed[slot << 1] = old[i];
+                    rehashed[(slot << 1) + 1] = old[i + 1];
+                    rehashedTags[slot] = oldTags[i >>> 1];
+                    rehashedDomains[slot] = oldDomains[i >>> 1];
+                    live++;
+                }
+            }
+            SIZE.dec(size - live);
+            tags = rehashedTags;
+            domains = rehashedDomains;
+            table = rehashed;
+            size = live;
+        }
+    }
+}
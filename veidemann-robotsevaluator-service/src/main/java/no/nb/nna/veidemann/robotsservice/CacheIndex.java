@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Secondary index of the robots cache by host and by job execution.
+ * <p>
+ * The index is kept up to date by the cache's entry listeners, so that entries can be found without iterating over
+ * the cache. Hosts are sorted by their labels in reverse order, which turns a pattern for all subdomains of a domain
+ * into a range of the sorted map. The index also counts lookups per host.
+ * <p>
+ * Changes are serialized, lookups are not. Since entries are added and removed at the rate robots.txt is loaded,
+ * which is orders of magnitude less than the lookup rate, this doesn't limit the cache.
+ */
+public class CacheIndex {
+
+    /**
+     * Hosts by reversed host name.
+     */
+    private final ConcurrentSkipListMap<String, HostEntry> hosts = new ConcurrentSkipListMap<>();
+
+    /**
+     * The same hosts by host name, for counting lookups without reversing the name.
+     */
+    private final Map<String, HostEntry> byHost = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<CacheKey>> byJobExecution = new ConcurrentHashMap<>();
+
+    CacheIndex() {
+    }
+
+    /**
+     * Add an entry or update its size.
+     *
+     * @param key  the cache key
+     * @param size the length of the cached robots.txt
+     */
+    synchronized void put(CacheKey key, long size) {
+        HostEntry host = byHost.get(key.getDomain());
+        if (host == null) {
+            host = new HostEntry(key.getDomain());
+            byHost.put(host.host, host);
+            hosts.put(reverse(host.host), host);
+        }
+        host.sizes.put(key, size);
+        byJobExecution.computeIfAbsent(jobExecutionOf(key), k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    synchronized void remove(CacheKey key) {
+        HostEntry host = byHost.get(key.getDomain());
+        if (host != null && host.sizes.remove(key) != null && host.sizes.isEmpty()) {
+            byHost.remove(host.host);
+            hosts.remove(reverse(host.host));
+        }
+        Set<CacheKey> keys = byJobExecution.get(jobExecutionOf(key));
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            byJobExecution.remove(jobExecutionOf(key));
+        }
+    }
+
+    private static String jobExecutionOf(CacheKey key) {
+        return key.getJobExecutionId() == null ? "" : key.getJobExecutionId();
+    }
+
+    /**
+     * Count a lookup of a host. Lookups of hosts which are not cached are not counted.
+     */
+    void hit(String host) {
+        HostEntry entry = byHost.get(host);
+        if (entry != null) {
+            entry.hits.increment();
+        }
+    }
+
+    /**
+     * Find the keys of all entries matching a host pattern and job execution.
+     *
+     * @param hostPattern    a host name, "*." followed by a domain for all subdomains of the domain, "*" or empty
+     *                       for all hosts
+     * @param jobExecutionId the job execution id, or empty for all job executions
+     * @return the matching keys
+     */
+    public List<CacheKey> find(String hostPattern, String jobExecutionId) {
+        List<CacheKey> result = new ArrayList<>();
+        if (hostPattern.isEmpty() || "*".equals(hostPattern)) {
+            if (jobExecutionId.isEmpty()) {
+                hosts.values().forEach(h -> result.addAll(h.sizes.keySet()));
+            } else {
+                result.addAll(byJobExecution.getOrDefault(jobExecutionId, Collections.emptySet()));
+            }
+            return result;
+        }
+
+        for (HostEntry host : matchHosts(hostPattern)) {
+            for (CacheKey key : host.sizes.keySet()) {
+                if (jobExecutionId.isEmpty() || jobExecutionId.equals(jobExecutionOf(key))) {
+                    result.add(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Collection<HostEntry> matchHosts(String hostPattern) {
+        if (!hostPattern.startsWith("*.")) {
+            HostEntry host = byHost.get(hostPattern);
+            return host == null ? Collections.emptyList() : Collections.singletonList(host);
+        }
+        String domain = reverse(hostPattern.substring(2));
+        // All hosts below the domain, but not the domain itself
+        return hosts.subMap(domain, false, domain + Character.MAX_VALUE, false).values();
+    }
+
+    /**
+     * Get the hosts with the highest value of some statistic.
+     *
+     * @param n     the maximum number of hosts to return
+     * @param order the statistic to order by
+     * @return the hosts, highest first
+     */
+    public List<HostStats> top(int n, Comparator<HostStats> order) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<HostStats> top = new PriorityQueue<>(order);
+        for (HostEntry host : hosts.values()) {
+            top.add(host.stats());
+            if (top.size() > n) {
+                top.poll();
+            }
+        }
+        List<HostStats> result = new ArrayList<>(top);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    /**
+     * @return the number of hosts in the index
+     */
+    public int getHostCount() {
+        return byHost.size();
+    }
+
+    /**
+     * Reverse the labels of a host name, so that www.example.com becomes com.example.www. with a trailing dot
+     * separating the domain from any subdomain.
+     */
+    static String reverse(String host) {
+        StringBuilder sb = new StringBuilder(host.length() + 1);
+        int end = host.length();
+        for (int i = end - 1; i >= -1; i--) {
+            if (i == -1 || host.charAt(i) == '.') {
+                sb.append(host, i + 1, end).append('.');
+                end = i;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class HostEntry {
+
+        final String host;
+
+        final Map<CacheKey, Long> sizes = new ConcurrentHashMap<>();
+
+        final LongAdder hits = new LongAdder();
+
+        HostEntry(String host) {
+            this.host = host;
+        }
+
+        HostStats stats() {
+            long size = 0;
+            for (Long s : sizes.values()) {
+                size += s;
+            }
+            return new HostStats(host, sizes.size(), size, hits.sum());
+        }
+    }
+
+    /**
+     * Statistics for one host.
+     */
+    public static final class HostStats {
+
+        public static final Comparator<HostStats> BY_SIZE = Comparator.comparingLong(HostStats::getSize);
+
+        public static final Comparator<HostStats> BY_HITS = Comparator.comparingLong(HostStats::getHits);
+
+        private final String host;
+
+        private final int entries;
+
+        private final long size;
+
+        private final long hits;
+
+        HostStats(String host, int entries, long size, long hits) {
+            this.host = host;
+            this.entries = entries;
+            this.size = size;
+            this.hits = hits;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the number of cache entries for the host
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the total length of the cached robots.txt of the host
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the number of lookups of the host since it was cached
+         */
+        public long getHits() {
+            return hits;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+/**
+ * How the robots cache maps a URL to a cache entry.
+ */
+public enum CanonicalizationPolicy {
+    /**
+     * One entry per scheme, host and port. This is what RFC 9309 prescribes.
+     */
+    STRICT,
+
+    /**
+     * One entry per scheme, host and port, but entries for different schemes of the same host are shared when
+     * possible.
+     * <p>
+     * When fetching http://host/robots.txt redirects to https://host/robots.txt, the https entry is filled from the
+     * same fetch. When both schemes serve identical robots.txt, the parsed result is stored once.
+     */
+    SHARE_SCHEMES,
+
+    /**
+     * One entry per host regardless of scheme and port. The scheme of the first URL seen for a host decides which
+     * robots.txt is fetched.
+     */
+    HOST
+}
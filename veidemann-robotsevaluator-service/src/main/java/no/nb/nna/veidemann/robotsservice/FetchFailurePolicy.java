@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+/**
+ * How the robots cache answers for a host whose robots.txt could not be fetched.
+ * <p>
+ * A fetch fails when it gets no response, times out or gets a server error. The answer is also given without a
+ * fetch while the host's circuit is open, see {@link HostFailureTracker}.
+ */
+public enum FetchFailurePolicy {
+    /**
+     * Treat the host as having no robots.txt, which allows everything.
+     */
+    ALLOW,
+
+    /**
+     * Treat the host as disallowing everything until its robots.txt can be fetched. This is what RFC 9309 prescribes
+     * for unreachable robots.txt.
+     */
+    DISALLOW
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often keys were seen recently, as used by TinyLFU.
+ * <p>
+ * Counters are four bits, sixteen to a long, and each key is counted in four of them. The estimate is the smallest
+ * of the four, which may be too high when keys collide but never too low. After ten times as many increments as
+ * the sketch is sized for, all counters are halved, so keys which were popular a long time ago fade out.
+ * <p>
+ * The sketch takes no locks. Counters are raised with compare-and-set, and the thread whose increment reaches the
+ * sample size halves them while others go on counting. An increment racing with the halving may be halved or not,
+ * which only makes an estimate off by one.
+ */
+final class FrequencySketch {
+
+    static final int MAX_FREQUENCY = 15;
+
+    private static final int DEPTH = 4;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger additions = new AtomicInteger();
+
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    /**
+     * @param expectedEntries the number of distinct keys the sketch should tell apart, typically the cache capacity
+     */
+    FrequencySketch(long expectedEntries) {
+        int size = (int) Math.min(1 << 24, Math.max(16L, Long.highestOneBit(Math.max(1L, expectedEntries - 1)) << 1));
+        table = new AtomicLongArray(size);
+        tableMask = size - 1;
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(expectedEntries, size));
+    }
+
+    /**
+     * Count one occurrence of a key.
+     *
+     * @param hashCode the key's hash code
+     */
+    void increment(int hashCode) {
+        long hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= incrementAt(indexOf(hash, i), offsetOf(hash, i));
+        }
+        if (added && additions.incrementAndGet() >= sampleSize && resetting.compareAndSet(false, true)) {
+            try {
+                reset();
+            } finally {
+                resetting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Estimate how often a key was seen recently.
+     *
+     * @param hashCode the key's hash code
+     * @return the estimated count, at most {@link #MAX_FREQUENCY}
+     */
+    int frequency(int hashCode) {
+        long hash = spread(hashCode);
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            int count = (int) ((table.get(indexOf(hash, i)) >>> offsetOf(hash, i)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        long mask = 0xfL << offset;
+        while (true) {
+            long counters = table.get(index);
+            if ((counters & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, counters, counters + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long counters;
+            do {
+                counters = table.get(i);
+            } while (!table.compareAndSet(i, counters, (counters >>> 1) & RESET_MASK));
+        }
+        additions.updateAndGet(a -> a >>> 1);
+    }
+
+    private int indexOf(long hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int offsetOf(long hash, int depth) {
+        return (int) ((hash >>> (depth << 3)) & 0xfL) << 2;
+    }
+
+    private static long spread(int hashCode) {
+        long h = hashCode * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    int getSampleSize() {
+        return sampleSize;
+    }
+}
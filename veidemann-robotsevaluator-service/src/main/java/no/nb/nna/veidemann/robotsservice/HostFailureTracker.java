@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Failing robots.txt fetches per host, with a circuit breaker in front of hosts which keep failing.
+ * <p>
+ * After {@code threshold} failures in a row the host's circuit opens, and fetches for it are answered at once by the
+ * {@link FetchFailurePolicy} instead of waiting for another timeout. When the backoff has passed, one fetch is let
+ * through as a probe while the others are still answered by the policy. A successful probe closes the circuit, a
+ * failed one opens it again with the backoff doubled, up to 64 times the base.
+ * <p>
+ * Hosts are kept as 64 bit fingerprints in a fixed table of 4-way buckets, so the memory is bounded by the capacity
+ * given. A host which doesn't fit replaces the one in its bucket with the fewest failures. Hosts are removed as soon as
+ * a fetch succeeds, so the table only holds hosts which are failing.
+ */
+class HostFailureTracker {
+
+    private static final Counter EVENTS = Counter.build()
+            .name("robots_host_circuit_events_total")
+            .help("Number of times a host's circuit was opened, closed, probed, answered without fetching, or "
+                    + "forgotten to make room")
+            .labelNames("event")
+            .register();
+
+    private static final Counter.Child REJECTED = EVENTS.labels("rejected");
+
+    private static final Gauge TRACKED = Gauge.build()
+            .name("robots_host_failures_tracked")
+            .help("Number of hosts with failing robots.txt fetches, by whether their circuit is open")
+            .labelNames("circuit")
+            .register();
+
+    private static final Gauge.Child TRACKED_CLOSED = TRACKED.labels("closed");
+
+    private static final Gauge.Child TRACKED_OPEN = TRACKED.labels("open");
+
+    /**
+     * Whether a fetch may go ahead.
+     */
+    enum Permit {
+        /**
+         * The host is not failing, fetch.
+         */
+        CLOSED,
+
+        /**
+         * The host's backoff has passed, fetch as the only probe.
+         */
+        PROBE,
+
+        /**
+         * Don't fetch, answer by the failure policy.
+         */
+        OPEN
+    }
+
+    static final int WAYS = 4;
+
+    static final int MAX_BACKOFF_DOUBLINGS = 6;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final long RETRY_AT_MASK = (1L << 48) - 1;
+
+    private static final int FAILURES_SHIFT = 48;
+
+    private static final long PROBE_BIT = 1L << 56;
+
+    private final long[] hosts;
+
+    /**
+     * Per host the time the next probe is allowed, the failures in a row and whether a probe is in flight.
+     */
+    private final long[] states;
+
+    private final int bucketMask;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final int threshold;
+
+    private final long backoffMillis;
+
+    /**
+     * @param capacity      the number of hosts to track at most
+     * @param threshold     the number of failures in a row which opens a host's circuit
+     * @param backoffMillis the time before the first probe of an open circuit
+     */
+    HostFailureTracker(int capacity, int threshold, long backoffMillis) {
+        if (threshold < 1 || threshold > 255) {
+            throw new IllegalArgumentException("Failure threshold must be from 1 to 255, was " + threshold);
+        }
+        if (backoffMillis < 1) {
+            throw new IllegalArgumentException("Backoff must be positive, was " + backoffMillis);
+        }
+        int buckets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS - 1)) << 1;
+        hosts = new long[buckets * WAYS];
+        states = new long[buckets * WAYS];
+        bucketMask = buckets - 1;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        this.threshold = threshold;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Ask whether a host's robots.txt may be fetched. A {@link Permit#PROBE} must be followed by a call to
+     * {@link #succeeded}, {@link #failed} or {@link #released}.
+     *
+     * @param host      the host's fingerprint
+     * @param nowMillis the current time
+     */
+    Permit acquire(long host, long nowMillis) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            if (slot < 0 || failures(states[slot]) < threshold) {
+                return Permit.CLOSED;
+            }
+            long state = states[slot];
+            if (nowMillis < (state & RETRY_AT_MASK) || (state & PROBE_BIT) != 0) {
+                REJECTED.inc();
+                return Permit.OPEN;
+            }
+            states[slot] = state | PROBE_BIT;
+        }
+        EVENTS.labels("probe").inc();
+        return Permit.PROBE;
+    }
+
+    /**
+     * Record a failed fetch, opening the host's circuit if it reached the threshold.
+     *
+     * @return when the failure should be forgotten and the host fetched again, see {@link #refetchAt(long, long)}
+     */
+    long failed(long host, long nowMillis) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        boolean opened;
+        long refetchAt;
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            if (slot < 0) {
+                slot = victim(bucket);
+                forget(slot);
+                hosts[slot] = host;
+                states[slot] = 0;
+                TRACKED_CLOSED.inc();
+            }
+            int failures = Math.min(255, failures(states[slot]) + 1);
+            long retryAt = 0;
+            opened = failures >= threshold;
+            if (opened) {
+                long backoff = backoffMillis << Math.min(failures - threshold, MAX_BACKOFF_DOUBLINGS);
+                // Spread the probes of hosts which failed together
+                backoff += ThreadLocalRandom.current().nextLong(backoff / 10 + 1);
+                retryAt = (nowMillis + backoff) & RETRY_AT_MASK;
+                if (failures == threshold) {
+                    TRACKED_CLOSED.dec();
+                    TRACKED_OPEN.inc();
+                }
+            }
+            states[slot] = ((long) failures << FAILURES_SHIFT) | retryAt;
+            refetchAt = refetchAtState(states[slot], nowMillis);
+        }
+        if (opened) {
+            EVENTS.labels("opened").inc();
+        }
+        return refetchAt;
+    }
+
+    /**
+     * Record a successful fetch, closing the host's circuit.
+     */
+    void succeeded(long host) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        boolean wasOpen;
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            if (slot < 0) {
+                return;
+            }
+            wasOpen = failures(states[slot]) >= threshold;
+            forget(slot);
+        }
+        if (wasOpen) {
+            EVENTS.labels("closed").inc();
+        }
+    }
+
+    /**
+     * Let another probe through after one which ended without telling if the host works, like a cancelled fetch.
+     */
+    void released(long host) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            if (slot >= 0) {
+                states[slot] &= ~PROBE_BIT;
+            }
+        }
+    }
+
+    /**
+     * When a result answered by the failure policy for a host should be forgotten, so the host is asked for again.
+     * <p>
+     * That is when the host may be probed if its circuit is open, and after the base backoff otherwise. A result
+     * kept for longer would hide the host's recovery from the job which got it.
+     *
+     * @param nowMillis the current time
+     */
+    long refetchAt(long host, long nowMillis) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            return refetchAtState(slot < 0 ? 0 : states[slot], nowMillis);
+        }
+    }
+
+    private long refetchAtState(long state, long nowMillis) {
+        long retryAt = state & RETRY_AT_MASK;
+        if (failures(state) >= threshold && retryAt > nowMillis) {
+            return retryAt;
+        }
+        return nowMillis + backoffMillis;
+    }
+
+    /**
+     * @return true if the host's circuit is open, even if a probe is allowed
+     */
+    boolean isOpen(long host) {
+        host = nonZero(host);
+        int bucket = bucketOf(host);
+        synchronized (lockOf(bucket)) {
+            int slot = find(bucket, host);
+            return slot >= 0 && failures(states[slot]) >= threshold;
+        }
+    }
+
+    /**
+     * Forget all hosts.
+     */
+    void clear() {
+        for (int bucket = 0; bucket <= bucketMask; bucket++) {
+            synchronized (lockOf(bucket)) {
+                for (int i = 0; i < WAYS; i++) {
+                    forget(bucket * WAYS + i);
+                }
+            }
+        }
+    }
+
+    private int find(int bucket, long host) {
+        int first = bucket * WAYS;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            if (hosts[slot] == host) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return an empty slot in the bucket, or the one with the fewest failures
+     */
+    private int victim(int bucket) {
+        int first = bucket * WAYS;
+        int victim = first;
+        for (int slot = first; slot < first + WAYS; slot++) {
+            if (hosts[slot] == 0) {
+                return slot;
+            }
+            if (failures(states[slot]) < failures(states[victim])) {
+                victim = slot;
+            }
+        }
+        EVENTS.labels("evicted").inc();
+        return victim;
+    }
+
+    private void forget(int slot) {
+        if (hosts[slot] == 0) {
+            return;
+        }
+        if (failures(states[slot]) >= threshold) {
+            TRACKED_OPEN.dec();
+        } else {
+            TRACKED_CLOSED.dec();
+        }
+        hosts[slot] = 0;
+        states[slot] = 0;
+    }
+
+    private static int failures(long state) {
+        return (int) (state >>> FAILURES_SHIFT) & 0xff;
+    }
+
+    private int bucketOf(long host) {
+        return (int) (host ^ (host >>> 32)) & bucketMask;
+    }
+
+    private Object lockOf(int bucket) {
+        return locks[bucket & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Zero marks an empty slot, so it can't be used as a fingerprint.
+     */
+    private static long nonZero(long host) {
+        return host == 0 ? 1 : host;
+    }
+}
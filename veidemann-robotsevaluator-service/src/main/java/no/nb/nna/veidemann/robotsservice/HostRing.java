@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning each host to one evaluator replica.
+ * <p>
+ * Every member is placed on the ring at a number of pseudo random points. A host is owned by the member at the first
+ * point following the host's hash. When a member is added or removed, only the hosts between its points and the
+ * preceding points change owner, roughly 1/n of all hosts.
+ * <p>
+ * The ring only depends on the member names and the number of virtual nodes, so clients can build the same ring to
+ * send requests directly to the owner.
+ */
+public final class HostRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final Set<String> members;
+
+    private final long[] points;
+
+    private final String[] owners;
+
+    public HostRing(Collection<String> members) {
+        this(members, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HostRing(Collection<String> members, int virtualNodes) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A host ring needs at least one member");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Number of virtual nodes must be at least 1, was " + virtualNodes);
+        }
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+
+        int size = this.members.size() * virtualNodes;
+        long[][] ring = new long[size][2];
+        String[] names = this.members.toArray(new String[0]);
+        int i = 0;
+        for (int m = 0; m < names.length; m++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring[i][0] = hash(names[m] + "#" + v);
+                ring[i][1] = m;
+                i++;
+            }
+        }
+        // Sort on point, ties are broken on member name so that all replicas agree
+        Arrays.sort(ring, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        points = new long[size];
+        owners = new String[size];
+        for (i = 0; i < size; i++) {
+            points[i] = ring[i][0];
+            owners[i] = names[(int) ring[i][1]];
+        }
+    }
+
+    /**
+     * Get the member owning a host.
+     *
+     * @param host the host name
+     * @return the owning member
+     */
+    public String ownerOf(String host) {
+        int idx = Arrays.binarySearch(points, hash(host));
+        if (idx < 0) {
+            idx = -idx - 1;
+            if (idx == points.length) {
+                idx = 0;
+            }
+        }
+        return owners[idx];
+    }
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer to spread short, similar strings over the whole ring.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "HostRing{" + members + ", virtualNodes=" + points.length / members.size() + '}';
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A fixed size pool for the CPU bound part of loading robots.txt.
+ * <p>
+ * Fetching is done by the http client's own threads, which hand the body over to this pool for parsing. The number
+ * of parallel parses is thereby independent of both the number of fetches in flight and the number of api threads
+ * waiting for a result.
+ */
+public class ParsePool implements AutoCloseable {
+
+    private static final Gauge QUEUE_SIZE = Gauge.build()
+            .name("robots_parse_queue_size")
+            .help("Number of fetched robots.txt waiting to be parsed")
+            .register();
+
+    private static final Gauge ACTIVE = Gauge.build()
+            .name("robots_parse_active")
+            .help("Number of robots.txt currently being parsed")
+            .register();
+
+    private static final Histogram QUEUE_SECONDS = Histogram.build()
+            .name("robots_parse_queue_seconds")
+            .help("Time fetched robots.txt waited for a parser thread")
+            .buckets(.0001, .0005, .001, .005, .01, .05, .1, .5, 1, 5)
+            .register();
+
+    private static final Histogram PARSE_SECONDS = Histogram.build()
+            .name("robots_parse_seconds")
+            .help("Time spent parsing robots.txt")
+            .buckets(.0001, .0005, .001, .005, .01, .05, .1, .5, 1, 5)
+            .register();
+
+    private final ForkJoinPool pool;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param parallelism the number of parser threads, 0 or less for one per available processor
+     */
+    public ParsePool(int parallelism) {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("robots-parser-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, true);
+    }
+
+    /**
+     * Run a task in the pool.
+     *
+     * @param task the task
+     * @return a future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        long submitted = System.nanoTime();
+        queued.incrementAndGet();
+        QUEUE_SIZE.inc();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                queued.decrementAndGet();
+                QUEUE_SIZE.dec();
+                long start = System.nanoTime();
+                QUEUE_SECONDS.observe((start - submitted) / 1e9);
+                ACTIVE.inc();
+                try {
+                    return task.get();
+                } finally {
+                    ACTIVE.dec();
+                    PARSE_SECONDS.observe((System.nanoTime() - start) / 1e9);
+                }
+            }, pool);
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            QUEUE_SIZE.dec();
+            throw e;
+        }
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the number of tasks waiting for a parser thread
+     */
+    public int getQueueSize() {
+        return queued.get();
+    }
+
+    /**
+     * Stop accepting tasks. Tasks already submitted are allowed to complete.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
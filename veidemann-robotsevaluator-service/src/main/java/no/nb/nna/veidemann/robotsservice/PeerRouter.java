@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
+import io.prometheus.client.Counter;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub;
+import no.nb.nna.veidemann.robots.v1.GetRulesReply;
+import no.nb.nna.veidemann.robots.v1.GetRulesRequest;
+import no.nb.nna.veidemann.robots.v1.RobotsRulesGrpc;
+import no.nb.nna.veidemann.robots.v1.RobotsRulesGrpc.RobotsRulesBlockingStub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Forwards requests to the replica owning the requested host.
+ * <p>
+ * Replicas are placed on a {@link HostRing} so that each one only caches robots.txt for its own slice of hosts. Both
+ * IsAllowed and GetRules are forwarded.
+ * Forwarded requests carry a header naming the sender, and are always evaluated locally by the receiver, so a request
+ * is forwarded at most once even when replicas briefly disagree about the membership. When the owner can't be reached
+ * the request is evaluated locally, unless the caller's deadline passed or it cancelled the call.
+ */
+public class PeerRouter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeerRouter.class);
+
+    private static final Counter FORWARDS = Counter.build()
+            .name("robots_peer_forwards_total")
+            .help("Number of requests forwarded to the replica owning the host by outcome: forwarded, failed and "
+                    + "evaluated locally, or gave_up when the call's deadline passed or it was cancelled")
+            .labelNames("outcome")
+            .register();
+
+    static final Metadata.Key<String> FORWARDED_BY_HEADER =
+            Metadata.Key.of("veidemann-robots-forwarded-by", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final Context.Key<String> FORWARDED_BY = Context.key("forwardedBy");
+
+    static final long DEFAULT_FORWARD_TIMEOUT_MS = 15000;
+
+    private final String self;
+
+    private final Function<String, ManagedChannel> channelFactory;
+
+    private final Map<String, ManagedChannel> channels = new HashMap<>();
+
+    private volatile Map<String, Peer> stubs = new HashMap<>();
+
+    private volatile HostRing ring;
+
+    private volatile long forwardTimeoutMs = DEFAULT_FORWARD_TIMEOUT_MS;
+
+    /**
+     * Create a router.
+     *
+     * @param self  the address of this replica as it appears in the list of peers
+     * @param peers the addresses (host:port) of all replicas
+     */
+    public PeerRouter(String self, Collection<String> peers) {
+        this(self, peers, address -> ManagedChannelBuilder.forTarget(address).usePlaintext().build());
+    }
+
+    PeerRouter(String self, Collection<String> peers, Function<String, ManagedChannel> channelFactory) {
+        this.self = self;
+        this.channelFactory = channelFactory;
+        setPeers(peers);
+    }
+
+    /**
+     * Change the replicas sharing the hosts.
+     * <p>
+     * This replica is always a member. Hosts moving to another replica are evicted from this replica's cache by the
+     * normal expiry and eviction, and are loaded by the new owner, from the shared store if there is one.
+     *
+     * @param peers the addresses (host:port) of all replicas
+     */
+    public synchronized void setPeers(Collection<String> peers) {
+        Set<String> members = new HashSet<>(peers);
+        members.add(self);
+
+        Map<String, Peer> newStubs = new HashMap<>();
+        Metadata headers = new Metadata();
+        headers.put(FORWARDED_BY_HEADER, self);
+        for (String member : members) {
+            if (!member.equals(self)) {
+                ManagedChannel channel = channels.computeIfAbsent(member, channelFactory);
+                newStubs.put(member, new Peer(
+                        RobotsEvaluatorGrpc.newBlockingStub(channel)
+                                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers)),
+                        RobotsRulesGrpc.newBlockingStub(channel)
+                                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))));
+            }
+        }
+        channels.entrySet().removeIf(e -> {
+            if (!members.contains(e.getKey())) {
+                e.getValue().shutdown();
+                return true;
+            }
+            return false;
+        });
+
+        // Publish stubs before the ring so that every owner in the ring has a stub
+        stubs = newStubs;
+        ring = new HostRing(members);
+        LOG.info("Host ring changed to {}", ring);
+    }
+
+    public void setForwardTimeoutMs(long forwardTimeoutMs) {
+        this.forwardTimeoutMs = forwardTimeoutMs;
+    }
+
+    /**
+     * Forward a request to the replica owning the host.
+     *
+     * @param host    the requested host
+     * @param request the request to forward
+     * @return the owner's reply or null if the request should be evaluated locally
+     * @throws StatusRuntimeException with DEADLINE_EXCEEDED or CANCELLED if the forwarded call timed out or was
+     *                                cancelled
+     */
+    public IsAllowedReply forward(String host, IsAllowedRequest request) {
+        return forward(host, peer -> peer.evaluator
+                .withDeadlineAfter(forwardTimeoutMs, TimeUnit.MILLISECONDS)
+                .isAllowed(request));
+    }
+
+    /**
+     * Forward a request for rules to the replica owning the host.
+     *
+     * @param host    the requested host
+     * @param request the request to forward
+     * @return the owner's reply or null if the request should be served locally
+     * @throws StatusRuntimeException with DEADLINE_EXCEEDED or CANCELLED if the forwarded call timed out or was
+     *                                cancelled
+     */
+    public GetRulesReply forwardRules(String host, GetRulesRequest request) {
+        return forward(host, peer -> peer.rules
+                .withDeadlineAfter(forwardTimeoutMs, TimeUnit.MILLISECONDS)
+                .getRules(request));
+    }
+
+    private <R> R forward(String host, Function<Peer, R> call) {
+        if (FORWARDED_BY.get() != null) {
+            return null;
+        }
+        String owner = ring.ownerOf(host);
+        Peer peer = stubs.get(owner);
+        if (peer == null) {
+            return null;
+        }
+        try {
+            R reply = call.apply(peer);
+            FORWARDS.labels("forwarded").inc();
+            return reply;
+        } catch (StatusRuntimeException e) {
+            Status.Code code = e.getStatus().getCode();
+            if (code == Status.Code.DEADLINE_EXCEEDED || code == Status.Code.CANCELLED) {
+                // The forward timeout or the caller's deadline, which the call inherits, passed, or the caller gave
+                // up. Evaluating locally would only keep it waiting longer, or answer nobody.
+                FORWARDS.labels("gave_up").inc();
+                throw e;
+            }
+            FORWARDS.labels("failed").inc();
+            LOG.warn("Could not forward request for {} to {}, evaluating locally: {}", host, owner, e.getStatus());
+            return null;
+        }
+    }
+
+    /**
+     * Interceptor recognizing requests forwarded from other replicas. Must be installed on the evaluator service.
+     * <p>
+     * The header is trusted as sent and not checked against the peers, so that requests from a replica which another
+     * replica briefly doesn't count as a member are still not forwarded twice. Any client can set it, but it only
+     * keeps the request from being forwarded: the answer is the same, the host is just cached on this replica too.
+     */
+    public static ServerInterceptor forwardedInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                         Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                String forwardedBy = headers.get(FORWARDED_BY_HEADER);
+                if (forwardedBy == null) {
+                    return next.startCall(call, headers);
+                }
+                return Contexts.interceptCall(Context.current().withValue(FORWARDED_BY, forwardedBy), call, headers, next);
+            }
+        };
+    }
+
+    /**
+     * Parse a comma separated list of peers.
+     *
+     * @param peers the addresses (host:port) of the replicas separated by commas
+     * @return the addresses with blanks removed
+     */
+    public static List<String> parsePeers(String peers) {
+        return Arrays.stream(peers.split(","))
+                .map(String::trim)
+                .filter(p -> !p.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    private static class Peer {
+        final RobotsEvaluatorBlockingStub evaluator;
+
+        final RobotsRulesBlockingStub rules;
+
+        Peer(RobotsEvaluatorBlockingStub evaluator, RobotsRulesBlockingStub rules) {
+            this.evaluator = evaluator;
+            this.rules = rules;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        channels.values().forEach(ManagedChannel::shutdown);
+        channels.clear();
+    }
+}
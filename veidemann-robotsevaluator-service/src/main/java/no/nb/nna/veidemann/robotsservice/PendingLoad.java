@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Deadline;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CachedRobots;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load of robots.txt shared by the callers waiting for it.
+ * <p>
+ * The load lives as long as at least one caller waits. When the last caller gives up, because its deadline passed
+ * or its call was cancelled, the load is cancelled so that no fetch keeps running for a result nobody will read.
+ * <p>
+ * A fetch is limited to the latest deadline of the callers waiting when it starts. A fetch cut short by that limit is
+ * not cached, and callers which joined later with more time left start a new load.
+ */
+final class PendingLoad {
+
+    final CompletableFuture<CachedRobots> result = new CompletableFuture<>();
+
+    private Deadline deadline;
+
+    private int waiters = 1;
+
+    private boolean cancelled;
+
+    private Runnable onCancel;
+
+    private volatile boolean bound;
+
+    /**
+     * Create a load with its first waiter.
+     *
+     * @param deadline the deadline of the caller starting the load, or null if it has none
+     */
+    PendingLoad(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Add a waiter.
+     *
+     * @param deadline the waiter's deadline, or null if it has none
+     * @return false if the load was already cancelled and a new one must be started
+     */
+    synchronized boolean join(Deadline deadline) {
+        if (cancelled) {
+            return false;
+        }
+        waiters++;
+        if (this.deadline != null) {
+            this.deadline = deadline == null ? null : (deadline.isBefore(this.deadline) ? this.deadline : deadline);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a waiter which gave up, and cancel the load if it was the last one.
+     */
+    void leave() {
+        Runnable cancel;
+        synchronized (this) {
+            if (--waiters > 0 || result.isDone() || cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancel = onCancel;
+        }
+        if (cancel != null) {
+            cancel.run();
+        }
+    }
+
+    /**
+     * Set what cancels the running step of the load. Runs it at once if the load is already cancelled.
+     */
+    void onCancel(Runnable cancel) {
+        synchronized (this) {
+            if (!cancelled) {
+                onCancel = cancel;
+                return;
+            }
+        }
+        cancel.run();
+    }
+
+    /**
+     * Mark the load as run by the cache's loader, which completes the result.
+     */
+    void bind() {
+        bound = true;
+    }
+
+    boolean isBound() {
+        return bound;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cap a fetch timeout by the time left until the deadline.
+     *
+     * @param timeoutMillis the configured timeout, 0 for no limit
+     * @return the timeout to use, 0 for no limit
+     */
+    synchronized long fetchTimeoutMillis(long timeoutMillis) {
+        if (deadline == null) {
+            return timeoutMillis;
+        }
+        long remaining = Math.max(1, deadline.timeRemaining(TimeUnit.MILLISECONDS));
+        return timeoutMillis == 0 ? remaining : Math.min(timeoutMillis, remaining);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import com.google.protobuf.Timestamp;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parts of a politeness config needed to evaluate a request, resolved once per config.
+ * <p>
+ * A handle holds the robots policy, the robots.txt validity and the parsed custom robots.txt of the config. It also
+ * remembers the base name of the last User Agent it was used with, since the requests of a crawl share both
+ * politeness config and User Agent.
+ */
+final class PolicyHandle {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PolicyHandle.class);
+
+    private static final RobotsTxtParser ROBOTS_TXT_PARSER = new RobotsTxtParser();
+
+    /**
+     * What to do with a request.
+     */
+    enum Mode {
+        /**
+         * Use the site's robots.txt.
+         */
+        OBEY,
+        /**
+         * Allow everything.
+         */
+        IGNORE,
+        /**
+         * Use the custom robots.txt.
+         */
+        CUSTOM,
+        /**
+         * Use the site's robots.txt, or the custom one if the site has none.
+         */
+        CUSTOM_IF_MISSING
+    }
+
+    final Mode mode;
+
+    /**
+     * The robots.txt validity of the config, 0 for the cache's default.
+     */
+    final int ttlSeconds;
+
+    final RobotsTxt customRobots;
+
+    final long minTimeBetweenPageLoadMs;
+
+    private final Timestamp lastModified;
+
+    private final PolitenessConfig config;
+
+    private volatile UserAgent lastUserAgent;
+
+    private PolicyHandle(ConfigObject politeness) {
+        config = politeness.getPolitenessConfig();
+        lastModified = politeness.getMeta().getLastModified();
+        mode = mode(config.getRobotsPolicy());
+        ttlSeconds = config.getMinimumRobotsValidityDurationS();
+        minTimeBetweenPageLoadMs = config.getMinTimeBetweenPageLoadMs();
+        if (mode == Mode.CUSTOM || mode == Mode.CUSTOM_IF_MISSING) {
+            customRobots = ROBOTS_TXT_PARSER.parse(config.getCustomRobots(), "custom");
+        } else {
+            customRobots = null;
+        }
+    }
+
+    private static Mode mode(RobotsPolicy policy) {
+        switch (policy) {
+            case OBEY_ROBOTS:
+            case OBEY_ROBOTS_CLASSIC:
+                return Mode.OBEY;
+            case IGNORE_ROBOTS:
+                return Mode.IGNORE;
+            case CUSTOM_ROBOTS:
+            case CUSTOM_ROBOTS_CLASSIC:
+                return Mode.CUSTOM;
+            case CUSTOM_IF_MISSING:
+            case CUSTOM_IF_MISSING_CLASSIC:
+                return Mode.CUSTOM_IF_MISSING;
+            default:
+                LOG.warn("Robots Policy '{}' is not implemented.", policy);
+                return Mode.IGNORE;
+        }
+    }
+
+    /**
+     * @return true if the handle's policy needs the site's robots.txt
+     */
+    boolean usesCache() {
+        return mode == Mode.OBEY || mode == Mode.CUSTOM_IF_MISSING;
+    }
+
+    /**
+     * Get the robots.txt validity.
+     *
+     * @param defaultTtlSeconds the validity used when the config doesn't set one
+     */
+    int ttlSeconds(int defaultTtlSeconds) {
+        return ttlSeconds == 0 ? defaultTtlSeconds : ttlSeconds;
+    }
+
+    /**
+     * Get the base name of a User Agent, parsing it only if it differs from the last one.
+     */
+    String baseUserAgent(String userAgent) {
+        UserAgent last = lastUserAgent;
+        if (last != null && last.userAgent.equals(userAgent)) {
+            return last.baseUserAgent;
+        }
+        last = new UserAgent(userAgent, RobotsTxt.parseUserAgent(userAgent));
+        lastUserAgent = last;
+        return last.baseUserAgent;
+    }
+
+    /**
+     * Handles by politeness config.
+     * <p>
+     * Configs with an id are looked up by id and replaced when their last modified time changes. Configs without an
+     * id, which are not stored in the config database, are looked up by their content.
+     */
+    static final class Registry {
+
+        static final int MAX_HANDLES = 1024;
+
+        private final Map<Object, PolicyHandle> handles = new ConcurrentHashMap<>();
+
+        PolicyHandle get(ConfigObject politeness) {
+            Object key = politeness.getId().isEmpty() ? politeness.getPolitenessConfig() : politeness.getId();
+            PolicyHandle handle = handles.get(key);
+            if (handle != null && isCurrent(handle, politeness)) {
+                return handle;
+            }
+
+            handle = new PolicyHandle(politeness);
+            if (handles.size() >= MAX_HANDLES) {
+                // Only a flood of configs without id gets here, start over rather than track usage
+                handles.clear();
+            }
+            handles.put(key, handle);
+            return handle;
+        }
+
+        private static boolean isCurrent(PolicyHandle handle, ConfigObject politeness) {
+            if (politeness.getId().isEmpty()) {
+                return true;
+            }
+            if (!handle.lastModified.equals(politeness.getMeta().getLastModified())) {
+                return false;
+            }
+            // Without a last modified time the content is the only version there is
+            return !handle.lastModified.equals(Timestamp.getDefaultInstance())
+                    || handle.config.equals(politeness.getPolitenessConfig());
+        }
+
+        int size() {
+            return handles.size();
+        }
+    }
+
+    private static final class UserAgent {
+
+        final String userAgent;
+
+        final String baseUserAgent;
+
+        UserAgent(String userAgent, String baseUserAgent) {
+            this.userAgent = userAgent;
+            this.baseUserAgent = baseUserAgent;
+        }
+    }
+}
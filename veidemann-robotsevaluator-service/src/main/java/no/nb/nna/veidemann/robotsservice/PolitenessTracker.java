@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of when each host may be fetched next.
+ * <p>
+ * Every allowed fetch reserves the next free slot for its host and politeness config, and pushes the slot after it
+ * the crawl delay into the future. The earliest fetch time is returned to the frontier with the allow decision, so
+ * the frontier does not have to keep its own per host bookkeeping.
+ * <p>
+ * The state is a fixed size open addressing table of (key hash, next fetch time) pairs in a single
+ * {@link AtomicLongArray}, updated with compare-and-set only. When all slots a key may occupy are taken, the slot
+ * with the earliest next fetch time is reused. Slots whose time has passed carry no information, so this only loses
+ * state when the table is too small for the number of hosts being crawled at once, in which case a host losing its
+ * slot may be fetched again before its delay has passed.
+ */
+public class PolitenessTracker {
+
+    private static final Counter EVICTIONS = Counter.build()
+            .name("robots_politeness_evictions_total")
+            .help("Number of hosts whose next fetch time was dropped before it had passed because the table was full")
+            .register();
+
+    /**
+     * Name of the field in IsAllowedReply.other_fields with the earliest time the uri may be fetched, in
+     * milliseconds since the epoch.
+     */
+    public static final String NEXT_FETCH_FIELD = "veidemann-earliest-next-fetch-ms";
+
+    static final int DEFAULT_CAPACITY = 262144;
+
+    private static final int PROBES = 8;
+
+    private static final long EMPTY = 0L;
+
+    private final AtomicLongArray table;
+
+    private final int mask;
+
+    /**
+     * @param capacity the number of hosts to track, rounded up to a power of two
+     */
+    public PolitenessTracker(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(PROBES, capacity - 1)) << 1;
+        table = new AtomicLongArray(slots * 2);
+        mask = slots - 1;
+    }
+
+    /**
+     * Reserve a fetch of a host.
+     *
+     * @param host        the host to fetch from
+     * @param policyId    the id of the politeness config the host is crawled with
+     * @param delayMillis the minimum time between two fetches from the host
+     * @param nowMillis   the current time in milliseconds since the epoch
+     * @return the earliest time the fetch may start, never before nowMillis
+     */
+    public long reserve(String host, String policyId, long delayMillis, long nowMillis) {
+        long key = key(host, policyId);
+        int start = (int) (key ^ (key >>> 32)) & mask;
+
+        while (true) {
+            int victim = -1;
+            long victimKey = EMPTY;
+            long victimTime = Long.MAX_VALUE;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = (start + probe) & mask;
+                long slotKey = table.get(keyIndex(slot));
+                long slotTime = table.get(timeIndex(slot));
+                if (slotKey == key) {
+                    long earliest = Math.max(nowMillis, slotTime);
+                    if (table.compareAndSet(timeIndex(slot), slotTime, earliest + delayMillis)) {
+                        return earliest;
+                    }
+                    victim = -2;
+                    break;
+                }
+                if (slotKey == EMPTY) {
+                    slotTime = Long.MIN_VALUE;
+                }
+                if (slotTime < victimTime) {
+                    victim = slot;
+                    victimKey = slotKey;
+                    victimTime = slotTime;
+                }
+            }
+            if (victim == -2) {
+                // Lost a race for the time of our own slot
+                continue;
+            }
+
+            // Not tracked, take the free or oldest slot. The key is claimed first, another thread reserving the
+            // same key will then find it and serialize on the time.
+            if (table.compareAndSet(keyIndex(victim), victimKey, key)) {
+                if (victimKey != EMPTY && victimTime > nowMillis) {
+                    EVICTIONS.inc();
+                }
+                if (table.compareAndSet(timeIndex(victim), victimTime == Long.MIN_VALUE ? 0L : victimTime,
+                        nowMillis + delayMillis)) {
+                    return nowMillis;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the earliest time the host may be fetched without reserving it.
+     *
+     * @return the next fetch time, or nowMillis if the host is not tracked
+     */
+    public long peek(String host, String policyId, long nowMillis) {
+        long key = key(host, policyId);
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (start + probe) & mask;
+            if (table.get(keyIndex(slot)) == key) {
+                return Math.max(nowMillis, table.get(timeIndex(slot)));
+            }
+        }
+        return nowMillis;
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    private static long key(String host, String policyId) {
+        long key = HostRing.hash(host + '\n' + policyId);
+        return key == EMPTY ? 1L : key;
+    }
+
+    private static int keyIndex(int slot) {
+        return slot << 1;
+    }
+
+    private static int timeIndex(int slot) {
+        return (slot << 1) + 1;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads robots.txt into the cache in the background ahead of the first lookup.
+ * <p>
+ * Requests are kept in a bounded priority queue and handed to cache2k's {@code loadAll} by a single dispatcher
+ * thread, which limits both the rate of new loads and the number of loads in flight. Keys which are already cached
+ * are skipped.
+ */
+public class Prefetcher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Prefetcher.class);
+
+    private static final Counter PREFETCH = Counter.build()
+            .name("robots_prefetch_total")
+            .help("Number of prefetch requests by outcome")
+            .labelNames("outcome")
+            .register();
+
+    private static final Gauge QUEUE_SIZE = Gauge.build()
+            .name("robots_prefetch_queue_size")
+            .help("Number of prefetch requests waiting to be loaded")
+            .register();
+
+    private static final Gauge IN_FLIGHT = Gauge.build()
+            .name("robots_prefetch_in_flight")
+            .help("Number of prefetch loads currently running")
+            .register();
+
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    static final int DEFAULT_RATE_PER_SECOND = 50;
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    private final RobotsCache cache;
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>(64,
+            Comparator.comparingInt((Task t) -> -t.priority).thenComparingLong(t -> t.sequence));
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Thread dispatcher;
+
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private volatile int ratePerSecond = DEFAULT_RATE_PER_SECOND;
+
+    private volatile Semaphore inFlight = new Semaphore(DEFAULT_MAX_IN_FLIGHT);
+
+    Prefetcher(RobotsCache cache) {
+        this.cache = cache;
+        dispatcher = new Thread(this::dispatch, "robots-prefetcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue keys for loading.
+     *
+     * @param keys     the keys to load
+     * @param priority keys with higher priority are loaded first
+     * @return the number of keys queued, keys which are already cached or don't fit in the queue are not counted
+     */
+    public int prefetch(Collection<CacheKey> keys, int priority) {
+        int queued = 0;
+        for (CacheKey key : keys) {
+            if (cache.isCached(key)) {
+                PREFETCH.labels("cached").inc();
+            } else if (queue.size() >= queueCapacity) {
+                PREFETCH.labels("rejected").inc();
+            } else {
+                queue.add(new Task(key, priority, sequence.getAndIncrement()));
+                PREFETCH.labels("queued").inc();
+                queued++;
+            }
+        }
+        QUEUE_SIZE.set(queue.size());
+        return queued;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setRatePerSecond(int ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Change the number of prefetch loads allowed to run at the same time.
+     * <p>
+     * Loads already running when the limit is changed keep their permits from the old limit.
+     *
+     * @param maxInFlight the new limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    private void dispatch() {
+        long nextStart = System.nanoTime();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task = queue.take();
+                QUEUE_SIZE.set(queue.size());
+
+                if (cache.isCached(task.key)) {
+                    PREFETCH.labels("cached").inc();
+                    continue;
+                }
+
+                // Pace the loads to the configured rate
+                long now = System.nanoTime();
+                if (nextStart > now) {
+                    TimeUnit.NANOSECONDS.sleep(nextStart - now);
+                }
+                int rate = ratePerSecond;
+                nextStart = Math.max(now, nextStart) + (rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0);
+
+                Semaphore permits = inFlight;
+                permits.acquire();
+                IN_FLIGHT.inc();
+                cache.shardFor(task.key).loadAll(Collections.singleton(task.key)).whenComplete((v, t) -> {
+                    permits.release();
+                    IN_FLIGHT.dec();
+                    if (t == null) {
+                        PREFETCH.labels("loaded").inc();
+                    } else {
+                        PREFETCH.labels("failed").inc();
+                        LOG.debug("Prefetch of {} failed", task.key, t);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            // Closed, stop dispatching
+        }
+    }
+
+    @Override
+    public void close() {
+        dispatcher.interrupt();
+        queue.clear();
+        QUEUE_SIZE.set(0);
+    }
+
+    private static final class Task {
+
+        final CacheKey key;
+
+        final int priority;
+
+        final long sequence;
+
+        Task(CacheKey key, int priority, long sequence) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads robots.txt fetches over a set of harvester proxies.
+ * <p>
+ * Each proxy has its own connection pool, while all share the dispatcher of the base client so that the fetch
+ * concurrency limit covers them all. A fetch goes to the better of two randomly chosen proxies, judged by a moving
+ * average of their latency times the fetches they have in flight. A proxy failing {@link #EJECT_AFTER_FAILURES}
+ * fetches in a row is left out for {@link #EJECTION_MILLIS}, after which a single fetch decides if it's back.
+ * <p>
+ * A fetch which fails with an I/O error is retried once through another proxy. With a hedge percentile set, a fetch
+ * still running after that percentile of recent fetch latencies gets a second request through another proxy, and the
+ * first response wins. Each fetch makes at most two requests.
+ */
+class ProxyPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyPool.class);
+
+    private static final Counter FETCHES = Counter.build()
+            .name("robots_proxy_fetches_total")
+            .help("Number of robots.txt requests sent through each harvester proxy, by whether they got a response")
+            .labelNames("proxy", "result")
+            .register();
+
+    private static final Counter EJECTIONS = Counter.build()
+            .name("robots_proxy_ejections_total")
+            .help("Number of times a harvester proxy was left out after failing fetches in a row")
+            .labelNames("proxy")
+            .register();
+
+    private static final Counter SECOND_REQUESTS = Counter.build()
+            .name("robots_proxy_second_requests_total")
+            .help("Number of robots.txt fetches which got a second request through another proxy, by reason")
+            .labelNames("reason")
+            .register();
+
+    static final int EJECT_AFTER_FAILURES = 3;
+
+    static final long EJECTION_MILLIS = 30_000;
+
+    /**
+     * The weight of the latest latency in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final ScheduledExecutorService hedgeTimer;
+
+    private final LatencyWindow latencies = new LatencyWindow();
+
+    private volatile OkHttpClient baseClient;
+
+    private volatile Endpoint[] endpoints;
+
+    private volatile double hedgePercentile;
+
+    /**
+     * @param baseClient the client the proxies' clients are made from, without a proxy
+     * @param proxies    the harvester proxies
+     */
+    ProxyPool(OkHttpClient baseClient, List<InetSocketAddress> proxies) {
+        this.baseClient = baseClient;
+        this.endpoints = new Endpoint[0];
+        hedgeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "robots-fetch-hedge");
+            t.setDaemon(true);
+            return t;
+        });
+        setProxies(proxies);
+    }
+
+    /**
+     * Replace the set of proxies.
+     * <p>
+     * Proxies which are kept keep their connections and statistics. Fetches already in flight complete through the
+     * proxy they were sent to.
+     */
+    synchronized void setProxies(List<InetSocketAddress> proxies) {
+        if (proxies.isEmpty()) {
+            throw new IllegalArgumentException("At least one proxy is needed");
+        }
+        Map<InetSocketAddress, Endpoint> old = new HashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            old.put(endpoint.address, endpoint);
+        }
+        List<Endpoint> updated = new ArrayList<>(proxies.size());
+        for (InetSocketAddress address : proxies) {
+            Endpoint endpoint = old.remove(address);
+            updated.add(endpoint != null ? endpoint : new Endpoint(address, baseClient));
+        }
+        old.values().forEach(endpoint -> endpoint.client.connectionPool().evictAll());
+        endpoints = updated.toArray(new Endpoint[0]);
+        LOG.info("Fetching robots.txt through {}", updated);
+    }
+
+    /**
+     * Rebuild the proxies' clients from a changed base client, keeping their connections and statistics.
+     */
+    synchronized void setBaseClient(OkHttpClient baseClient) {
+        this.baseClient = baseClient;
+        for (Endpoint endpoint : endpoints) {
+            endpoint.client = endpoint.clientFrom(baseClient);
+        }
+    }
+
+    /**
+     * Set the latency percentile after which a fetch gets a second request through another proxy.
+     *
+     * @param percentile a percentile between 0 and 100, 0 turns hedging off
+     */
+    void setHedgePercentile(double percentile) {
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Hedge percentile must be from 0 up to 100, was " + percentile);
+        }
+        this.hedgePercentile = percentile;
+    }
+
+    /**
+     * Send a request through one of the proxies.
+     * <p>
+     * The callback is called once, with the first response or the last failure.
+     *
+     * @param timeoutMillis  the timeout of each request, 0 for the base client's timeout
+     * @param deadlineCapped true if the timeout was shortened to the callers' deadline. Such a timeout says nothing
+     *                       about the proxy, so it is neither counted against it nor retried through another one
+     * @return the fetch, which can be cancelled
+     */
+    Fetch enqueue(Request request, long timeoutMillis, boolean deadlineCapped, Callback callback) {
+        Endpoint[] current = endpoints;
+        Fetch fetch = new Fetch(request, timeoutMillis, deadlineCapped, callback, current);
+        Endpoint first = select(current, null, System.currentTimeMillis());
+        fetch.send(first);
+
+        long delay = hedgeDelayMillis();
+        if (delay >= 0 && current.length > 1) {
+            try {
+                hedgeTimer.schedule(() -> fetch.sendSecond(first, "hedge"), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Not hedging, pool is closed");
+            }
+        }
+        return fetch;
+    }
+
+    /**
+     * @return the time to wait before hedging a fetch, or -1 if fetches are not hedged
+     */
+    private long hedgeDelayMillis() {
+        double percentile = hedgePercentile;
+        if (percentile == 0) {
+            return -1;
+        }
+        return latencies.percentile(percentile);
+    }
+
+    /**
+     * Choose the better of two random proxies which are not ejected. If all are ejected, the one which comes back
+     * first is chosen.
+     *
+     * @param exclude a proxy not to choose, or null
+     * @return the chosen proxy, or null if there are no others than the excluded one
+     */
+    static Endpoint select(Endpoint[] endpoints, Endpoint exclude, long nowMillis) {
+        Endpoint a = null;
+        Endpoint b = null;
+        int seen = 0;
+        int start = ThreadLocalRandom.current().nextInt(endpoints.length);
+        // Reservoir sampling of two of the available proxies
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint candidate = endpoints[(start + i) % endpoints.length];
+            if (candidate == exclude || candidate.ejectedUntil > nowMillis) {
+                continue;
+            }
+            seen++;
+            if (a == null) {
+                a = candidate;
+            } else if (b == null) {
+                b = candidate;
+            } else if (ThreadLocalRandom.current().nextInt(seen) < 2) {
+                if (ThreadLocalRandom.current().nextBoolean()) {
+                    a = candidate;
+                } else {
+                    b = candidate;
+                }
+            }
+        }
+        if (a == null) {
+            for (Endpoint candidate : endpoints) {
+                if (candidate != exclude && (a == null || candidate.ejectedUntil < a.ejectedUntil)) {
+                    a = candidate;
+                }
+            }
+            return a;
+        }
+        return b == null || a.load() <= b.load() ? a : b;
+    }
+
+    /**
+     * Parse a comma separated list of proxies.
+     *
+     * @param proxies proxies as host:port
+     * @return the proxies' addresses
+     */
+    static List<InetSocketAddress> parseProxies(String proxies) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String proxy : proxies.split(",")) {
+            proxy = proxy.trim();
+            if (proxy.isEmpty()) {
+                continue;
+            }
+            int colon = proxy.lastIndexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("Proxy must be host:port, was " + proxy);
+            }
+            addresses.add(new InetSocketAddress(proxy.substring(0, colon), Integer.parseInt(proxy.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    Endpoint[] getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public void close() {
+        hedgeTimer.shutdownNow();
+        for (Endpoint endpoint : endpoints) {
+            endpoint.client.connectionPool().evictAll();
+        }
+    }
+
+    /**
+     * One harvester proxy with its connections and statistics.
+     */
+    static final class Endpoint {
+
+        final InetSocketAddress address;
+
+        final String name;
+
+        private final ConnectionPool connectionPool = new ConnectionPool();
+
+        volatile OkHttpClient client;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * Moving average of the latency in milliseconds, 0 until the first response.
+         */
+        private volatile double latencyMillis;
+
+        private int consecutiveFailures;
+
+        volatile long ejectedUntil;
+
+        Endpoint(InetSocketAddress address, OkHttpClient baseClient) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+            this.client = clientFrom(baseClient);
+        }
+
+        OkHttpClient clientFrom(OkHttpClient baseClient) {
+            return baseClient.newBuilder()
+                    .proxy(new Proxy(Proxy.Type.HTTP, address))
+                    .connectionPool(connectionPool)
+                    .build();
+        }
+
+        double load() {
+            return latencyMillis * (inFlight.get() + 1);
+        }
+
+        double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        synchronized void succeeded(long latencyMillis) {
+            consecutiveFailures = 0;
+            ejectedUntil = 0;
+            updateLatency(latencyMillis);
+            FETCHES.labels(name, "success").inc();
+        }
+
+        synchronized void updateLatency(long latencyMillis) {
+            this.latencyMillis = this.latencyMillis == 0
+                    ? latencyMillis : this.latencyMillis + LATENCY_WEIGHT * (latencyMillis - this.latencyMillis);
+        }
+
+        synchronized void failed(long nowMillis) {
+            FETCHES.labels(name, "failure").inc();
+            if (++consecutiveFailures >= EJECT_AFTER_FAILURES && ejectedUntil <= nowMillis) {
+                LOG.warn("Proxy {} failed {} fetches in a row, leaving it out for {} ms", name, consecutiveFailures,
+                        EJECTION_MILLIS);
+                ejectedUntil = nowMillis + EJECTION_MILLIS;
+                EJECTIONS.labels(name).inc();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A fetch with up to two requests, completing the callback with the first response.
+     */
+    final class Fetch {
+
+        private final Request request;
+
+        private final long timeoutMillis;
+
+        private final boolean deadlineCapped;
+
+        private final Callback callback;
+
+        private final Endpoint[] endpoints;
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private final AtomicBoolean secondSent = new AtomicBoolean();
+
+        private volatile boolean cancelled;
+
+        /**
+         * Requests in flight, including a second request about to be sent.
+         */
+        private final AtomicInteger running = new AtomicInteger(1);
+
+        private final List<Call> calls = new ArrayList<>(2);
+
+        Fetch(Request request, long timeoutMillis, boolean deadlineCapped, Callback callback, Endpoint[] endpoints) {
+            this.request = request;
+            this.timeoutMillis = timeoutMillis;
+            this.deadlineCapped = deadlineCapped;
+            this.callback = callback;
+            this.endpoints = endpoints;
+        }
+
+        void send(Endpoint endpoint) {
+            Call call = endpoint.client.newCall(request);
+            if (timeoutMillis > 0) {
+                call.timeout().timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            synchronized (calls) {
+                calls.add(call);
+            }
+            if (cancelled) {
+                // Completes through onFailure like any other cancelled call
+                call.cancel();
+            }
+            endpoint.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    endpoint.inFlight.decrementAndGet();
+                    // The callers' deadline ran out, another proxy would be no faster
+                    boolean pastDeadline = deadlineCapped && e instanceof InterruptedIOException;
+                    // A call which timed out is cancelled too, so the fetch's own state tells what happened
+                    if (!cancelled) {
+                        if (done.get()) {
+                            // Lost to the other request, which says the proxy took at least this long
+                            endpoint.updateLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        } else if (!pastDeadline) {
+                            endpoint.failed(System.currentTimeMillis());
+                        }
+                    }
+                    // Only the last request to fail reports the failure
+                    boolean retried = !pastDeadline && sendSecond(endpoint, "retry");
+                    if (running.decrementAndGet() == 0 && !retried && done.compareAndSet(false, true)) {
+                        callback.onFailure(call, e);
+                    }
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    endpoint.inFlight.decrementAndGet();
+                    endpoint.succeeded(latencyMillis);
+                    latencies.add(latencyMillis);
+                    running.decrementAndGet();
+                    if (!done.compareAndSet(false, true)) {
+                        response.close();
+                        return;
+                    }
+                    cancelOthers(call);
+                    callback.onResponse(call, response);
+                }
+            });
+        }
+
+        /**
+         * Send the second request through another proxy, unless the fetch is done or has sent it already.
+         *
+         * @return true if the request was sent
+         */
+        boolean sendSecond(Endpoint first, String reason) {
+            if (done.get() || cancelled || endpoints.length < 2) {
+                return false;
+            }
+            Endpoint second = select(endpoints, first, System.currentTimeMillis());
+            if (second == null) {
+                return false;
+            }
+            // Counted before it's claimed, so that a failing first request sees it as running
+            running.incrementAndGet();
+            if (!secondSent.compareAndSet(false, true)) {
+                running.decrementAndGet();
+                return false;
+            }
+            SECOND_REQUESTS.labels(reason).inc();
+            send(second);
+            return true;
+        }
+
+        /**
+         * Cancel the requests. The callback gets the failure of the last one.
+         */
+        void cancel() {
+            cancelled = true;
+            cancelOthers(null);
+        }
+
+        private void cancelOthers(Call winner) {
+            synchronized (calls) {
+                for (Call call : calls) {
+                    if (call != winner) {
+                        call.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The latencies of the most recent responses, with the percentiles recomputed now and then.
+     */
+    static final class LatencyWindow {
+
+        static final int SIZE = 256;
+
+        /**
+         * The number of responses needed before percentiles are given.
+         */
+        static final int MIN_SAMPLES = 32;
+
+        private static final int RECOMPUTE_EVERY = 32;
+
+        private final long[] samples = new long[SIZE];
+
+        private long count;
+
+        private long[] sorted;
+
+        synchronized void add(long latencyMillis) {
+            samples[(int) (count++ % SIZE)] = latencyMillis;
+            if (count >= MIN_SAMPLES && (sorted == null || count % RECOMPUTE_EVERY == 0)) {
+                sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+                Arrays.sort(sorted);
+            }
+        }
+
+        /**
+         * @return the latency at the percentile, or -1 if there are too few samples
+         */
+        synchronized long percentile(double percentile) {
+            if (sorted == null) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
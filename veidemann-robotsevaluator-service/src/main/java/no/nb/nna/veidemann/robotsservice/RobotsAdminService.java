@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import no.nb.nna.veidemann.robots.v1.CacheEntry;
+import no.nb.nna.veidemann.robots.v1.EntrySelector;
+import no.nb.nna.veidemann.robots.v1.EndJobExecutionReply;
+import no.nb.nna.veidemann.robots.v1.EndJobExecutionRequest;
+import no.nb.nna.veidemann.robots.v1.GetEntryReply;
+import no.nb.nna.veidemann.robots.v1.GetEntryRequest;
+import no.nb.nna.veidemann.robots.v1.InvalidateReply;
+import no.nb.nna.veidemann.robots.v1.InvalidateRequest;
+import no.nb.nna.veidemann.robots.v1.ListEntriesReply;
+import no.nb.nna.veidemann.robots.v1.ListEntriesRequest;
+import no.nb.nna.veidemann.robots.v1.PrefetchReply;
+import no.nb.nna.veidemann.robots.v1.PrefetchRequest;
+import no.nb.nna.veidemann.robots.v1.PrefetchTarget;
+import no.nb.nna.veidemann.robots.v1.RobotsAdminGrpc;
+import no.nb.nna.veidemann.robots.v1.RobotsDirective;
+import no.nb.nna.veidemann.robots.v1.RobotsGroup;
+import no.nb.nna.veidemann.robots.v1.TopHostsReply;
+import no.nb.nna.veidemann.robots.v1.TopHostsRequest;
+import no.nb.nna.veidemann.robots.v1.WriteSnapshotReply;
+import no.nb.nna.veidemann.robots.v1.WriteSnapshotRequest;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CachedRobots;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Operational calls for the robots evaluator.
+ * <p>
+ * Hosts without robots.txt which are kept in the allow-all set (see {@link RobotsCache#setAllowAllHostsCapacity})
+ * are not cache entries. The set only keeps hashes of them, so ListEntries, GetEntry, TopHosts and WriteSnapshot
+ * don't show them. Invalidate and EndJobExecution do remove them.
+ */
+public class RobotsAdminService extends RobotsAdminGrpc.RobotsAdminImplBase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RobotsAdminService.class);
+
+    private final RobotsCache cache;
+
+    private volatile Path snapshotPath;
+
+    public RobotsAdminService(RobotsCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set the file written by WriteSnapshot.
+     *
+     * @param snapshotPath the snapshot file, or null to reject WriteSnapshot
+     */
+    public void setSnapshotPath(Path snapshotPath) {
+        this.snapshotPath = snapshotPath;
+    }
+
+    @Override
+    public void prefetch(PrefetchRequest request, StreamObserver<PrefetchReply> respObserver) {
+        try {
+            List<CacheKey> keys = new ArrayList<>(request.getTargetCount());
+            int invalid = 0;
+            for (PrefetchTarget target : request.getTargetList()) {
+                try {
+                    int ttlSeconds = target.getTtlSeconds() == 0 ? cache.getDefaultTtlSeconds() : target.getTtlSeconds();
+                    keys.add(cache.createKey(new URL(target.getUri()), ttlSeconds, target.getExecutionId(),
+                            target.getJobExecutionId(), target.getCollectionId()));
+                } catch (MalformedURLException e) {
+                    LOG.debug("Ignoring prefetch of invalid uri '{}'", target.getUri());
+                    invalid++;
+                }
+            }
+
+            int queued = cache.prefetch(keys, request.getPriority());
+
+            respObserver.onNext(PrefetchReply.newBuilder()
+                    .setQueued(queued)
+                    .setRejected(keys.size() - queued + invalid)
+                    .build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void writeSnapshot(WriteSnapshotRequest request, StreamObserver<WriteSnapshotReply> respObserver) {
+        Path path = snapshotPath;
+        if (path == null) {
+            respObserver.onError(Status.FAILED_PRECONDITION
+                    .withDescription("No snapshot path configured").asException());
+            return;
+        }
+        try {
+            RobotsSnapshot.Summary summary = cache.writeSnapshot(path);
+
+            respObserver.onNext(WriteSnapshotReply.newBuilder()
+                    .setPath(path.toString())
+                    .setEntries(summary.getEntries())
+                    .setBytes(summary.getBytes())
+                    .build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void listEntries(ListEntriesRequest request, StreamObserver<ListEntriesReply> respObserver) {
+        if (isEmpty(request.getSelector())) {
+            respObserver.onError(Status.INVALID_ARGUMENT.withDescription("Selector is empty").asException());
+            return;
+        }
+        try {
+            List<CacheKey> keys = find(request.getSelector());
+            long now = System.currentTimeMillis();
+
+            ListEntriesReply.Builder reply = ListEntriesReply.newBuilder().setCount(keys.size());
+            for (CacheKey key : keys) {
+                if (reply.getEntryCount() >= request.getLimit()) {
+                    break;
+                }
+                CachedRobots value = cache.peek(key);
+                if (value != null) {
+                    reply.addEntry(toCacheEntry(key, value, now));
+                }
+            }
+            respObserver.onNext(reply.build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void getEntry(GetEntryRequest request, StreamObserver<GetEntryReply> respObserver) {
+        CacheKey key;
+        try {
+            key = cache.createKey(new URL(request.getUri()), 0, "", request.getJobExecutionId(), "");
+        } catch (MalformedURLException e) {
+            respObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid uri: " + request.getUri())
+                    .asException());
+            return;
+        }
+        try {
+            // Use the key as cached, which has the ids and ttl of the request which loaded it
+            CacheKey cachedKey = cache.getIndex().find(key.getDomain(), request.getJobExecutionId()).stream()
+                    .filter(key::equals)
+                    .findFirst()
+                    .orElse(key);
+            CachedRobots value = cache.peek(cachedKey);
+            if (value == null) {
+                respObserver.onError(Status.NOT_FOUND.withDescription("Not cached: " + key).asException());
+                return;
+            }
+
+            GetEntryReply.Builder reply = GetEntryReply.newBuilder()
+                    .setEntry(toCacheEntry(cachedKey, value, System.currentTimeMillis()))
+                    .addAllSitemap(value.robotsTxt.getSitemaps())
+                    .addAllError(value.robotsTxt.getErrors());
+            if (value.body != null) {
+                reply.setContent(value.body);
+            }
+            for (RobotsTxt.DirectiveGroup group : value.robotsTxt.getDirectiveGroups()) {
+                RobotsGroup.Builder g = reply.addGroupBuilder()
+                        .addAllUserAgent(group.getUserAgents())
+                        .setCrawlDelay(group.getCrawlDelay())
+                        .setCacheDelay(group.getCacheDelay());
+                // Listing a group must not compile it, that would hide which lazy groups are never used
+                group.forEachDirective((type, path) -> g.addDirectiveBuilder()
+                        .setType(type == RobotsTxt.DirectiveType.ALLOW
+                                ? RobotsDirective.Type.ALLOW : RobotsDirective.Type.DISALLOW)
+                        .setPath(path));
+            }
+            respObserver.onNext(reply.build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void invalidate(InvalidateRequest request, StreamObserver<InvalidateReply> respObserver) {
+        if (isEmpty(request.getSelector())) {
+            respObserver.onError(Status.INVALID_ARGUMENT.withDescription("Selector is empty").asException());
+            return;
+        }
+        try {
+            EntrySelector selector = request.getSelector();
+            int invalidated = cache.invalidate(find(selector), request.getRefresh())
+                    + cache.forgetAllowAllHosts(selector.getHostPattern(), selector.getJobExecutionId());
+
+            respObserver.onNext(InvalidateReply.newBuilder().setInvalidated(invalidated).build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void endJobExecution(EndJobExecutionRequest request, StreamObserver<EndJobExecutionReply> respObserver) {
+        if (request.getJobExecutionId().isEmpty()) {
+            respObserver.onError(Status.INVALID_ARGUMENT.withDescription("Job execution id is empty").asException());
+            return;
+        }
+        try {
+            int evicted = cache.evictJobExecution(request.getJobExecutionId());
+
+            respObserver.onNext(EndJobExecutionReply.newBuilder().setEvicted(evicted).build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    @Override
+    public void topHosts(TopHostsRequest request, StreamObserver<TopHostsReply> respObserver) {
+        try {
+            Comparator<CacheIndex.HostStats> order = request.getOrderBy() == TopHostsRequest.Order.HITS
+                    ? CacheIndex.HostStats.BY_HITS : CacheIndex.HostStats.BY_SIZE;
+
+            TopHostsReply.Builder reply = TopHostsReply.newBuilder();
+            for (CacheIndex.HostStats stats : cache.getIndex().top(request.getN(), order)) {
+                reply.addHostBuilder()
+                        .setHost(stats.getHost())
+                        .setEntries(stats.getEntries())
+                        .setSize(stats.getSize())
+                        .setHits(stats.getHits());
+            }
+            respObserver.onNext(reply.build());
+            respObserver.onCompleted();
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+
+    private static boolean isEmpty(EntrySelector selector) {
+        return selector.getHostPattern().isEmpty() && selector.getJobExecutionId().isEmpty();
+    }
+
+    private List<CacheKey> find(EntrySelector selector) {
+        return cache.getIndex().find(selector.getHostPattern(), selector.getJobExecutionId());
+    }
+
+    private static CacheEntry toCacheEntry(CacheKey key, CachedRobots value, long now) {
+        CacheEntry.Builder entry = CacheEntry.newBuilder()
+                .setProtocol(key.getProtocol())
+                .setHost(key.getDomain())
+                .setPort(key.getPort())
+                .setTtlSeconds(key.getTtlSeconds())
+                .setStatusCode(value.statusCode)
+                .setFetchTimeMs(value.fetchTimeMillis)
+                .setAgeSeconds(Math.max(0L, (now - value.fetchTimeMillis) / 1000))
+                .setHasRobotsTxt(value.body != null)
+                .setSize(value.body == null ? 0 : value.body.length());
+        if (key.getExecutionId() != null) {
+            entry.setExecutionId(key.getExecutionId());
+        }
+        if (key.getJobExecutionId() != null) {
+            entry.setJobExecutionId(key.getJobExecutionId());
+        }
+        if (key.getCollectionId() != null) {
+            entry.setCollectionId(key.getCollectionId());
+        }
+        return entry.build();
+    }
+}
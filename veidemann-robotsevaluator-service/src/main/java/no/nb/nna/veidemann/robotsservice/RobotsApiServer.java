@@ -17,6 +17,11 @@ package no.nb.nna.veidemann.robotsservice;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.services.HealthStatusManager;
 import io.opentracing.util.GlobalTracer;
 import io.opentracing.contrib.grpc.TracingServerInterceptor;
 import io.opentracing.contrib.grpc.TracingServerInterceptor.ServerRequestAttribute;
@@ -38,12 +43,26 @@ public class RobotsApiServer implements AutoCloseable {
 
     private final Server server;
     private final ExecutorService threadPool;
+    private final RobotsService robotsService;
+    private final ServerServiceDefinition robotsServiceDefinition;
+    private final RobotsAdminService adminService;
+    private final RobotsRulesService rulesService;
+    private final SerializedReplyCache replyCache;
+    private final HealthStatusManager health;
 
     public RobotsApiServer(int port, RobotsCache robotsCache) {
         this(ServerBuilder.forPort(port), robotsCache);
     }
 
     public RobotsApiServer(ServerBuilder<?> serverBuilder, RobotsCache robotsCache) {
+        this(serverBuilder, robotsCache, null);
+    }
+
+    public RobotsApiServer(int port, RobotsCache robotsCache, PeerRouter peerRouter) {
+        this(ServerBuilder.forPort(port), robotsCache, peerRouter);
+    }
+
+    public RobotsApiServer(ServerBuilder<?> serverBuilder, RobotsCache robotsCache, PeerRouter peerRouter) {
         TracingServerInterceptor tracingInterceptor = TracingServerInterceptor
                 .newBuilder()
                 .withTracer(GlobalTracer.get())
@@ -53,8 +72,22 @@ public class RobotsApiServer implements AutoCloseable {
         threadPool = Executors.newCachedThreadPool();
         serverBuilder.executor(threadPool);
 
-        RobotsService robotsService = new RobotsService(robotsCache);
-        server = serverBuilder.addService(tracingInterceptor.intercept(robotsService)).build();
+        robotsService = new RobotsService(robotsCache, peerRouter);
+        replyCache = new SerializedReplyCache();
+        robotsService.setSerializedReplyCache(replyCache);
+        adminService = new RobotsAdminService(robotsCache);
+        rulesService = new RobotsRulesService(robotsCache, peerRouter);
+        health = new HealthStatusManager();
+        robotsServiceDefinition = ServerInterceptors.intercept(replyCache.bind(robotsService), tracingInterceptor,
+                PeerRouter.forwardedInterceptor());
+        server = serverBuilder
+                .addService(robotsServiceDefinition)
+                .addService(tracingInterceptor.intercept(adminService))
+                .addService(ServerInterceptors.intercept(rulesService, tracingInterceptor,
+                        PeerRouter.forwardedInterceptor()))
+                .addService(health.getHealthService())
+                .build();
+        setServing(false);
     }
 
     public RobotsApiServer start() {
@@ -70,8 +103,47 @@ public class RobotsApiServer implements AutoCloseable {
         }
     }
 
+    /**
+     * Set the status reported by the gRPC health service, for the server as a whole and for each api.
+     * <p>
+     * The server starts out as NOT_SERVING, so that load balancers don't send traffic before the evaluator is warmed
+     * up. Whoever starts the server calls this when it is ready.
+     *
+     * @param serving true to report SERVING, false to report NOT_SERVING
+     */
+    public void setServing(boolean serving) {
+        ServingStatus status = serving ? ServingStatus.SERVING : ServingStatus.NOT_SERVING;
+        health.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, status);
+        for (ServerServiceDefinition service : server.getServices()) {
+            String name = service.getServiceDescriptor().getName();
+            if (!name.equals(HealthGrpc.SERVICE_NAME)) {
+                health.setStatus(name, status);
+            }
+        }
+    }
+
+    public RobotsService getRobotsService() {
+        return robotsService;
+    }
+
+    /**
+     * Get the robots evaluator service as bound to the server, with its interceptors and reply marshaller.
+     */
+    ServerServiceDefinition getRobotsServiceDefinition() {
+        return robotsServiceDefinition;
+    }
+
+    public RobotsAdminService getAdminService() {
+        return adminService;
+    }
+
+    public SerializedReplyCache getReplyCache() {
+        return replyCache;
+    }
+
     @Override
     public void close() {
+        health.enterTerminalState();
         server.shutdown();
         try {
             server.awaitTermination(5L, TimeUnit.SECONDS);
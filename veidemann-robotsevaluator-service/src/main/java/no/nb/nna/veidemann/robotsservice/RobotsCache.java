@@ -15,16 +15,46 @@
  */
 package no.nb.nna.veidemann.robotsservice;
 
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import io.opentracing.util.GlobalTracer;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import no.nb.nna.veidemann.robotsparser.DirectiveGroupInternTable;
 import no.nb.nna.veidemann.robotsparser.RobotsTxt;
 import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+import no.nb.nna.veidemann.robotsservice.store.RobotsStore;
+import no.nb.nna.veidemann.robotsservice.store.StoreKey;
+import no.nb.nna.veidemann.robotsservice.store.StoredRobots;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Request.Builder;
 import okhttp3.Response;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.CacheEntry;
+import org.cache2k.event.CacheEntryCreatedListener;
+import org.cache2k.event.CacheEntryEvictedListener;
+import org.cache2k.event.CacheEntryExpiredListener;
+import org.cache2k.event.CacheEntryRemovedListener;
+import org.cache2k.event.CacheEntryUpdatedListener;
 import org.cache2k.expiry.ExpiryTimeValues;
-import org.cache2k.io.CacheLoader;
+import org.cache2k.io.AsyncCacheLoader;
+import org.cache2k.io.CacheLoaderException;
+import org.cache2k.operation.CacheControl;
+import org.cache2k.operation.CacheStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,11 +62,39 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.Proxy;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 
 import static no.nb.nna.veidemann.commons.VeidemannHeaderConstants.*;
 
@@ -47,63 +105,1389 @@ public class RobotsCache implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(RobotsCache.class);
 
-    private final Cache<CacheKey, RobotsTxt> cache;
+    private static final Counter SHARED_STORE = Counter.build()
+            .name("robots_shared_store_lookups_total")
+            .help("Number of lookups in the shared robots store by result")
+            .labelNames("result")
+            .register();
 
-    private final RobotsTxtParser ROBOTS_TXT_PARSER = new RobotsTxtParser();
+    private static final Counter SAVED_FETCHES = Counter.build()
+            .name("robots_fetches_saved_total")
+            .help("Number of robots.txt fetches avoided by sharing entries between schemes of the same host")
+            .labelNames("reason")
+            .register();
 
-    private final OkHttpClient client;
+    private static final Counter ADMISSIONS = Counter.build()
+            .name("robots_cache_admissions_total")
+            .help("Number of robots.txt loaded while the cache was full, by whether they were admitted to the cache")
+            .labelNames("result")
+            .register();
+
+    private static final Counter JOB_EVICTIONS = Counter.build()
+            .name("robots_cache_job_execution_evictions_total")
+            .help("Number of entries removed because their job execution ended")
+            .register();
+
+    private static final Counter ABANDONED_WAITS = Counter.build()
+            .name("robots_cache_abandoned_waits_total")
+            .help("Number of lookups which stopped waiting for robots.txt because the caller's deadline passed or "
+                    + "the call was cancelled")
+            .labelNames("reason")
+            .register();
+
+    private static final Counter CANCELLED_LOADS = Counter.build()
+            .name("robots_cache_cancelled_loads_total")
+            .help("Number of robots.txt loads given up because no caller was waiting for them any more")
+            .register();
+
+    private final List<Cache<CacheKey, CachedRobots>> shards;
+
+    /**
+     * The number of entries in each shard, kept by the shards' listeners so that admission doesn't have to count them.
+     */
+    private final AtomicLongArray shardEntries;
+
+    private final Map<CacheKey, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+
+    private final DirectiveGroupInternTable groupTable = new DirectiveGroupInternTable();
+
+    private volatile RobotsTxtParser robotsTxtParser = new RobotsTxtParser(false, groupTable);
+
+    private volatile OkHttpClient client;
+
+    private final ProxyPool proxyPool;
+
+    private final CanonicalizationPolicy canonicalizationPolicy;
+
+    private final ShardCollector shardCollector;
+
+    private final Prefetcher prefetcher;
+
+    private final CacheIndex index = new CacheIndex();
+
+    private final RobotsInternTable internTable = new RobotsInternTable();
+
+    private volatile Tracer tracer = GlobalTracer.get();
+
+    private volatile ParsePool parsePool = new ParsePool(0);
+
+    /**
+     * Runs the blocking lookups in the shared store. Lookups are queued, cache2k's default loader executor rejects
+     * loads when all its threads, one per processor, are busy.
+     */
+    private final ThreadPoolExecutor storeLookups;
+
+    private volatile RobotsStore robotsStore;
+
+    private volatile int defaultTtlSeconds = DEFAULT_TTL_SECONDS;
+
+    private volatile long capacity;
+
+    /**
+     * Counts lookups by key when admission is enabled, otherwise null.
+     */
+    private volatile FrequencySketch admissionSketch;
+
+    /**
+     * The key last evicted from each shard, compared with keys asking to be admitted.
+     */
+    private final AtomicReferenceArray<CacheKey> victims;
+
+    /**
+     * Hosts without robots.txt when they are kept apart from the main cache, otherwise null.
+     */
+    private volatile AllowAllHosts allowAllHosts;
+
+    private volatile HostFailureTracker failureTracker;
+
+    private volatile FetchFailurePolicy fetchFailurePolicy = FetchFailurePolicy.ALLOW;
+
+    static final int DEFAULT_FETCH_MAX_CONCURRENCY = 64;
+
+    static final int STORE_LOOKUP_THREADS = 16;
+
+    /**
+     * Keys used at least this often may be admitted even when the eviction victim was used more.
+     */
+    static final int WARM_FREQUENCY = 6;
+
+    /**
+     * The time robots.txt is cached when the politeness config doesn't say otherwise.
+     */
+    static final int DEFAULT_TTL_SECONDS = 300;
 
     static final RobotsTxt EMPTY_ROBOTS = new RobotsTxt("empty");
 
+    /**
+     * The robots.txt answering for hosts which can't be fetched with {@link FetchFailurePolicy#DISALLOW}.
+     */
+    static final String DISALLOW_ALL_BODY = "user-agent: *\ndisallow: /\n";
+
+    static final RobotsTxt DISALLOW_ALL_ROBOTS = new RobotsTxtParser().parse(DISALLOW_ALL_BODY, "fetch failure");
+
+    private static final long DISALLOW_ALL_HASH = contentHash(DISALLOW_ALL_BODY);
+
+    /**
+     * Tag set on the span active when robots.txt is looked up, false if it had to be loaded.
+     */
+    static final String CACHE_HIT_TAG = "robots.cache.hit";
+
     public RobotsCache(final String proxyHost, final int proxyPort, long capacity) {
-        client = getUnsafeOkHttpClient()
-                .proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort)))
-                .build();
-        cache = new Cache2kBuilder<CacheKey, RobotsTxt>() {
-        }.name("robotsCache")
+        this(proxyHost, proxyPort, capacity, 1, CanonicalizationPolicy.STRICT);
+    }
+
+    /**
+     * Create a cache split into a number of independent shards.
+     * <p>
+     * Each shard is a separate cache2k cache with its own loader and a share of the total capacity. Entries for a
+     * host always end up in the same shard, so lookups for different hosts do not contend on the same cache
+     * internals.
+     *
+     * @param proxyHost              the harvester proxy host
+     * @param proxyPort              the harvester proxy port
+     * @param capacity               the total number of entries to keep across all shards
+     * @param shardCount             the number of shards, 1 gives a single unsharded cache
+     * @param canonicalizationPolicy how URLs are mapped to cache entries
+     */
+    public RobotsCache(final String proxyHost, final int proxyPort, long capacity, int shardCount,
+                       CanonicalizationPolicy canonicalizationPolicy) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, was " + shardCount);
+        }
+        this.canonicalizationPolicy = Objects.requireNonNull(canonicalizationPolicy);
+        client = getUnsafeOkHttpClient().build();
+        proxyPool = new ProxyPool(client, List.of(new InetSocketAddress(proxyHost, proxyPort)));
+        setFetchMaxConcurrency(DEFAULT_FETCH_MAX_CONCURRENCY);
+
+        storeLookups = new ThreadPoolExecutor(STORE_LOOKUP_THREADS, STORE_LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "robots-store-lookup");
+            t.setDaemon(true);
+            return t;
+        });
+        storeLookups.allowCoreThreadTimeOut(true);
+
+        this.capacity = capacity;
+        long shardCapacity = Math.max(1L, (capacity + shardCount - 1) / shardCount);
+        List<Cache<CacheKey, CachedRobots>> caches = new ArrayList<>(shardCount);
+        shardEntries = new AtomicLongArray(shardCount);
+        victims = new AtomicReferenceArray<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            caches.add(createShard(shardCount == 1 ? "robotsCache" : "robotsCache-" + i, shardCapacity, i));
+        }
+        shards = Collections.unmodifiableList(caches);
+
+        shardCollector = new ShardCollector().register();
+        prefetcher = new Prefetcher(this);
+    }
+
+    private Cache<CacheKey, CachedRobots> createShard(String name, long capacity, int index) {
+        return new Cache2kBuilder<CacheKey, CachedRobots>() {
+        }.name(name)
                 .entryCapacity(capacity)
                 .expiryPolicy((key, value, loadTime, oldEntry) -> {
                     if (value == null) {
                         LOG.error("Loader returned null");
                         return ExpiryTimeValues.NOW;
                     }
+                    if (value.body == null && allowAllHosts != null) {
+                        // Kept in the allow-all set by the loader
+                        return ExpiryTimeValues.NOW;
+                    }
                     if (LOG.isTraceEnabled()) {
                         LOG.trace("Caching {}", key);
                     }
-                    return loadTime + (1000L * key.ttlSeconds);
+                    return value.expiresAtMillis(key);
                 })
-                .loader(key -> {
-                    String url = key.protocol + "://" + key.getDomain() + ":" + key.getPort() + "/robots.txt";
-
-                    Request request = new Builder()
-                            .url(url)
-                            .addHeader(EXECUTION_ID, key.executionId)
-                            .addHeader(JOB_EXECUTION_ID, key.jobExecutionId)
-                            .addHeader(COLLECTION_ID, key.collectionId)
-                            .build();
-
-                    try (Response response = client.newCall(request).execute();) {
-                        if (response.isSuccessful()) {
-                            LOG.debug("Found '{}'", url);
-                            return ROBOTS_TXT_PARSER.parse(Objects.requireNonNull(response.body()).charStream(), url);
-                        } else {
-                            LOG.debug("No '{}' found", url);
-                        }
-                    } catch (Exception e) {
-                        LOG.debug("No '{}' found", url, e);
-                    }
-                    return EMPTY_ROBOTS;
+                .loader((AsyncCacheLoader<CacheKey, CachedRobots>) (key, context, callback) ->
+                        load(key, pendingLoads.get(key), callback))
+                .loaderExecutor(storeLookups)
+                .addListener((CacheEntryCreatedListener<CacheKey, CachedRobots>) (c, e) -> {
+                    shardEntries.incrementAndGet(index);
+                    indexEntry(e);
+                })
+                .addListener((CacheEntryUpdatedListener<CacheKey, CachedRobots>) (c, old, e) -> indexEntry(e))
+                .addListener((CacheEntryRemovedListener<CacheKey, CachedRobots>) (c, e) -> unindexEntry(index, e))
+                .addListener((CacheEntryExpiredListener<CacheKey, CachedRobots>) (c, e) -> unindexEntry(index, e))
+                .addListener((CacheEntryEvictedListener<CacheKey, CachedRobots>) (c, e) -> {
+                    victims.set(index, e.getKey());
+                    unindexEntry(index, e);
                 })
                 .build();
     }
 
+    private void unindexEntry(int shard, CacheEntry<CacheKey, CachedRobots> entry) {
+        shardEntries.decrementAndGet(shard);
+        index.remove(entry.getKey());
+    }
+
+    private void indexEntry(CacheEntry<CacheKey, CachedRobots> entry) {
+        if (entry.getException() != null) {
+            index.remove(entry.getKey());
+            return;
+        }
+        CachedRobots value = entry.getValue();
+        index.put(entry.getKey(), value.body == null ? 0L : value.body.length());
+    }
+
+    /**
+     * Load robots.txt without blocking the calling thread.
+     * <p>
+     * The fetch runs on the http client's dispatcher threads, and the fetched body is handed over to the
+     * {@link ParsePool} for parsing. Lookups in the shared store are blocking and run on the store lookup pool, which
+     * queues them when all its threads are busy.
+     * <p>
+     * When the load is triggered by a traced request, the request's span is tagged as a cache miss and each step of
+     * the load gets its own child span. Loads are rare compared to lookups, so they are traced regardless of
+     * sampling.
+     *
+     * @param pending the callers waiting for the load, or null if it isn't for a lookup, like a prefetch
+     */
+    private void load(CacheKey key, PendingLoad pending, AsyncCacheLoader.Callback<CachedRobots> callback) {
+        AllowAllHosts allowAll = allowAllHosts;
+        AsyncCacheLoader.Callback<CachedRobots> remembering =
+                allowAll == null ? callback : rememberingAllowAll(key, allowAll, callback);
+        loadRobots(key, pending, pending == null ? remembering : completing(pending, remembering));
+    }
+
+    private void loadRobots(CacheKey key, PendingLoad pending, AsyncCacheLoader.Callback<CachedRobots> callback) {
+        String url = key.protocol + "://" + key.getDomain() + ":" + key.getPort() + "/robots.txt";
+        Span parent = tracer.activeSpan();
+        if (parent != null) {
+            parent.setTag(CACHE_HIT_TAG, false);
+        }
+
+        if (robotsStore == null) {
+            fetch(key, url, parent, pending, callback);
+            return;
+        }
+        storeLookups.execute(() -> {
+            if (pending != null && pending.isCancelled()) {
+                CANCELLED_LOADS.inc();
+                callback.onLoadFailure(new CancellationException("No caller is waiting for " + url));
+                return;
+            }
+            Span span = startSpan("robots.store.get", parent);
+            StoredRobots stored = lookupShared(key);
+            if (span != null) {
+                span.setTag("robots.store.hit", stored != null);
+                span.finish();
+            }
+            if (stored != null) {
+                LOG.debug("Found '{}' in shared store", url);
+                parse(key, stored.getStatusCode(), stored.getBody(), stored.getFetchTimeMillis(), url, null, parent,
+                        callback);
+            } else {
+                fetch(key, url, parent, pending, callback);
+            }
+        });
+    }
+
+    /**
+     * Hand the result of a load to its waiting callers once it is in the cache.
+     */
+    private static AsyncCacheLoader.Callback<CachedRobots> completing(
+            PendingLoad pending, AsyncCacheLoader.Callback<CachedRobots> callback) {
+        pending.bind();
+        return new AsyncCacheLoader.Callback<CachedRobots>() {
+            @Override
+            public void onLoadSuccess(CachedRobots value) {
+                callback.onLoadSuccess(value);
+                pending.result.complete(value);
+            }
+
+            @Override
+            public void onLoadFailure(Throwable t) {
+                callback.onLoadFailure(t);
+                pending.result.completeExceptionally(t);
+            }
+        };
+    }
+
+    /**
+     * Add hosts found to have no robots.txt to the allow-all set before completing their load.
+     */
+    private static AsyncCacheLoader.Callback<CachedRobots> rememberingAllowAll(
+            CacheKey key, AllowAllHosts allowAll, AsyncCacheLoader.Callback<CachedRobots> callback) {
+        return new AsyncCacheLoader.Callback<CachedRobots>() {
+            @Override
+            public void onLoadSuccess(CachedRobots value) {
+                if (value.body == null) {
+                    allowAll.add(key.fingerprint(), value.expiresAtMillis(key), key.allowAllTag(), key.allowAllDomains());
+                }
+                callback.onLoadSuccess(value);
+            }
+
+            @Override
+            public void onLoadFailure(Throwable t) {
+                callback.onLoadFailure(t);
+            }
+        };
+    }
+
+    private void fetch(CacheKey key, String url, Span parent, PendingLoad pending,
+                       AsyncCacheLoader.Callback<CachedRobots> callback) {
+        Request request = new Builder()
+                .url(url)
+                .addHeader(EXECUTION_ID, key.executionId)
+                .addHeader(JOB_EXECUTION_ID, key.jobExecutionId)
+                .addHeader(COLLECTION_ID, key.collectionId)
+                .build();
+
+        Span span = startSpan("robots.fetch", parent);
+        if (span != null) {
+            Tags.HTTP_URL.set(span, url);
+        }
+        long fetchTime = System.currentTimeMillis();
+        HostFailureTracker tracker = failureTracker;
+        long host = hostFingerprint(key);
+        if (tracker != null && tracker.acquire(host, fetchTime) == HostFailureTracker.Permit.OPEN) {
+            LOG.debug("Not fetching '{}', the host's circuit is open", url);
+            if (span != null) {
+                span.setTag("robots.circuit.open", true);
+                span.finish();
+            }
+            callback.onLoadSuccess(fetchFailed(0, fetchTime, tracker.refetchAt(host, fetchTime)));
+            return;
+        }
+        long configuredTimeout = client.callTimeoutMillis();
+        long timeoutMillis = pending == null ? configuredTimeout : pending.fetchTimeoutMillis(configuredTimeout);
+        boolean deadlineCapped = timeoutMillis != configuredTimeout;
+        ProxyPool.Fetch inFlight = proxyPool.enqueue(request, timeoutMillis, deadlineCapped, new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                // A call which timed out is cancelled too, so a cancelled load is told by the load itself
+                if ((pending != null && pending.isCancelled())
+                        || (deadlineCapped && e instanceof InterruptedIOException)) {
+                    // Nobody is waiting, so don't cache the host as having no robots.txt
+                    LOG.debug("Gave up fetching '{}'", url, e);
+                    CANCELLED_LOADS.inc();
+                    if (tracker != null) {
+                        tracker.released(host);
+                    }
+                    finishWithError(span, e);
+                    CancellationException cancelled = new CancellationException("Gave up fetching " + url);
+                    cancelled.initCause(e);
+                    callback.onLoadFailure(cancelled);
+                    return;
+                }
+                LOG.debug("No '{}' found", url, e);
+                finishWithError(span, e);
+                callback.onLoadSuccess(fetchFailed(0, fetchTime, failed(tracker, host)));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                int statusCode = response.code();
+                String body = null;
+                try (response) {
+                    if (response.isSuccessful()) {
+                        LOG.debug("Found '{}'", url);
+                        body = Objects.requireNonNull(response.body()).string();
+                    } else {
+                        LOG.debug("No '{}' found", url);
+                    }
+                } catch (Exception e) {
+                    LOG.debug("No '{}' found", url, e);
+                    finishWithError(span, e);
+                    callback.onLoadSuccess(fetchFailed(0, fetchTime, failed(tracker, host)));
+                    return;
+                }
+                if (span != null) {
+                    Tags.HTTP_STATUS.set(span, statusCode);
+                    span.setTag("robots.bytes", body == null ? 0 : body.length());
+                    span.finish();
+                }
+                if (statusCode >= 500) {
+                    // A server error says nothing about the host's robots.txt, so it isn't shared
+                    callback.onLoadSuccess(fetchFailed(statusCode, fetchTime, failed(tracker, host)));
+                    return;
+                }
+                if (tracker != null) {
+                    tracker.succeeded(host);
+                }
+                storeShared(key, new StoredRobots(statusCode, body, fetchTime));
+                parse(key, statusCode, body, fetchTime, url, response.request().url(), parent, callback);
+            }
+        });
+        if (pending != null) {
+            pending.onCancel(inFlight::cancel);
+        }
+    }
+
+    /**
+     * The entry for a host whose robots.txt could not be fetched, according to the fetch failure policy.
+     *
+     * @param statusCode     the http status code of the fetch, 0 if there was no response
+     * @param expiresAtMillis when the entry expires if that is before its ttl, {@link Long#MAX_VALUE} to keep it for
+     *                        the whole ttl
+     */
+    private CachedRobots fetchFailed(int statusCode, long fetchTimeMillis, long expiresAtMillis) {
+        if (fetchFailurePolicy == FetchFailurePolicy.DISALLOW) {
+            return new CachedRobots(DISALLOW_ALL_ROBOTS, DISALLOW_ALL_BODY, DISALLOW_ALL_HASH, statusCode,
+                    fetchTimeMillis, expiresAtMillis);
+        }
+        return new CachedRobots(EMPTY_ROBOTS, null, 0L, statusCode, fetchTimeMillis, expiresAtMillis);
+    }
+
+    /**
+     * Record a failed fetch with the failure tracker, if any.
+     *
+     * @return when the entry answering the failure should expire, so the host is fetched again once it may have
+     * recovered, or {@link Long#MAX_VALUE} if failures aren't tracked
+     */
+    private static long failed(HostFailureTracker tracker, long host) {
+        return tracker == null ? Long.MAX_VALUE : tracker.failed(host, System.currentTimeMillis());
+    }
+
+    /**
+     * A fingerprint of the host a key's robots.txt is fetched from, shared by all job executions.
+     */
+    private static long hostFingerprint(CacheKey key) {
+        return AllowAllHosts.fingerprint(key.protocol, key.getDomain(), key.getPort(), "", false);
+    }
+
+    /**
+     * Parse a body in the parse pool and complete the load with the result.
+     *
+     * @param finalUrl the url the body was fetched from after redirects, or null if it wasn't fetched
+     * @param parent   the span of the request triggering the load, or null if it isn't traced
+     */
+    private void parse(CacheKey key, int statusCode, String body, long fetchTimeMillis, String url, HttpUrl finalUrl,
+                       Span parent, AsyncCacheLoader.Callback<CachedRobots> callback) {
+        if (body == null) {
+            callback.onLoadSuccess(CachedRobots.empty(statusCode, fetchTimeMillis));
+            return;
+        }
+        CompletableFuture<CachedRobots> parsed;
+        try {
+            parsed = parsePool.supply(() -> {
+                Span span = startSpan("robots.parse", parent);
+                CachedRobots result = toCachedRobots(key, statusCode, body, fetchTimeMillis, url);
+                if (finalUrl != null && canonicalizationPolicy == CanonicalizationPolicy.SHARE_SCHEMES) {
+                    shareRedirectTarget(key, finalUrl, result);
+                }
+                if (span != null) {
+                    tagParseResult(span, result.robotsTxt);
+                    span.finish();
+                }
+                return result;
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onLoadFailure(e);
+            return;
+        }
+        parsed.whenComplete((result, t) -> {
+            if (t == null) {
+                callback.onLoadSuccess(result);
+            } else {
+                LOG.debug("Could not parse '{}'", url, t);
+                callback.onLoadSuccess(CachedRobots.empty(0, fetchTimeMillis));
+            }
+        });
+    }
+
+    /**
+     * Start a child span, unless the parent is null.
+     */
+    private Span startSpan(String operationName, Span parent) {
+        if (parent == null) {
+            return null;
+        }
+        return tracer.buildSpan(operationName).asChildOf(parent).start();
+    }
+
+    private static void finishWithError(Span span, Exception e) {
+        if (span != null) {
+            Tags.ERROR.set(span, true);
+            span.log(Collections.singletonMap("message", e.toString()));
+            span.finish();
+        }
+    }
+
+    /**
+     * Tag a span with the size of a parsed robots.txt. Lazy groups are counted without compiling them.
+     */
+    static void tagParseResult(Span span, RobotsTxt robotsTxt) {
+        int directives = 0;
+        for (RobotsTxt.DirectiveGroup group : robotsTxt.getDirectiveGroups()) {
+            directives += group.getDirectiveCount();
+        }
+        span.setTag("robots.groups", robotsTxt.getDirectiveGroups().size());
+        span.setTag("robots.directives", directives);
+        span.setTag("robots.errors", robotsTxt.getErrors().size());
+    }
+
+    private CachedRobots toCachedRobots(CacheKey key, int statusCode, String body, long fetchTimeMillis, String url) {
+        if (body == null) {
+            return CachedRobots.empty(statusCode, fetchTimeMillis);
+        }
+        long contentHash = contentHash(body);
+        if (canonicalizationPolicy == CanonicalizationPolicy.SHARE_SCHEMES) {
+            CachedRobots shared = findIdenticalSibling(key, contentHash);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        RobotsInternTable.Interned interned = internTable.intern(body, contentHash, b -> robotsTxtParser.parse(b, url));
+        return new CachedRobots(interned.robotsTxt, interned.body, contentHash, statusCode, fetchTimeMillis);
+    }
+
+    /**
+     * Look up a key in the shared store.
+     *
+     * @return the stored robots.txt if there is a fresh one, otherwise null
+     */
+    private StoredRobots lookupShared(CacheKey key) {
+        RobotsStore store = robotsStore;
+        if (store == null) {
+            return null;
+        }
+        try {
+            Optional<StoredRobots> stored = store.get(key.toStoreKey());
+            if (!stored.isPresent()) {
+                SHARED_STORE.labels("miss").inc();
+            } else if (!stored.get().isFresh(key.ttlSeconds, System.currentTimeMillis())) {
+                SHARED_STORE.labels("stale").inc();
+            } else {
+                SHARED_STORE.labels("hit").inc();
+                return stored.get();
+            }
+        } catch (Exception e) {
+            SHARED_STORE.labels("error").inc();
+            LOG.warn("Could not read {} from shared store", key, e);
+        }
+        return null;
+    }
+
+    private void storeShared(CacheKey key, StoredRobots robots) {
+        RobotsStore store = robotsStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            store.put(key.toStoreKey(), robots);
+        } catch (Exception e) {
+            SHARED_STORE.labels("error").inc();
+            LOG.warn("Could not write {} to shared store", key, e);
+        }
+    }
+
+    /**
+     * Look for an already cached robots.txt with the same content for the other scheme of this host.
+     *
+     * @return the cached entry for the other scheme if the content is identical, otherwise null
+     */
+    private CachedRobots findIdenticalSibling(CacheKey key, long contentHash) {
+        CacheKey sibling = key.otherScheme();
+        if (sibling == null) {
+            return null;
+        }
+        CachedRobots candidate = shardFor(sibling).peek(sibling);
+        if (candidate != null && candidate.body != null && candidate.contentHash == contentHash) {
+            SAVED_FETCHES.labels("identical_content").inc();
+            return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * When a http robots.txt was redirected to the https robots.txt of the same host, the response is valid for the
+     * https entry as well.
+     */
+    void shareRedirectTarget(CacheKey key, HttpUrl finalUrl, CachedRobots result) {
+        if (!"http".equals(key.protocol) || !finalUrl.isHttps()
+                || !finalUrl.host().equalsIgnoreCase(key.domain) || !"/robots.txt".equals(finalUrl.encodedPath())) {
+            return;
+        }
+        CacheKey target = key.withScheme(finalUrl.scheme(), finalUrl.port());
+        if (shardFor(target).putIfAbsent(target, result)) {
+            SAVED_FETCHES.labels("redirect").inc();
+        }
+    }
+
+    /**
+     * A 64 bit hash of a robots.txt body used to detect identical content. The first eight bytes of SHA-256 make
+     * accidental collisions between the few variants of one host's robots.txt practically impossible.
+     */
+    static long contentHash(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public RobotsTxt get(final URL uri, final int ttlSeconds, final String executionId, final String jobExecutionId, final String collectionId) {
-        return cache.get(new CacheKey(uri, ttlSeconds, executionId, jobExecutionId, collectionId));
+        AllowAllHosts allowAll = allowAllHosts;
+        if (allowAll != null) {
+            long fingerprint = AllowAllHosts.fingerprint(uri.getProtocol(), uri.getHost(),
+                    uri.getPort() == -1 ? uri.getDefaultPort() : uri.getPort(), jobExecutionId,
+                    canonicalizationPolicy == CanonicalizationPolicy.HOST);
+            if (allowAll.contains(fingerprint, System.currentTimeMillis())) {
+                return EMPTY_ROBOTS;
+            }
+        }
+        CacheKey key = createKey(uri, ttlSeconds, executionId, jobExecutionId, collectionId);
+        int shardIndex = shardIndex(key.getDomain(), shards.size());
+        Cache<CacheKey, CachedRobots> shard = shards.get(shardIndex);
+        FrequencySketch sketch = admissionSketch;
+        if (sketch != null) {
+            sketch.increment(key.hashCode());
+        }
+        CachedRobots cached = shard.peek(key);
+        if (cached == null) {
+            Context context = Context.current();
+            if (sketch != null && !admit(shardIndex, key, sketch)) {
+                return loadWithoutCaching(key, context).robotsTxt;
+            }
+            cached = await(key, context, pending -> loadIntoCache(shard, key, pending));
+        }
+        index.hit(key.getDomain());
+        return cached.robotsTxt;
+    }
+
+    /**
+     * Wait for a key to be loaded, joining a load other callers already wait for.
+     * <p>
+     * The wait ends at the deadline of the caller's gRPC context, or when its call is cancelled. A load which no
+     * caller waits for any more is cancelled.
+     *
+     * @param start starts a load when no other caller is waiting for one
+     * @throws StatusRuntimeException with DEADLINE_EXCEEDED or CANCELLED if the caller gave up
+     */
+    private CachedRobots await(CacheKey key, Context context, Consumer<PendingLoad> start) {
+        Deadline deadline = context.getDeadline();
+        while (true) {
+            if (context.isCancelled()) {
+                ABANDONED_WAITS.labels("cancelled").inc();
+                throw statusFromCancelled(context).asRuntimeException();
+            }
+            PendingLoad[] started = new PendingLoad[1];
+            PendingLoad pending = pendingLoads.compute(key, (k, p) -> {
+                if (p != null && p.join(deadline)) {
+                    return p;
+                }
+                started[0] = new PendingLoad(deadline);
+                return started[0];
+            });
+            if (pending == started[0]) {
+                pending.result.whenComplete((v, t) -> pendingLoads.remove(key, pending));
+                start.accept(pending);
+            }
+            CachedRobots value = waitFor(pending, context);
+            if (value != null) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Start loading a key into the cache. The cache's loader completes the pending load.
+     */
+    private void loadIntoCache(Cache<CacheKey, CachedRobots> shard, CacheKey key, PendingLoad pending) {
+        shard.loadAll(Collections.singleton(key)).whenComplete((v, t) -> {
+            if (pending.isBound()) {
+                // Completed by the loader
+                return;
+            }
+            // The key was loaded by someone else. If it already expired, as hosts without robots.txt do
+            // with the allow-all set, the waiters start over.
+            if (t != null) {
+                pending.result.completeExceptionally(t);
+            } else {
+                pending.result.complete(shard.peek(key));
+            }
+        });
+    }
+
+    /**
+     * Wait for a load until it completes or the caller gives up.
+     *
+     * @return the loaded robots.txt, or null if the load was given up by the other callers and must be started over
+     */
+    private CachedRobots waitFor(PendingLoad pending, Context context) {
+        // Cancelling the dependent future leaves the shared one running for other callers
+        CompletableFuture<CachedRobots> waiting = pending.result.thenApply(v -> v);
+        Context.CancellationListener listener = c -> waiting.cancel(false);
+        context.addListener(listener, Runnable::run);
+        try {
+            Deadline deadline = context.getDeadline();
+            return deadline == null
+                    ? waiting.get()
+                    : waiting.get(deadline.timeRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            pending.leave();
+            ABANDONED_WAITS.labels("deadline").inc();
+            throw Status.DEADLINE_EXCEEDED.withDescription("Deadline passed while loading robots.txt")
+                    .asRuntimeException();
+        } catch (CancellationException e) {
+            pending.leave();
+            ABANDONED_WAITS.labels("cancelled").inc();
+            throw statusFromCancelled(context).asRuntimeException();
+        } catch (InterruptedException e) {
+            pending.leave();
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Interrupted while loading robots.txt").asRuntimeException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                return null;
+            }
+            throw e.getCause() instanceof CacheLoaderException
+                    ? (CacheLoaderException) e.getCause() : new CacheLoaderException(e.getCause());
+        } finally {
+            context.removeListener(listener);
+        }
+    }
+
+    private static Status statusFromCancelled(Context context) {
+        Status status = Contexts.statusFromCancelled(context);
+        return status != null ? status : Status.CANCELLED;
+    }
+
+    /**
+     * Decide if a key which is not cached should be loaded into the cache.
+     * <p>
+     * This is the admission half of TinyLFU. cache2k picks eviction victims itself and doesn't tell which one is
+     * next, so the key is compared with the shard's last victim instead, which the eviction policy found to be the
+     * least worth keeping. A key is admitted to a full shard when it was used more often recently than that victim.
+     * Hosts seen once, like those of a broad scan, are then served without displacing anything.
+     * <p>
+     * Until the shard has evicted anything, keys are compared with a victim used once. A popular victim would keep out
+     * every key, so keys used often are also let in now and then, as in Caffeine.
+     */
+    private boolean admit(int shard, CacheKey key, FrequencySketch sketch) {
+        long shardCapacity = Math.max(1L, (capacity + shards.size() - 1) / shards.size());
+        if (shardEntries.get(shard) < shardCapacity) {
+            return true;
+        }
+        int frequency = sketch.frequency(key.hashCode());
+        CacheKey victim = victims.get(shard);
+        if (frequency > (victim == null ? 1 : sketch.frequency(victim.hashCode()))
+                || (frequency >= WARM_FREQUENCY && ThreadLocalRandom.current().nextInt(128) == 0)) {
+            ADMISSIONS.labels("admitted").inc();
+            return true;
+        }
+        ADMISSIONS.labels("rejected").inc();
+        return false;
+    }
+
+    /**
+     * Load robots.txt for a key which was not admitted to the cache. Concurrent misses for the key share one load.
+     */
+    private CachedRobots loadWithoutCaching(CacheKey key, Context context) {
+        return await(key, context, pending -> load(key, pending, new AsyncCacheLoader.Callback<CachedRobots>() {
+            @Override
+            public void onLoadSuccess(CachedRobots value) {
+            }
+
+            @Override
+            public void onLoadFailure(Throwable t) {
+            }
+        }));
+    }
+
+    /**
+     * Check if callers are waiting for a key to be loaded.
+     */
+    boolean isLoading(CacheKey key) {
+        return pendingLoads.containsKey(key);
+    }
+
+    /**
+     * Get the number of entries in a shard.
+     */
+    long getShardEntries(int shard) {
+        return shardEntries.get(shard);
+    }
+
+    /**
+     * Create a key for this cache according to its canonicalization policy.
+     */
+    public CacheKey createKey(final URL uri, final int ttlSeconds, final String executionId, final String jobExecutionId, final String collectionId) {
+        return new CacheKey(uri, ttlSeconds, executionId, jobExecutionId, collectionId,
+                canonicalizationPolicy == CanonicalizationPolicy.HOST);
+    }
+
+    /**
+     * Load robots.txt for the keys in the background.
+     * <p>
+     * Returns immediately. Keys which are already cached are ignored.
+     *
+     * @param keys the keys to load, see {@link #createKey(URL, int, String, String, String)}
+     * @return the number of keys queued for loading
+     */
+    public int prefetch(Collection<CacheKey> keys) {
+        return prefetch(keys, 0);
+    }
+
+    /**
+     * Load robots.txt for the keys in the background.
+     * <p>
+     * Returns immediately. Keys which are already cached are ignored.
+     *
+     * @param keys     the keys to load, see {@link #createKey(URL, int, String, String, String)}
+     * @param priority keys with higher priority are loaded before keys with lower priority
+     * @return the number of keys queued for loading
+     */
+    public int prefetch(Collection<CacheKey> keys, int priority) {
+        return prefetcher.prefetch(keys, priority);
+    }
+
+    /**
+     * Set a second level store shared with other evaluator replicas.
+     * <p>
+     * When set, robots.txt is looked up in the store before it is fetched, and every fetch is written to the store.
+     * Robots.txt found in the store is not fetched through the proxy for the requesting job.
+     *
+     * @param robotsStore the shared store, or null to fetch every robots.txt
+     */
+    public void setRobotsStore(RobotsStore robotsStore) {
+        this.robotsStore = robotsStore;
+    }
+
+    /**
+     * Write all valid entries to a snapshot file.
+     * <p>
+     * Entries loaded while the snapshot is written may or may not be included. Entries answering a failing host,
+     * which expire before their ttl, are left out.
+     *
+     * @param file the snapshot file, replaced if it exists
+     * @return the number of entries and bytes written
+     * @see #readSnapshot(Path, int)
+     */
+    public RobotsSnapshot.Summary writeSnapshot(Path file) throws IOException {
+        Iterable<Map.Entry<CacheKey, CachedRobots>> entries = () -> shards.stream()
+                .flatMap(shard -> shard.asMap().entrySet().stream())
+                .filter(entry -> entry.getValue().expiresAtMillis == Long.MAX_VALUE)
+                .iterator();
+        RobotsSnapshot.Summary summary = RobotsSnapshot.write(entries, file, System.currentTimeMillis());
+        LOG.info("Wrote {} robots cache entries ({} bytes) to {} in {} ms", summary.getEntries(), summary.getBytes(),
+                file, summary.getElapsedMillis());
+        return summary;
+    }
+
+    /**
+     * Restore entries from a snapshot file without fetching anything.
+     * <p>
+     * Entries keep their original fetch time, so they expire as if they had never left the cache. Expired entries
+     * and entries for keys which are already cached are skipped. Each distinct robots.txt is only parsed once, and
+     * hosts with identical content share the parsed result.
+     *
+     * @param file        a snapshot written by {@link #writeSnapshot(Path)}
+     * @param parallelism the number of threads reading the snapshot
+     * @return the number of entries restored and skipped
+     */
+    public RobotsSnapshot.Summary readSnapshot(Path file, int parallelism) throws IOException {
+        boolean hostOnly = canonicalizationPolicy == CanonicalizationPolicy.HOST;
+        RobotsSnapshot.Summary summary = RobotsSnapshot.read(file, parallelism, System.currentTimeMillis(), entry -> {
+            CacheKey key = new CacheKey(entry.protocol, entry.domain, entry.port, entry.ttlSeconds,
+                    entry.executionId, entry.jobExecutionId, entry.collectionId, hostOnly);
+            Cache<CacheKey, CachedRobots> shard = shardFor(key);
+            if (isCached(key)) {
+                return false;
+            }
+
+            CachedRobots value;
+            AllowAllHosts allowAll = allowAllHosts;
+            if (entry.body == null && allowAll != null) {
+                allowAll.add(key.fingerprint(), entry.fetchTimeMillis + 1000L * entry.ttlSeconds, key.allowAllTag(), key.allowAllDomains());
+                return true;
+            } else if (entry.body == null) {
+                value = CachedRobots.empty(entry.statusCode, entry.fetchTimeMillis);
+            } else {
+                value = parsed(key, entry.statusCode, entry.body, entry.contentHash, entry.fetchTimeMillis);
+            }
+            return shard.putIfAbsent(key, value);
+        });
+        LOG.info("Restored {} robots cache entries from {} in {} ms, skipped {} expired or already cached",
+                summary.getEntries(), file, summary.getElapsedMillis(), summary.getSkipped());
+        return summary;
+    }
+
+    /**
+     * Put a robots.txt in the cache as if it was just fetched, unless the key is cached already. Nothing is stored
+     * in the shared store.
+     *
+     * @return true if the robots.txt was put in the cache
+     */
+    boolean put(CacheKey key, int statusCode, String body, long fetchTimeMillis) {
+        return shardFor(key).putIfAbsent(key, parsed(key, statusCode, body, contentHash(body), fetchTimeMillis));
+    }
+
+    private CachedRobots parsed(CacheKey key, int statusCode, String body, long contentHash, long fetchTimeMillis) {
+        String url = key.protocol + "://" + key.getDomain() + ":" + key.getPort() + "/robots.txt";
+        RobotsInternTable.Interned interned = internTable.intern(body, contentHash, b -> robotsTxtParser.parse(b, url));
+        return new CachedRobots(interned.robotsTxt, interned.body, contentHash, statusCode, fetchTimeMillis);
+    }
+
+    /**
+     * Set the tracer used for spans of robots.txt loads. Defaults to the global tracer.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = Objects.requireNonNull(tracer);
+    }
+
+    /**
+     * Get the index of cached entries by host and job execution.
+     */
+    public CacheIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Check if a key is cached, either in the main cache or in the allow-all set.
+     */
+    boolean isCached(CacheKey key) {
+        AllowAllHosts allowAll = allowAllHosts;
+        return shardFor(key).containsKey(key)
+                || (allowAll != null && allowAll.contains(key.fingerprint(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Get a cached entry without loading it or counting the lookup.
+     *
+     * @param key the key
+     * @return the cached entry, or null if it is not cached
+     */
+    CachedRobots peek(CacheKey key) {
+        return shardFor(key).peek(key);
+    }
+
+    /**
+     * Remove entries from the cache and from the shared store.
+     * <p>
+     * Only this replica's cache is changed. Removing the entries from the shared store makes sure other replicas
+     * fetch robots.txt again the next time they load it.
+     *
+     * @param keys    the keys to remove, see {@link CacheIndex#find(String, String)}
+     * @param refresh if true, robots.txt is loaded again in the background instead of waiting for the next lookup.
+     *                The old entry is used until the new one is loaded
+     * @return the number of keys invalidated
+     */
+    public int invalidate(Collection<CacheKey> keys, boolean refresh) {
+        RobotsStore store = robotsStore;
+        Map<Cache<CacheKey, CachedRobots>, List<CacheKey>> byShard = new HashMap<>();
+        AllowAllHosts allowAll = allowAllHosts;
+        for (CacheKey key : keys) {
+            if (allowAll != null) {
+                allowAll.remove(key.fingerprint());
+            }
+            if (store != null) {
+                try {
+                    store.remove(key.toStoreKey());
+                } catch (Exception e) {
+                    SHARED_STORE.labels("error").inc();
+                    LOG.warn("Could not remove {} from shared store", key, e);
+                }
+            }
+            byShard.computeIfAbsent(shardFor(key), s -> new ArrayList<>()).add(key);
+        }
+        byShard.forEach((shard, shardKeys) -> {
+            if (refresh) {
+                shard.reloadAll(shardKeys);
+            } else {
+                shard.removeAll(shardKeys);
+            }
+        });
+        LOG.info("Invalidated {} robots cache entries{}", keys.size(), refresh ? " for refresh" : "");
+        return keys.size();
+    }
+
+    /**
+     * Remove all entries of a job execution which has ended.
+     * <p>
+     * The entries are found through the {@link CacheIndex}, so the cost depends on the number of entries of the job
+     * execution and not on the size of the cache. Hosts of the job execution in the allow-all set are removed by
+     * scanning the set. Unlike {@link #invalidate(Collection, boolean)} the shared store is left alone, since its
+     * entries are used by other job executions as well.
+     *
+     * @param jobExecutionId the id of the ended job execution
+     * @return the number of entries and allow-all hosts removed
+     */
+    public int evictJobExecution(String jobExecutionId) {
+        if (jobExecutionId == null || jobExecutionId.isEmpty()) {
+            throw new IllegalArgumentException("Job execution id is empty");
+        }
+        List<CacheKey> keys = index.find("", jobExecutionId);
+        Map<Cache<CacheKey, CachedRobots>, List<CacheKey>> byShard = new HashMap<>();
+        for (CacheKey key : keys) {
+            byShard.computeIfAbsent(shardFor(key), s -> new ArrayList<>()).add(key);
+        }
+        byShard.forEach(Cache::removeAll);
+        AllowAllHosts allowAll = allowAllHosts;
+        int evicted = keys.size() + (allowAll == null ? 0 : allowAll.removeMatching(null, jobExecutionId));
+        JOB_EVICTIONS.inc(evicted);
+        LOG.info("Evicted {} robots cache entries of ended job execution {}", evicted, jobExecutionId);
+        return evicted;
+    }
+
+    /**
+     * Remove hosts from the set of hosts without robots.txt, so that they are fetched again when next looked up.
+     * <p>
+     * These hosts are not in the {@link CacheIndex}, so {@link #invalidate(Collection, boolean)} can't find them.
+     * The set doesn't keep host names but hashes of them, so a few hosts not matching the pattern may be removed as
+     * well. They are fetched again when next looked up.
+     *
+     * @param hostPattern    a host pattern as for {@link CacheIndex#find(String, String)}
+     * @param jobExecutionId the job execution id, or empty for all job executions
+     * @return the number of hosts removed
+     */
+    public int forgetAllowAllHosts(String hostPattern, String jobExecutionId) {
+        AllowAllHosts allowAll = allowAllHosts;
+        if (allowAll == null) {
+            return 0;
+        }
+        String jobExecution = jobExecutionId.isEmpty() ? null : jobExecutionId;
+        int removed;
+        if (hostPattern.startsWith("*.")) {
+            removed = allowAll.removeBelow(hostPattern.substring(2), jobExecution);
+        } else {
+            String domain = hostPattern.isEmpty() || "*".equals(hostPattern) ? null : hostPattern;
+            removed = allowAll.removeMatching(domain, jobExecution);
+        }
+        LOG.info("Removed {} hosts from the allow-all set", removed);
+        return removed;
+    }
+
+    /**
+     * Compile the directives of each robots.txt group only when a lookup first resolves to it.
+     * <p>
+     * Applies to robots.txt parsed from now on. See {@link RobotsTxtParser#RobotsTxtParser(boolean)}.
+     *
+     * @param lazyGroups true to compile groups on first use, false to compile all groups when parsing
+     */
+    public void setLazyGroupCompilation(boolean lazyGroups) {
+        robotsTxtParser = new RobotsTxtParser(lazyGroups, groupTable);
+    }
+
+    /**
+     * Only let robots.txt into a full cache when its key was used more often recently than the entry it would evict.
+     * <p>
+     * Lookups are counted in a {@link FrequencySketch} sized for the cache capacity. Keys which are not admitted are
+     * loaded for the lookup and then dropped, so entries which are used often are not evicted by hosts seen only
+     * once. Until the cache is full, every key is admitted.
+     *
+     * @param admission true to compare keys with the eviction victim, false to admit every key
+     */
+    public synchronized void setAdmission(boolean admission) {
+        admissionSketch = admission ? new FrequencySketch(capacity) : null;
+    }
+
+    /**
+     * Keep hosts without robots.txt in a compact set of fingerprints instead of the main cache.
+     * <p>
+     * Lookups for these hosts are answered from the set before the main cache is consulted. They are not listed by
+     * the {@link CacheIndex} and not written to snapshots. Replaces any hosts already in the set.
+     *
+     * @param maxHosts the maximum number of hosts in the set, 0 to keep hosts without robots.txt in the main cache
+     */
+    public void setAllowAllHostsCapacity(long maxHosts) {
+        AllowAllHosts old = allowAllHosts;
+        allowAllHosts = maxHosts > 0 ? new AllowAllHosts(maxHosts) : null;
+        if (old != null) {
+            old.clear();
+        }
+    }
+
+    /**
+     * Track failing robots.txt fetches per host and stop fetching from hosts which keep failing.
+     * <p>
+     * A host failing {@code threshold} fetches in a row is answered by the fetch failure policy without fetching
+     * until a backoff has passed. Then a single fetch probes the host, and the backoff doubles each time the probe
+     * fails. The entries answering a failing host expire when it may be probed again instead of after their ttl.
+     * Replaces any hosts already tracked.
+     *
+     * @param maxHosts      the maximum number of failing hosts to track, 0 to always fetch
+     * @param threshold     the number of failures in a row which stops fetching
+     * @param backoffMillis the time before the first probe
+     * @see #setFetchFailurePolicy(FetchFailurePolicy)
+     */
+    public void setHostFailureTracking(int maxHosts, int threshold, long backoffMillis) {
+        HostFailureTracker old = failureTracker;
+        failureTracker = maxHosts > 0 ? new HostFailureTracker(maxHosts, threshold, backoffMillis) : null;
+        if (old != null) {
+            old.clear();
+        }
+    }
+
+    /**
+     * Set how hosts whose robots.txt can't be fetched are answered.
+     * <p>
+     * Only affects entries loaded after the change.
+     */
+    public void setFetchFailurePolicy(FetchFailurePolicy fetchFailurePolicy) {
+        this.fetchFailurePolicy = Objects.requireNonNull(fetchFailurePolicy);
+    }
+
+    HostFailureTracker getFailureTracker() {
+        return failureTracker;
+    }
+
+    /**
+     * Set the number of threads parsing fetched robots.txt.
+     * <p>
+     * Replaces the parse pool. Parses already queued in the old pool are completed before it is shut down.
+     *
+     * @param parseThreads the number of parser threads, 0 for one per available processor
+     */
+    public void setParseThreads(int parseThreads) {
+        ParsePool old = parsePool;
+        parsePool = new ParsePool(parseThreads);
+        old.close();
+    }
+
+    /**
+     * Set the number of robots.txt fetches allowed to run at the same time.
+     * <p>
+     * Loads above the limit wait in the http client's queue without occupying a thread.
+     *
+     * @param maxConcurrency the maximum number of fetches in flight
+     */
+    public void setFetchMaxConcurrency(int maxConcurrency) {
+        client.dispatcher().setMaxRequests(maxConcurrency);
+        client.dispatcher().setMaxRequestsPerHost(maxConcurrency);
+    }
+
+    /**
+     * Change the total number of entries kept across all shards.
+     * <p>
+     * Shrinking the cache evicts entries until each shard is within its new share of the capacity.
+     *
+     * @param capacity the total number of entries
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+        long shardCapacity = Math.max(1L, (capacity + shards.size() - 1) / shards.size());
+        shards.forEach(shard -> CacheControl.of(shard).changeCapacity(shardCapacity).join());
+        if (this.capacity != capacity && admissionSketch != null) {
+            admissionSketch = new FrequencySketch(capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the total number of entries kept across all shards
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the time robots.txt is cached when the request doesn't say otherwise.
+     * <p>
+     * Only affects entries loaded after the change.
+     *
+     * @param defaultTtlSeconds the default time to live in seconds
+     */
+    public void setDefaultTtlSeconds(int defaultTtlSeconds) {
+        if (defaultTtlSeconds < 1) {
+            throw new IllegalArgumentException("Default TTL must be at least 1 second, was " + defaultTtlSeconds);
+        }
+        this.defaultTtlSeconds = defaultTtlSeconds;
+    }
+
+    public int getDefaultTtlSeconds() {
+        return defaultTtlSeconds;
+    }
+
+    /**
+     * Set the maximum time a robots.txt fetch may take, including connecting and reading the body.
+     * <p>
+     * Fetches already in flight keep the timeout they were started with.
+     *
+     * @param timeoutMs the timeout in milliseconds, 0 for no limit
+     */
+    public synchronized void setFetchTimeoutMs(long timeoutMs) {
+        client = client.newBuilder().callTimeout(Duration.ofMillis(timeoutMs)).build();
+        proxyPool.setBaseClient(client);
+    }
+
+    /**
+     * Change the harvester proxy robots.txt is fetched through.
+     * <p>
+     * Fetches already in flight complete through the old proxy.
+     *
+     * @param proxyHost the harvester proxy host
+     * @param proxyPort the harvester proxy port
+     */
+    public void setProxy(String proxyHost, int proxyPort) {
+        setProxies(List.of(new InetSocketAddress(proxyHost, proxyPort)));
+    }
+
+    /**
+     * Change the harvester proxies robots.txt is fetched through.
+     * <p>
+     * Fetches are spread over the proxies by their latency, and proxies failing fetches in a row are left out for a
+     * while. Proxies which were in the old list keep their idle connections. Fetches already in flight complete
+     * through the proxy they were sent to.
+     *
+     * @param proxies the harvester proxies
+     */
+    public void setProxies(List<InetSocketAddress> proxies) {
+        proxyPool.setProxies(proxies);
+    }
+
+    /**
+     * Send a second request through another proxy when a fetch runs longer than a percentile of recent fetches.
+     * <p>
+     * The first response is used and the other request is cancelled. Has no effect with a single proxy.
+     *
+     * @param percentile a percentile between 0 and 100, 0 turns hedging off
+     */
+    public void setFetchHedgePercentile(double percentile) {
+        proxyPool.setHedgePercentile(percentile);
+    }
+
+    ProxyPool getProxyPool() {
+        return proxyPool;
+    }
+
+    ParsePool getParsePool() {
+        return parsePool;
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    Cache<CacheKey, CachedRobots> shardFor(CacheKey key) {
+        return shards.get(shardIndex(key.getDomain(), shards.size()));
+    }
+
+    /**
+     * Select a shard for a host.
+     * <p>
+     * String.hashCode has poor dispersion in the low bits for similar host names, so the hash is run through the
+     * Murmur3 finalizer before it is reduced to a shard index.
+     *
+     * @param domain     the host name
+     * @param shardCount the number of shards
+     * @return the index of the shard owning the host
+     */
+    static int shardIndex(String domain, int shardCount) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int h = Objects.hashCode(domain);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shardCount;
+    }
+
+    int getShardCount() {
+        return shards.size();
     }
 
     @Override
     public void close() {
-        cache.close();
+        prefetcher.close();
+        parsePool.close();
+        client.dispatcher().executorService().shutdown();
+        proxyPool.close();
+        CollectorRegistry.defaultRegistry.unregister(shardCollector);
+        shards.forEach(Cache::close);
+        storeLookups.shutdown();
+    }
+
+    /**
+     * Exports cache2k's own statistics for each shard.
+     */
+    private class ShardCollector extends Collector {
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<String> labels = Collections.singletonList("shard");
+            GaugeMetricFamily size = new GaugeMetricFamily("robots_cache_entries",
+                    "Number of entries in the robots cache", labels);
+            CounterMetricFamily gets = new CounterMetricFamily("robots_cache_gets",
+                    "Number of robots cache lookups", labels);
+            CounterMetricFamily misses = new CounterMetricFamily("robots_cache_misses",
+                    "Number of robots cache lookups which had to load robots.txt", labels);
+            CounterMetricFamily loadMillis = new CounterMetricFamily("robots_cache_load_milliseconds",
+                    "Total time spent loading robots.txt", labels);
+            CounterMetricFamily evictions = new CounterMetricFamily("robots_cache_evictions",
+                    "Number of entries evicted because the cache was full", labels);
+            CounterMetricFamily expirations = new CounterMetricFamily("robots_cache_expirations",
+                    "Number of entries removed because their TTL expired", labels);
+
+            for (int i = 0; i < shards.size(); i++) {
+                List<String> shard = Collections.singletonList(String.valueOf(i));
+                CacheControl control = CacheControl.of(shards.get(i));
+                CacheStatistics stats = control.sampleStatistics();
+                size.addMetric(shard, control.getSize());
+                gets.addMetric(shard, stats.getGetCount());
+                misses.addMetric(shard, stats.getMissCount());
+                loadMillis.addMetric(shard, stats.getTotalLoadMillis());
+                evictions.addMetric(shard, stats.getEvictedCount());
+                expirations.addMetric(shard, stats.getExpiredCount());
+            }
+            return Arrays.asList(size, gets, misses, loadMillis, evictions, expirations);
+        }
+    }
+
+    /**
+     * A parsed robots.txt together with the content it was parsed from and when it was fetched.
+     * <p>
+     * The content is kept so that the cache can be written to a snapshot without fetching anything again.
+     */
+    static final class CachedRobots {
+
+        final RobotsTxt robotsTxt;
+
+        final String body;
+
+        final long contentHash;
+
+        final int statusCode;
+
+        final long fetchTimeMillis;
+
+        final long expiresAtMillis;
+
+        /**
+         * @param robotsTxt       the parsed robots.txt
+         * @param body            the robots.txt content, or null if the fetch didn't return any robots.txt
+         * @param contentHash     the {@link #contentHash(String)} of the body
+         * @param statusCode      the http status code of the fetch, 0 if there was no response
+         * @param fetchTimeMillis when robots.txt was fetched, in milliseconds since the epoch
+         */
+        CachedRobots(RobotsTxt robotsTxt, String body, long contentHash, int statusCode, long fetchTimeMillis) {
+            this(robotsTxt, body, contentHash, statusCode, fetchTimeMillis, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param expiresAtMillis when the entry expires if that is before its ttl, like the answer for a failing host
+         */
+        CachedRobots(RobotsTxt robotsTxt, String body, long contentHash, int statusCode, long fetchTimeMillis,
+                     long expiresAtMillis) {
+            this.robotsTxt = robotsTxt;
+            this.body = body;
+            this.contentHash = contentHash;
+            this.statusCode = statusCode;
+            this.fetchTimeMillis = fetchTimeMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * @return when the entry expires, by the key's ttl or earlier
+         */
+        long expiresAtMillis(CacheKey key) {
+            return Math.min(expiresAtMillis, fetchTimeMillis + 1000L * key.ttlSeconds);
+        }
+
+        /**
+         * An entry for a host without robots.txt, which allows everything.
+         */
+        static CachedRobots empty(int statusCode, long fetchTimeMillis) {
+            return new CachedRobots(EMPTY_ROBOTS, null, 0L, statusCode, fetchTimeMillis);
+        }
     }
 
     public static final class CacheKey {
@@ -122,14 +1506,71 @@ public class RobotsCache implements AutoCloseable {
 
         private final String collectionId;
 
+        private final boolean hostOnly;
+
         public CacheKey(final URL uri, final int ttlSeconds, final String executionId, final String jobExecutionId, final String collectionId) {
-            this.protocol = uri.getProtocol();
-            this.domain = uri.getHost();
-            this.port = uri.getPort() == -1 ? uri.getDefaultPort() : uri.getPort();
+            this(uri, ttlSeconds, executionId, jobExecutionId, collectionId, false);
+        }
+
+        /**
+         * Create a cache key.
+         *
+         * @param hostOnly if true, keys for different schemes and ports of the same host are considered equal
+         */
+        public CacheKey(final URL uri, final int ttlSeconds, final String executionId, final String jobExecutionId, final String collectionId,
+                        final boolean hostOnly) {
+            this(uri.getProtocol(), uri.getHost(), uri.getPort() == -1 ? uri.getDefaultPort() : uri.getPort(),
+                    ttlSeconds, executionId, jobExecutionId, collectionId, hostOnly);
+        }
+
+        CacheKey(final String protocol, final String domain, final int port, final int ttlSeconds, final String executionId,
+                         final String jobExecutionId, final String collectionId, final boolean hostOnly) {
+            this.protocol = protocol;
+            this.domain = domain;
+            this.port = port;
             this.ttlSeconds = ttlSeconds;
             this.executionId = executionId;
             this.jobExecutionId = jobExecutionId;
             this.collectionId = collectionId;
+            this.hostOnly = hostOnly;
+        }
+
+        /**
+         * @return the {@link AllowAllHosts#fingerprint} of this key
+         */
+        long fingerprint() {
+            return AllowAllHosts.fingerprint(protocol, domain, port, jobExecutionId, hostOnly);
+        }
+
+        long allowAllTag() {
+            return AllowAllHosts.tag(domain, jobExecutionId);
+        }
+
+        long allowAllDomains() {
+            return AllowAllHosts.domains(domain);
+        }
+
+        StoreKey toStoreKey() {
+            return new StoreKey(protocol, domain, port);
+        }
+
+        CacheKey withScheme(String protocol, int port) {
+            return new CacheKey(protocol, domain, port, ttlSeconds, executionId, jobExecutionId, collectionId, hostOnly);
+        }
+
+        /**
+         * Get the key for the same host with the other of http and https.
+         *
+         * @return the key for the other scheme, or null if this key is not for a default http or https port
+         */
+        CacheKey otherScheme() {
+            if ("http".equals(protocol) && port == 80) {
+                return withScheme("https", 443);
+            }
+            if ("https".equals(protocol) && port == 443) {
+                return withScheme("http", 80);
+            }
+            return null;
         }
 
         public String getDomain() {
@@ -148,12 +1589,28 @@ public class RobotsCache implements AutoCloseable {
             return ttlSeconds;
         }
 
+        public String getExecutionId() {
+            return executionId;
+        }
+
+        public String getJobExecutionId() {
+            return jobExecutionId;
+        }
+
+        public String getCollectionId() {
+            return collectionId;
+        }
+
         @Override
         public int hashCode() {
             int hash = 7;
-            hash = 73 * hash + Objects.hashCode(this.protocol);
+            if (!hostOnly) {
+                hash = 73 * hash + Objects.hashCode(this.protocol);
+            }
             hash = 73 * hash + Objects.hashCode(this.domain);
-            hash = 73 * hash + this.port;
+            if (!hostOnly) {
+                hash = 73 * hash + this.port;
+            }
             hash = 73 * hash + Objects.hashCode(this.jobExecutionId);
             return hash;
         }
@@ -170,11 +1627,16 @@ public class RobotsCache implements AutoCloseable {
                 return false;
             }
             final CacheKey other = (CacheKey) obj;
-            if (this.port != other.port) {
+            if (this.hostOnly != other.hostOnly) {
                 return false;
             }
-            if (!Objects.equals(this.protocol, other.protocol)) {
-                return false;
+            if (!hostOnly) {
+                if (this.port != other.port) {
+                    return false;
+                }
+                if (!Objects.equals(this.protocol, other.protocol)) {
+                    return false;
+                }
             }
             if (!Objects.equals(this.domain, other.domain)) {
                 return false;
@@ -185,6 +1647,11 @@ public class RobotsCache implements AutoCloseable {
             return true;
         }
 
+        @Override
+        public String toString() {
+            return "CacheKey{" + protocol + "://" + domain + ":" + port + ", jobExecutionId=" + jobExecutionId + '}';
+        }
+
     }
 
     private static OkHttpClient.Builder getUnsafeOkHttpClient() {
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Shares one parsed robots.txt between all hosts serving identical content.
+ * <p>
+ * Many hosts serve the same robots.txt, like the defaults of a CMS or a hosting provider's template. Without this
+ * each of them gets its own copy of the body and of the parsed groups. Bodies are looked up by their
+ * {@link RobotsCache#contentHash(String)} and compared in full before being shared, so a hash collision only costs a
+ * parse.
+ * Groups which are identical in files that differ elsewhere are shared by the parser's
+ * {@link no.nb.nna.veidemann.robotsparser.DirectiveGroupInternTable}.
+ * <p>
+ * The parsed robots.txt is held by weak reference. When no cache entry uses it any more, it is collected and its
+ * slot in the table is removed on a later lookup.
+ */
+class RobotsInternTable {
+
+    private static final Counter LOOKUPS = Counter.build()
+            .name("robots_intern_lookups_total")
+            .help("Number of parsed robots.txt looked up by content, by whether an identical one was shared")
+            .labelNames("result")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("robots_intern_entries")
+            .help("Number of distinct robots.txt bodies shared between cache entries")
+            .register();
+
+    private final Map<Long, Entry> table = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<RobotsTxt> collected = new ReferenceQueue<>();
+
+    /**
+     * Get the shared parse of a body, parsing it if there is none.
+     *
+     * @param body        the robots.txt content
+     * @param contentHash the content hash of the body
+     * @param parser      parses the body if it isn't shared already
+     * @return the shared body instance and its parse
+     */
+    Interned intern(String body, long contentHash, Function<String, RobotsTxt> parser) {
+        purge();
+        Entry entry = table.get(contentHash);
+        if (entry != null) {
+            RobotsTxt robotsTxt = entry.get();
+            if (robotsTxt != null && entry.body.equals(body)) {
+                LOOKUPS.labels("shared").inc();
+                return new Interned(entry.body, robotsTxt);
+            }
+        }
+
+        RobotsTxt robotsTxt = parser.apply(body);
+        if (entry == null || entry.get() == null) {
+            // On a collision the first body keeps the slot
+            Entry created = new Entry(contentHash, body, robotsTxt, collected);
+            if (entry == null ? table.putIfAbsent(contentHash, created) == null
+                    : table.replace(contentHash, entry, created)) {
+                SIZE.inc();
+            }
+        }
+        LOOKUPS.labels("parsed").inc();
+        return new Interned(body, robotsTxt);
+    }
+
+    /**
+     * Remove the entries of collected robots.txt.
+     */
+    private void purge() {
+        Reference<? extends RobotsTxt> ref;
+        while ((ref = collected.poll()) != null) {
+            Entry entry = (Entry) ref;
+            if (table.remove(entry.contentHash, entry)) {
+                SIZE.dec();
+            }
+        }
+    }
+
+    int size() {
+        purge();
+        return table.size();
+    }
+
+    /**
+     * A body and its parse, shared with all other users of the same body.
+     */
+    static final class Interned {
+
+        final String body;
+
+        final RobotsTxt robotsTxt;
+
+        Interned(String body, RobotsTxt robotsTxt) {
+            this.body = body;
+            this.robotsTxt = robotsTxt;
+        }
+    }
+
+    private static final class Entry extends WeakReference<RobotsTxt> {
+
+        final long contentHash;
+
+        final String body;
+
+        Entry(long contentHash, String body, RobotsTxt robotsTxt, ReferenceQueue<RobotsTxt> queue) {
+            super(robotsTxt, queue);
+            this.contentHash = contentHash;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import no.nb.nna.veidemann.robots.v1.GetRulesReply;
+import no.nb.nna.veidemann.robots.v1.GetRulesRequest;
+import no.nb.nna.veidemann.robots.v1.RobotsDirective;
+import no.nb.nna.veidemann.robots.v1.RobotsRulesGrpc;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CachedRobots;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Optional;
+
+/**
+ * Hands out the robots.txt rules for a host and User Agent, so that clients can evaluate urls without a call per url.
+ * <p>
+ * Only the directives of the group matching the User Agent are sent, together with the time the cached robots.txt
+ * expires. Clients match urls with {@link RobotsTxt.DirectiveGroup#isAllowed(URL)}, which gives the same decisions as
+ * IsAllowed. Like IsAllowed, requests are served by the replica owning the host when a {@link PeerRouter} is used.
+ */
+public class RobotsRulesService extends RobotsRulesGrpc.RobotsRulesImplBase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RobotsRulesService.class);
+
+    private final RobotsCache cache;
+
+    private final PeerRouter peerRouter;
+
+    public RobotsRulesService(RobotsCache cache) {
+        this(cache, null);
+    }
+
+    /**
+     * Create the service.
+     *
+     * @param cache      the robots.txt cache
+     * @param peerRouter router forwarding requests for hosts owned by other replicas, or null if this replica
+     *                   serves all hosts
+     */
+    public RobotsRulesService(RobotsCache cache, PeerRouter peerRouter) {
+        this.cache = cache;
+        this.peerRouter = peerRouter;
+    }
+
+    @Override
+    public void getRules(GetRulesRequest request, StreamObserver<GetRulesReply> respObserver) {
+        URL uri;
+        try {
+            uri = new URL(request.getUri());
+        } catch (MalformedURLException e) {
+            respObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid uri: " + request.getUri())
+                    .asException());
+            return;
+        }
+        try {
+            GetRulesReply forwarded = peerRouter == null ? null : peerRouter.forwardRules(uri.getHost(), request);
+            if (forwarded != null) {
+                respObserver.onNext(forwarded);
+                respObserver.onCompleted();
+                return;
+            }
+
+            int ttlSeconds = request.getTtlSeconds() == 0 ? cache.getDefaultTtlSeconds() : request.getTtlSeconds();
+            RobotsTxt robotsTxt = cache.get(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(),
+                    request.getCollectionId());
+            CacheKey key = cache.createKey(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(),
+                    request.getCollectionId());
+            // Robots.txt which was not admitted to the cache is as fresh as it gets
+            CachedRobots cached = cache.peek(key);
+            long fetchTimeMillis = cached == null ? System.currentTimeMillis() : cached.fetchTimeMillis;
+
+            GetRulesReply.Builder reply = GetRulesReply.newBuilder()
+                    .setExpiresAtMs(fetchTimeMillis + 1000L * ttlSeconds)
+                    .setCrawlDelay(-1);
+            Optional<RobotsTxt.DirectiveGroup> group =
+                    robotsTxt.getMatchingGroup(RobotsTxt.parseUserAgent(request.getUserAgent()));
+            if (group.isPresent()) {
+                reply.setCrawlDelay(group.get().getCrawlDelay());
+                for (RobotsTxt.Directive directive : group.get().getDirectives()) {
+                    reply.addDirectiveBuilder()
+                            .setType(directive.getType() == RobotsTxt.DirectiveType.ALLOW
+                                    ? RobotsDirective.Type.ALLOW : RobotsDirective.Type.DISALLOW)
+                            .setPath(directive.getPath());
+                }
+            }
+            respObserver.onNext(reply.build());
+            respObserver.onCompleted();
+        } catch (StatusRuntimeException ex) {
+            // The caller's deadline passed or it cancelled the call while robots.txt was loading or forwarded
+            LOG.debug("Gave up getting rules for {}: {}", request.getUri(), ex.getStatus());
+            respObserver.onError(ex);
+        } catch (Exception ex) {
+            LOG.error(ex.getMessage(), ex);
+            Status status = Status.UNKNOWN.withDescription(ex.toString());
+            respObserver.onError(status.asException());
+        }
+    }
+}
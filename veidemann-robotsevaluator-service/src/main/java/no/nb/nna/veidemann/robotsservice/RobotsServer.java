@@ -23,10 +23,23 @@ import com.typesafe.config.ConfigFactory;
 import io.opentracing.Tracer;
 import io.opentracing.util.GlobalTracer;
 import io.jaegertracing.Configuration;
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.db.RethinkDbConnection;
 import no.nb.nna.veidemann.robotsservice.settings.Settings;
+import no.nb.nna.veidemann.robotsservice.store.RethinkDbRobotsStore;
+import no.nb.nna.veidemann.robotsservice.store.RobotsStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  *
  */
@@ -34,12 +47,14 @@ public class RobotsServer {
 
     private static final Logger LOG = LoggerFactory.getLogger(RobotsServer.class);
 
+    private static final Config CONFIG;
+
     private static final Settings SETTINGS;
 
     static {
-        Config config = ConfigFactory.load();
-        config.checkValid(ConfigFactory.defaultReference());
-        SETTINGS = ConfigBeanFactory.create(config, Settings.class);
+        CONFIG = ConfigFactory.load();
+        CONFIG.checkValid(ConfigFactory.defaultReference());
+        SETTINGS = ConfigBeanFactory.create(CONFIG, Settings.class);
 
         Tracer tracer = Configuration.fromEnv().getTracer();
         GlobalTracer.registerIfAbsent(tracer);
@@ -55,13 +70,69 @@ public class RobotsServer {
      * @return this instance
      */
     public RobotsServer start() {
-        try (RobotsCache robotsCache = new RobotsCache(SETTINGS.getProxyHost(), SETTINGS.getProxyPort(), SETTINGS.getCacheCapacityNumEntries());
-             RobotsApiServer apiServer = new RobotsApiServer(SETTINGS.getApiPort(), robotsCache)) {
+        DefaultExports.initialize();
+
+        try (RobotsStore robotsStore = createRobotsStore();
+             RobotsCache robotsCache = new RobotsCache(SETTINGS.getProxyHost(), SETTINGS.getProxyPort(),
+                SETTINGS.getCacheCapacityNumEntries(), SETTINGS.getCacheShards(), SETTINGS.getCacheCanonicalization());
+             PeerRouter peerRouter = createPeerRouter();
+             RobotsApiServer apiServer = new RobotsApiServer(SETTINGS.getApiPort(), robotsCache, peerRouter);
+             // HTTPServer isn't Closeable in this version of the Prometheus client
+             Closeable prometheusServer = new HTTPServer(SETTINGS.getPrometheusPort(), true)::stop;
+             SettingsReloader settingsReloader = createSettingsReloader(robotsCache, peerRouter)) {
+
+            if (robotsStore != null) {
+                robotsCache.setRobotsStore(robotsStore);
+            }
+            robotsCache.setDefaultTtlSeconds(SETTINGS.getDefaultTtlSeconds());
+            robotsCache.setParseThreads(SETTINGS.getParseThreads());
+            robotsCache.setLazyGroupCompilation(SETTINGS.isLazyGroupCompilation());
+            robotsCache.setAdmission(SETTINGS.isCacheAdmission());
+            robotsCache.setAllowAllHostsCapacity(SETTINGS.getAllowAllHostsCapacity());
+            robotsCache.setFetchMaxConcurrency(SETTINGS.getFetchMaxConcurrency());
+            robotsCache.setFetchTimeoutMs(SETTINGS.getFetchTimeoutMs());
+            if (!SETTINGS.getProxies().isBlank()) {
+                robotsCache.setProxies(ProxyPool.parseProxies(SETTINGS.getProxies()));
+            }
+            robotsCache.setFetchHedgePercentile(SETTINGS.getFetchHedgePercentile());
+            robotsCache.setFetchFailurePolicy(SETTINGS.getFetchFailurePolicy());
+            robotsCache.setHostFailureTracking(SETTINGS.getHostFailureTrackingCapacity(),
+                    SETTINGS.getHostFailureThreshold(), 1000L * SETTINGS.getHostFailureBackoffSeconds());
+            robotsCache.getPrefetcher().setQueueCapacity(SETTINGS.getPrefetchQueueCapacity());
+            robotsCache.getPrefetcher().setRatePerSecond(SETTINGS.getPrefetchRatePerSecond());
+            robotsCache.getPrefetcher().setMaxInFlight(SETTINGS.getPrefetchMaxInFlight());
+
+            apiServer.getRobotsService().setTraceSampleRate(SETTINGS.getTraceSampleRate());
+            apiServer.getReplyCache().setMinBytes(SETTINGS.getReplyCacheMinBytes());
+
+            if (SETTINGS.isPolitenessTracking()) {
+                apiServer.getRobotsService().setPolitenessTracker(
+                        new PolitenessTracker(SETTINGS.getPolitenessTrackingCapacity()));
+            }
+
+            Path snapshotPath = getSnapshotPath();
+            apiServer.getAdminService().setSnapshotPath(snapshotPath);
+            if (snapshotPath != null && SETTINGS.isSnapshotRestoreOnStart()) {
+                restoreSnapshot(robotsCache, snapshotPath);
+            }
+
+            if (settingsReloader != null) {
+                settingsReloader.start(SETTINGS.getRuntimeConfigCheckSeconds());
+            }
 
             registerShutdownHook();
 
             apiServer.start();
 
+            // Traffic is let in by the health service once the parsers and the request path are warm
+            long warmupMillis = 1000L * SETTINGS.getWarmupMaxSeconds();
+            long warmupStart = System.currentTimeMillis();
+            Warmup warmup = new Warmup(SETTINGS.isLazyGroupCompilation());
+            warmup.run(SETTINGS.getWarmupIterations(), warmupMillis);
+            warmup.runRequests(robotsCache, apiServer.getRobotsServiceDefinition(), SETTINGS.getWarmupIterations(),
+                    warmupMillis - (System.currentTimeMillis() - warmupStart));
+            apiServer.setServing(true);
+
             LOG.info("Veidemann Robots Evaluator (v. {}) started", RobotsServer.class.getPackage().getImplementationVersion());
 
             try {
@@ -72,11 +143,69 @@ public class RobotsServer {
         } catch (ConfigException ex) {
             System.err.println("Configuration error: " + ex.getLocalizedMessage());
             System.exit(1);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (DbException ex) {
+            LOG.error("Could not connect to shared robots store: {}", ex.getLocalizedMessage(), ex);
+            System.exit(1);
         }
 
         return this;
     }
 
+    private Path getSnapshotPath() {
+        if (SETTINGS.getSnapshotPath().trim().isEmpty()) {
+            return null;
+        }
+        return Paths.get(SETTINGS.getSnapshotPath().trim());
+    }
+
+    /**
+     * Restore the cache from a snapshot before the api is started. A missing or unreadable snapshot is logged and
+     * the evaluator starts with an empty cache.
+     */
+    private void restoreSnapshot(RobotsCache robotsCache, Path snapshotPath) {
+        if (!Files.isReadable(snapshotPath)) {
+            LOG.info("No robots cache snapshot found at {}", snapshotPath);
+            return;
+        }
+        try {
+            robotsCache.readSnapshot(snapshotPath, SETTINGS.getSnapshotRestoreThreads());
+        } catch (IOException ex) {
+            LOG.warn("Could not restore robots cache snapshot from {}, starting with an empty cache",
+                    snapshotPath, ex);
+        }
+    }
+
+    private RobotsStore createRobotsStore() throws DbException {
+        switch (SETTINGS.getSharedCacheType()) {
+            case RETHINKDB:
+                LOG.info("Using RethinkDB as shared robots store");
+                return new RethinkDbRobotsStore(RethinkDbConnection.configure(SETTINGS));
+            default:
+                return null;
+        }
+    }
+
+    private PeerRouter createPeerRouter() {
+        if (SETTINGS.getPeers().trim().isEmpty()) {
+            return null;
+        }
+        if (SETTINGS.getPeerSelf().trim().isEmpty()) {
+            throw new ConfigException.BadValue("peerSelf", "must be set when peers is set");
+        }
+        PeerRouter peerRouter = new PeerRouter(SETTINGS.getPeerSelf().trim(), PeerRouter.parsePeers(SETTINGS.getPeers()));
+        peerRouter.setForwardTimeoutMs(SETTINGS.getPeerForwardTimeoutMs());
+        return peerRouter;
+    }
+
+    private SettingsReloader createSettingsReloader(RobotsCache robotsCache, PeerRouter peerRouter) {
+        if (SETTINGS.getRuntimeConfigPath().trim().isEmpty()) {
+            return null;
+        }
+        return new SettingsReloader(Paths.get(SETTINGS.getRuntimeConfigPath().trim()), CONFIG, robotsCache, peerRouter);
+    }
+
     private void registerShutdownHook() {
         Thread mainThread = Thread.currentThread();
 
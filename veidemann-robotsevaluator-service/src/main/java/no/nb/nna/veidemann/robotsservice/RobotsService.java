@@ -16,17 +16,23 @@
 package no.nb.nna.veidemann.robotsservice;
 
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.util.GlobalTracer;
 import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply.OtherField;
 import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
 import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
 import no.nb.nna.veidemann.robotsparser.RobotsTxt;
-import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URL;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static no.nb.nna.veidemann.robotsparser.RobotsTxt.EMPTY_ALLOWED_REPLY;
 import static no.nb.nna.veidemann.robotsservice.RobotsCache.EMPTY_ROBOTS;
@@ -40,65 +46,203 @@ public class RobotsService extends RobotsEvaluatorGrpc.RobotsEvaluatorImplBase {
 
     private final RobotsCache cache;
 
-    private final RobotsTxtParser ROBOTS_TXT_PARSER = new RobotsTxtParser();
+    private final PolicyHandle.Registry policyHandles = new PolicyHandle.Registry();
+
+    private final PeerRouter peerRouter;
+
+    private volatile PolitenessTracker politenessTracker;
+
+    private volatile SerializedReplyCache replyCache;
+
+    private volatile Tracer tracer = GlobalTracer.get();
+
+    private volatile double traceSampleRate = DEFAULT_TRACE_SAMPLE_RATE;
+
+    static final double DEFAULT_TRACE_SAMPLE_RATE = 0.01;
 
     public RobotsService(RobotsCache cache) {
+        this(cache, null);
+    }
+
+    /**
+     * Create the service.
+     *
+     * @param cache      the robots cache
+     * @param peerRouter router forwarding requests for hosts owned by other replicas, or null if this replica
+     *                   evaluates all hosts
+     */
+    public RobotsService(RobotsCache cache, PeerRouter peerRouter) {
         this.cache = cache;
+        this.peerRouter = peerRouter;
+    }
+
+    /**
+     * Track the fetches of each host and return the earliest next fetch time with every allowed uri.
+     * <p>
+     * The time is returned in the other fields of the reply, see {@link PolitenessTracker#NEXT_FETCH_FIELD}.
+     *
+     * @param politenessTracker the tracker, or null to turn tracking off
+     */
+    public void setPolitenessTracker(PolitenessTracker politenessTracker) {
+        this.politenessTracker = politenessTracker;
+    }
+
+    /**
+     * Keep the serialized form of large replies sent unchanged from a cached robots.txt.
+     *
+     * @param replyCache the cache of serialized replies, or null to serialize every reply
+     */
+    public void setSerializedReplyCache(SerializedReplyCache replyCache) {
+        this.replyCache = replyCache;
+    }
+
+    /**
+     * Set the fraction of traced requests which get a span for each step of the evaluation.
+     * <p>
+     * Loads of robots.txt are always traced when the request is. Spans for the cache lookup and matching are only
+     * added for a sample of requests, since they cost about as much as the lookup and matching themselves.
+     *
+     * @param traceSampleRate a number between 0 for none and 1 for all requests
+     */
+    public void setTraceSampleRate(double traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    /**
+     * Set the tracer used for the spans of each step. Defaults to the global tracer.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = Objects.requireNonNull(tracer);
     }
 
     @Override
     public void isAllowed(IsAllowedRequest request, StreamObserver<IsAllowedReply> respObserver) {
-        Objects.requireNonNull(request.getExecutionId());
-        Objects.requireNonNull(request.getJobExecutionId());
-        Objects.requireNonNull(request.getPoliteness());
-        Objects.requireNonNull(request.getUnknownFields());
-        Objects.requireNonNull(request.getUserAgent());
-        Objects.requireNonNull(request.getCollectionRef());
         try {
             URL uri = new URL(request.getUri());
-            int ttlSeconds = request.getPoliteness().getPolitenessConfig().getMinimumRobotsValidityDurationS();
-            if (ttlSeconds == 0) {
-                ttlSeconds = 300;
+            PolicyHandle policy = policyHandles.get(request.getPoliteness());
+            IsAllowedReply reply = policy.usesCache() ? forward(uri, request) : null;
+            if (reply != null) {
+                respObserver.onNext(reply);
+                respObserver.onCompleted();
+                return;
             }
-            IsAllowedReply reply;
 
-            switch (request.getPoliteness().getPolitenessConfig().getRobotsPolicy()) {
-                case OBEY_ROBOTS:
-                case OBEY_ROBOTS_CLASSIC:
-                    reply = cache.get(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(), request.getCollectionRef().getId())
-                            .isAllowed(request.getUserAgent(), uri);
-                    break;
-                case IGNORE_ROBOTS:
-                    reply = EMPTY_ALLOWED_REPLY;
+            boolean detailed = sampleDetail();
+            switch (policy.mode) {
+                case OBEY:
+                    reply = match(lookup(uri, policy, request, detailed), policy, request, uri, detailed);
                     break;
-                case CUSTOM_ROBOTS:
-                case CUSTOM_ROBOTS_CLASSIC:
-                    reply = ROBOTS_TXT_PARSER.parse(request.getPoliteness().getPolitenessConfig().getCustomRobots(), "custom")
-                            .isAllowed(request.getUserAgent(), uri);
+                case CUSTOM:
+                    reply = match(policy.customRobots, policy, request, uri, detailed);
                     break;
                 case CUSTOM_IF_MISSING:
-                case CUSTOM_IF_MISSING_CLASSIC:
-                    RobotsTxt r = cache.get(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(), request.getCollectionRef().getId());
+                    RobotsTxt r = lookup(uri, policy, request, detailed);
                     if (r == EMPTY_ROBOTS) {
-                        reply = ROBOTS_TXT_PARSER.parse(request.getPoliteness().getPolitenessConfig().getCustomRobots(), "custom")
-                                .isAllowed(request.getUserAgent(), uri);
-                    } else {
-                        reply = r.isAllowed(request.getUserAgent(), uri);
+                        r = policy.customRobots;
                     }
+                    reply = match(r, policy, request, uri, detailed);
                     break;
+                case IGNORE:
                 default:
-                    LOG.warn("Robots Policy '{}' is not implemented.", request.getPoliteness()
-                            .getPolitenessConfig().getRobotsPolicy());
                     reply = EMPTY_ALLOWED_REPLY;
                     break;
             }
 
-            respObserver.onNext(reply);
+            IsAllowedReply sent = withNextFetchTime(uri, policy, request, reply);
+            SerializedReplyCache serialized = replyCache;
+            if (serialized != null && sent == reply) {
+                serialized.retain(sent);
+            }
+            respObserver.onNext(sent);
             respObserver.onCompleted();
+        } catch (StatusRuntimeException ex) {
+            // The caller's deadline passed or it cancelled the call while robots.txt was loading or forwarded
+            LOG.debug("Gave up evaluating {}: {}", request.getUri(), ex.getStatus());
+            respObserver.onError(ex);
         } catch (Exception ex) {
             LOG.error(ex.getMessage(), ex);
             Status status = Status.UNKNOWN.withDescription(ex.toString());
             respObserver.onError(status.asException());
         }
     }
+
+    /**
+     * Decide whether the steps of a request get their own spans.
+     */
+    private boolean sampleDetail() {
+        double rate = traceSampleRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate)
+                && tracer.activeSpan() != null;
+    }
+
+    private RobotsTxt lookup(URL uri, PolicyHandle policy, IsAllowedRequest request, boolean detailed) {
+        int ttlSeconds = policy.ttlSeconds(cache.getDefaultTtlSeconds());
+        if (!detailed) {
+            return cache.get(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(),
+                    request.getCollectionRef().getId());
+        }
+        // The cache replaces the hit tag if robots.txt has to be loaded
+        Span span = tracer.buildSpan("robots.cache.get")
+                .withTag("robots.host", uri.getHost())
+                .withTag(RobotsCache.CACHE_HIT_TAG, true)
+                .start();
+        try (Scope ignored = tracer.activateSpan(span)) {
+            return cache.get(uri, ttlSeconds, request.getExecutionId(), request.getJobExecutionId(),
+                    request.getCollectionRef().getId());
+        } finally {
+            span.finish();
+        }
+    }
+
+    private IsAllowedReply match(RobotsTxt robotsTxt, PolicyHandle policy, IsAllowedRequest request, URL uri,
+                                 boolean detailed) {
+        String userAgent = policy.baseUserAgent(request.getUserAgent());
+        if (!detailed) {
+            return robotsTxt.isAllowedForBaseUserAgent(userAgent, uri);
+        }
+        Span span = tracer.buildSpan("robots.match").start();
+        try {
+            IsAllowedReply reply = robotsTxt.isAllowedForBaseUserAgent(userAgent, uri);
+            span.setTag("robots.allowed", reply.getIsAllowed());
+            return reply;
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Reserve the next fetch of an allowed uri's host.
+     * <p>
+     * The delay between fetches is the larger of the politeness config's minimum time between page loads and the
+     * robots.txt crawl-delay.
+     */
+    private IsAllowedReply withNextFetchTime(URL uri, PolicyHandle policy, IsAllowedRequest request,
+                                             IsAllowedReply reply) {
+        PolitenessTracker tracker = politenessTracker;
+        if (tracker == null || !reply.getIsAllowed()) {
+            return reply;
+        }
+        long delayMillis = policy.minTimeBetweenPageLoadMs;
+        if (reply.getCrawlDelay() > 0) {
+            delayMillis = Math.max(delayMillis, (long) (reply.getCrawlDelay() * 1000));
+        }
+        long nextFetch = tracker.reserve(uri.getHost(), request.getPoliteness().getId(), delayMillis,
+                System.currentTimeMillis());
+        return reply.toBuilder()
+                .addOtherFields(OtherField.newBuilder()
+                        .setName(PolitenessTracker.NEXT_FETCH_FIELD)
+                        .setValue(Long.toString(nextFetch)))
+                .build();
+    }
+
+    /**
+     * Forward a request to the replica owning the uri's host. Only used for policies needing the site's robots.txt,
+     * the others are cheaper to evaluate locally.
+     */
+    private IsAllowedReply forward(URL uri, IsAllowedRequest request) {
+        if (peerRouter == null) {
+            return null;
+        }
+        return peerRouter.forward(uri.getHost(), request);
+    }
 }
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CachedRobots;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binary snapshot of the robots cache.
+ * <p>
+ * The file starts with a magic number and a format version, followed by blocks of entries. Each block starts with
+ * its length in bytes and its number of entries, so a reader can find all blocks by skipping from header to header
+ * and then decode them in parallel from memory mapped regions of the file.
+ * <p>
+ * An entry holds the key, the http status, the fetch time and the raw robots.txt body. Parsed robots.txt is not
+ * written, it is parsed again when the snapshot is read.
+ * <p>
+ * Hosts kept in the allow-all set instead of the cache are not written, since the set has no host names. After a
+ * restore they are fetched again on their first lookup.
+ */
+public final class RobotsSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RobotsSnapshot.class);
+
+    static final int MAGIC = 0x56524253;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 8;
+
+    static final int BLOCK_HEADER_BYTES = 8;
+
+    static final int TARGET_BLOCK_BYTES = 1024 * 1024;
+
+    /**
+     * An entry as read from a snapshot.
+     */
+    static final class Entry {
+        final String protocol;
+
+        final String domain;
+
+        final int port;
+
+        final int ttlSeconds;
+
+        final String executionId;
+
+        final String jobExecutionId;
+
+        final String collectionId;
+
+        final int statusCode;
+
+        final long fetchTimeMillis;
+
+        final long contentHash;
+
+        final String body;
+
+        Entry(String protocol, String domain, int port, int ttlSeconds, String executionId, String jobExecutionId,
+              String collectionId, int statusCode, long fetchTimeMillis, long contentHash, String body) {
+            this.protocol = protocol;
+            this.domain = domain;
+            this.port = port;
+            this.ttlSeconds = ttlSeconds;
+            this.executionId = executionId;
+            this.jobExecutionId = jobExecutionId;
+            this.collectionId = collectionId;
+            this.statusCode = statusCode;
+            this.fetchTimeMillis = fetchTimeMillis;
+            this.contentHash = contentHash;
+            this.body = body;
+        }
+
+        boolean isFresh(long nowMillis) {
+            return fetchTimeMillis + 1000L * ttlSeconds > nowMillis;
+        }
+    }
+
+    /**
+     * Receives the entries of a snapshot. Called concurrently from the reader threads.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        /**
+         * @return true if the entry was restored
+         */
+        boolean accept(Entry entry);
+    }
+
+    /**
+     * The outcome of writing or reading a snapshot.
+     */
+    public static final class Summary {
+        private final long entries;
+
+        private final long skipped;
+
+        private final long bytes;
+
+        private final long elapsedMillis;
+
+        Summary(long entries, long skipped, long bytes, long elapsedMillis) {
+            this.entries = entries;
+            this.skipped = skipped;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return the number of entries written or restored
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the number of entries left out because they were expired or already cached
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{entries=" + entries + ", skipped=" + skipped + ", bytes=" + bytes
+                    + ", elapsedMillis=" + elapsedMillis + '}';
+        }
+    }
+
+    private RobotsSnapshot() {
+    }
+
+    /**
+     * Write entries to a snapshot file.
+     * <p>
+     * The snapshot is written to a temporary file which replaces the target when complete, so a failed write never
+     * leaves a truncated snapshot behind.
+     *
+     * @param entries   the cache entries to write
+     * @param file      the snapshot file
+     * @param nowMillis entries which have expired at this time are left out
+     * @return the number of entries and bytes written
+     */
+    static Summary write(Iterable<Map.Entry<CacheKey, CachedRobots>> entries, Path file, long nowMillis)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long written = 0;
+        long skipped = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(TARGET_BLOCK_BYTES + 64 * 1024);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            int blockEntries = 0;
+            for (Map.Entry<CacheKey, CachedRobots> e : entries) {
+                CacheKey key = e.getKey();
+                CachedRobots value = e.getValue();
+                if (value == null || value.fetchTimeMillis + 1000L * key.getTtlSeconds() <= nowMillis) {
+                    skipped++;
+                    continue;
+                }
+                writeEntry(blockOut, key, value);
+                blockEntries++;
+                written++;
+                if (block.size() >= TARGET_BLOCK_BYTES) {
+                    writeBlock(out, block, blockEntries);
+                    blockEntries = 0;
+                }
+            }
+            if (blockEntries > 0) {
+                writeBlock(out, block, blockEntries);
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Summary(written, skipped, Files.size(file), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Read a snapshot file.
+     * <p>
+     * Blocks are memory mapped and decoded in parallel. Entries which have expired are skipped, the rest are handed
+     * to the consumer.
+     *
+     * @param file        the snapshot file
+     * @param parallelism the number of threads decoding blocks
+     * @param nowMillis   entries which have expired at this time are skipped
+     * @param consumer    receives each entry which is still valid
+     * @return the number of entries restored and skipped
+     */
+    static Summary read(Path file, int parallelism, long nowMillis, EntryConsumer consumer) throws IOException {
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = readFully(channel, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a robots cache snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported robots cache snapshot version " + version + " in " + file);
+            }
+
+            // Find the blocks by skipping from one block header to the next
+            List<long[]> blocks = new ArrayList<>();
+            long position = HEADER_BYTES;
+            while (position < size) {
+                ByteBuffer blockHeader = readFully(channel, position, BLOCK_HEADER_BYTES);
+                int length = blockHeader.getInt();
+                int count = blockHeader.getInt();
+                if (length < 0 || count < 0 || position + BLOCK_HEADER_BYTES + length > size) {
+                    throw new IOException("Truncated robots cache snapshot " + file + " at offset " + position);
+                }
+                blocks.add(new long[]{position + BLOCK_HEADER_BYTES, length, count});
+                position += BLOCK_HEADER_BYTES + length;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+                Thread t = new Thread(r, "robots-snapshot-reader");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<long[]>> results = new ArrayList<>(blocks.size());
+                for (long[] block : blocks) {
+                    results.add(executor.submit(() -> {
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, block[0], block[1]);
+                        return readBlock(buffer, (int) block[2], nowMillis, consumer);
+                    }));
+                }
+
+                long restored = 0;
+                long skipped = 0;
+                for (Future<long[]> result : results) {
+                    long[] counts = result.get();
+                    restored += counts[0];
+                    skipped += counts[1];
+                }
+                return new Summary(restored, skipped, size, System.currentTimeMillis() - start);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof BufferUnderflowException) {
+                    throw new IOException("Corrupt robots cache snapshot " + file, e.getCause());
+                }
+                throw new IOException("Could not read robots cache snapshot " + file, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading robots cache snapshot " + file, e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static long[] readBlock(ByteBuffer buffer, int count, long nowMillis, EntryConsumer consumer) {
+        long restored = 0;
+        long skipped = 0;
+        for (int i = 0; i < count; i++) {
+            Entry entry = readEntry(buffer);
+            if (entry.isFresh(nowMillis) && consumer.accept(entry)) {
+                restored++;
+            } else {
+                skipped++;
+            }
+        }
+        if (buffer.hasRemaining()) {
+            LOG.warn("Ignoring {} trailing bytes in robots cache snapshot block", buffer.remaining());
+        }
+        return new long[]{restored, skipped};
+    }
+
+    private static void writeBlock(DataOutputStream out, ByteArrayOutputStream block, int entries)
+            throws IOException {
+        out.writeInt(block.size());
+        out.writeInt(entries);
+        block.writeTo(out);
+        block.reset();
+    }
+
+    static void writeEntry(DataOutputStream out, CacheKey key, CachedRobots value) throws IOException {
+        writeString(out, key.getProtocol());
+        writeString(out, key.getDomain());
+        out.writeInt(key.getPort());
+        out.writeInt(key.getTtlSeconds());
+        writeString(out, key.getExecutionId());
+        writeString(out, key.getJobExecutionId());
+        writeString(out, key.getCollectionId());
+        out.writeInt(value.statusCode);
+        out.writeLong(value.fetchTimeMillis);
+        out.writeLong(value.contentHash);
+        writeString(out, value.body);
+    }
+
+    static Entry readEntry(ByteBuffer in) {
+        String protocol = readString(in);
+        String domain = readString(in);
+        int port = in.getInt();
+        int ttlSeconds = in.getInt();
+        String executionId = readString(in);
+        String jobExecutionId = readString(in);
+        String collectionId = readString(in);
+        int statusCode = in.getInt();
+        long fetchTimeMillis = in.getLong();
+        long contentHash = in.getLong();
+        String body = readString(in);
+        return new Entry(protocol, domain, port, ttlSeconds, executionId, jobExecutionId, collectionId,
+                statusCode, fetchTimeMillis, contentHash, body);
+    }
+
+    /**
+     * Strings are written as their UTF-8 length followed by the bytes, -1 for null. Unlike
+     * {@link DataOutputStream#writeUTF(String)} this is not limited to 64KB.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of robots cache snapshot at offset " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import com.google.common.collect.MapMaker;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.protobuf.ProtoUtils;
+import io.prometheus.client.Counter;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the serialized form of large replies which are sent many times.
+ * <p>
+ * Robots.txt files with many sitemaps or other fields give replies of several kilobytes, and without this every
+ * reply is serialized again for every call. The replies of a cached robots.txt are shared between calls (see
+ * {@link no.nb.nna.veidemann.robotsparser.RobotsTxt}), so their bytes can be kept with them. The service marks the
+ * replies it sends unchanged with {@link #retain(IsAllowedReply)}, and the marshaller of the IsAllowed method writes
+ * retained replies from their bytes.
+ * <p>
+ * Replies are held by weak reference and compared by identity, so bytes are dropped together with the robots.txt
+ * they belong to.
+ */
+public class SerializedReplyCache {
+
+    private static final Counter REPLIES = Counter.build()
+            .name("robots_serialized_replies_total")
+            .help("Number of replies too large to be serialized for every call, by whether they were serialized or "
+                    + "written from kept bytes")
+            .labelNames("result")
+            .register();
+
+    static final int DEFAULT_MIN_BYTES = 1024;
+
+    private final Marshaller<IsAllowedReply> delegate = ProtoUtils.marshaller(IsAllowedReply.getDefaultInstance());
+
+    private final ConcurrentMap<IsAllowedReply, byte[]> serialized = new MapMaker().weakKeys().makeMap();
+
+    private volatile int minBytes = DEFAULT_MIN_BYTES;
+
+    /**
+     * Set the size from which replies are kept serialized.
+     *
+     * @param minBytes the minimum serialized size, 0 to serialize every reply for every call
+     */
+    public void setMinBytes(int minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * Keep the bytes of a reply which will be sent again.
+     */
+    void retain(IsAllowedReply reply) {
+        int min = minBytes;
+        if (min <= 0 || reply.getSerializedSize() < min || serialized.containsKey(reply)) {
+            return;
+        }
+        serialized.putIfAbsent(reply, reply.toByteArray());
+        REPLIES.labels("serialized").inc();
+    }
+
+    int size() {
+        return serialized.size();
+    }
+
+    /**
+     * Bind a service with a marshaller writing retained replies from their bytes.
+     */
+    ServerServiceDefinition bind(RobotsEvaluatorGrpc.RobotsEvaluatorImplBase service) {
+        ServerServiceDefinition definition = service.bindService();
+        // Built by name, a service descriptor would require its own method descriptor instances
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(
+                definition.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> method : definition.getMethods()) {
+            if (method.getMethodDescriptor().equals(RobotsEvaluatorGrpc.getIsAllowedMethod())) {
+                builder.addMethod(withMarshaller(method));
+            } else {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServerMethodDefinition<IsAllowedRequest, IsAllowedReply> withMarshaller(ServerMethodDefinition<?, ?> m) {
+        ServerMethodDefinition<IsAllowedRequest, IsAllowedReply> method =
+                (ServerMethodDefinition<IsAllowedRequest, IsAllowedReply>) m;
+        MethodDescriptor<IsAllowedRequest, IsAllowedReply> descriptor = method.getMethodDescriptor()
+                .toBuilder(method.getMethodDescriptor().getRequestMarshaller(), new ReplyMarshaller())
+                .build();
+        return ServerMethodDefinition.create(descriptor, method.getServerCallHandler());
+    }
+
+    private class ReplyMarshaller implements Marshaller<IsAllowedReply> {
+
+        @Override
+        public InputStream stream(IsAllowedReply reply) {
+            byte[] bytes = serialized.get(reply);
+            if (bytes == null) {
+                return delegate.stream(reply);
+            }
+            REPLIES.labels("kept").inc();
+            return new BytesStream(bytes);
+        }
+
+        @Override
+        public IsAllowedReply parse(InputStream stream) {
+            return delegate.parse(stream);
+        }
+    }
+
+    /**
+     * A stream of kept bytes which gRPC can write to the transport without copying them first.
+     */
+    private static final class BytesStream extends ByteArrayInputStream implements KnownLength, Drainable {
+
+        BytesStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
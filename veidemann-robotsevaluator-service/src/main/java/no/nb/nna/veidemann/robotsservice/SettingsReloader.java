@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigParseOptions;
+import com.typesafe.config.ConfigValue;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Applies changes to a runtime config file without restarting the evaluator.
+ * <p>
+ * The file is in the same format as application.conf, and the settings in it override the settings the evaluator
+ * was started with. It is checked at a fixed interval rather than watched for file system events, since config maps
+ * mounted in a container are replaced through a symbolic link which most watch implementations don't report.
+ * <p>
+ * Only settings which can be changed on a running evaluator are applied. Each changed setting is logged and counted,
+ * and the current value of numeric settings is exported. Changes to other settings are logged as requiring a
+ * restart. A setting which can't be applied keeps its old value.
+ */
+public class SettingsReloader implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SettingsReloader.class);
+
+    private static final Counter RELOADS = Counter.build()
+            .name("robots_settings_reloads_total")
+            .help("Number of times the runtime config file was read by result")
+            .labelNames("result")
+            .register();
+
+    private static final Counter CHANGES = Counter.build()
+            .name("robots_settings_changes_total")
+            .help("Number of changes applied to a setting without restart")
+            .labelNames("setting")
+            .register();
+
+    private static final Gauge VALUES = Gauge.build()
+            .name("robots_settings_value")
+            .help("Current value of numeric settings which can be changed without restart")
+            .labelNames("setting")
+            .register();
+
+    private final Path file;
+
+    private final Config base;
+
+    private final List<Property> properties;
+
+    private final Map<String, Object> applied = new HashMap<>();
+
+    private final ScheduledExecutorService executor;
+
+    private String lastSeen;
+
+    /**
+     * Create a reloader. Settings are assumed to already be applied with their values in the base config.
+     *
+     * @param file       the runtime config file, which does not have to exist
+     * @param base       the config the evaluator was started with
+     * @param cache      the robots cache
+     * @param peerRouter the peer router, or null if host affinity is not used
+     */
+    @SuppressWarnings("unchecked")
+    public SettingsReloader(Path file, Config base, RobotsCache cache, PeerRouter peerRouter) {
+        this.file = Objects.requireNonNull(file);
+        this.base = base;
+
+        List<Property> props = new ArrayList<>();
+        props.add(new Property("cacheCapacityNumEntries", c -> c.getLong("cacheCapacityNumEntries"),
+                v -> cache.setCapacity((Long) v)));
+        props.add(new Property("defaultTtlSeconds", c -> c.getInt("defaultTtlSeconds"),
+                v -> cache.setDefaultTtlSeconds((Integer) v)));
+        props.add(new Property("fetchTimeoutMs", c -> c.getLong("fetchTimeoutMs"),
+                v -> cache.setFetchTimeoutMs((Long) v)));
+        props.add(new Property("fetchMaxConcurrency", c -> c.getInt("fetchMaxConcurrency"),
+                v -> cache.setFetchMaxConcurrency((Integer) v)));
+        props.add(new Property("parseThreads", c -> c.getInt("parseThreads"),
+                v -> cache.setParseThreads((Integer) v)));
+        props.add(new Property("proxy", c -> c.getString("proxies").isBlank()
+                ? c.getString("proxyHost") + ":" + c.getInt("proxyPort") : c.getString("proxies"),
+                v -> cache.setProxies(ProxyPool.parseProxies((String) v)), "proxyHost", "proxyPort", "proxies"));
+        props.add(new Property("fetchHedgePercentile", c -> c.getDouble("fetchHedgePercentile"),
+                v -> cache.setFetchHedgePercentile((Double) v)));
+        props.add(new Property("prefetchQueueCapacity", c -> c.getInt("prefetchQueueCapacity"),
+                v -> cache.getPrefetcher().setQueueCapacity((Integer) v)));
+        props.add(new Property("prefetchRatePerSecond", c -> c.getInt("prefetchRatePerSecond"),
+                v -> cache.getPrefetcher().setRatePerSecond((Integer) v)));
+        props.add(new Property("prefetchMaxInFlight", c -> c.getInt("prefetchMaxInFlight"),
+                v -> cache.getPrefetcher().setMaxInFlight((Integer) v)));
+        if (peerRouter != null) {
+            props.add(new Property("peers", c -> PeerRouter.parsePeers(c.getString("peers")),
+                    v -> peerRouter.setPeers((List<String>) v)));
+            props.add(new Property("peerForwardTimeoutMs", c -> c.getLong("peerForwardTimeoutMs"),
+                    v -> peerRouter.setForwardTimeoutMs((Long) v)));
+        }
+        properties = Collections.unmodifiableList(props);
+
+        for (Property property : properties) {
+            Object value = property.read.apply(base);
+            applied.put(property.name, value);
+            export(property, value);
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "settings-reloader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Check the file for changes at a fixed interval.
+     *
+     * @param intervalSeconds the time between checks
+     * @return this reloader
+     */
+    public SettingsReloader start(int intervalSeconds) {
+        LOG.info("Checking {} for runtime settings every {} s", file, intervalSeconds);
+        executor.scheduleWithFixedDelay(this::checkForChanges, 0, intervalSeconds, TimeUnit.SECONDS);
+        return this;
+    }
+
+    private void checkForChanges() {
+        try {
+            String seen = null;
+            if (Files.exists(file)) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                seen = attributes.lastModifiedTime() + "/" + attributes.size();
+            }
+            if (!Objects.equals(seen, lastSeen)) {
+                lastSeen = seen;
+                reload();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not check {} for runtime settings", file, e);
+        } catch (RuntimeException e) {
+            // Keep the scheduled task alive
+            LOG.error("Unexpected error while reloading settings", e);
+        }
+    }
+
+    /**
+     * Read the file and apply the settings which differ from the current ones.
+     * <p>
+     * A missing file gives the settings the evaluator was started with.
+     *
+     * @return the names of the settings which were changed
+     */
+    synchronized List<String> reload() {
+        Config config;
+        try {
+            config = ConfigFactory.parseFile(file.toFile(), ConfigParseOptions.defaults().setAllowMissing(true))
+                    .withFallback(base)
+                    .resolve();
+        } catch (RuntimeException e) {
+            RELOADS.labels("failed").inc();
+            LOG.error("Could not read runtime settings from {}, keeping current settings: {}", file,
+                    e.getLocalizedMessage());
+            return Collections.emptyList();
+        }
+
+        List<String> changed = new ArrayList<>();
+        boolean failed = false;
+        for (Property property : properties) {
+            Object value;
+            try {
+                value = property.read.apply(config);
+            } catch (RuntimeException e) {
+                LOG.error("Invalid value for {}, keeping {}: {}", property.name, applied.get(property.name),
+                        e.getLocalizedMessage());
+                failed = true;
+                continue;
+            }
+            Object old = applied.get(property.name);
+            if (value.equals(old)) {
+                continue;
+            }
+            try {
+                property.apply.accept(value);
+            } catch (RuntimeException e) {
+                LOG.error("Could not change {} from {} to {}", property.name, old, value, e);
+                failed = true;
+                continue;
+            }
+            applied.put(property.name, value);
+            changed.add(property.name);
+            CHANGES.labels(property.name).inc();
+            export(property, value);
+            LOG.info("Changed {} from {} to {}", property.name, old, value);
+        }
+
+        warnAboutRestart(config);
+
+        RELOADS.labels(failed ? "failed" : changed.isEmpty() ? "unchanged" : "applied").inc();
+        return changed;
+    }
+
+    /**
+     * Log settings which are changed in the file, but only take effect after a restart.
+     */
+    private void warnAboutRestart(Config config) {
+        Set<String> reloadable = properties.stream()
+                .flatMap(p -> Arrays.stream(p.keys))
+                .collect(Collectors.toSet());
+        for (Map.Entry<String, ConfigValue> entry : config.root().entrySet()) {
+            String key = entry.getKey();
+            if (reloadable.contains(key) || !base.hasPath(key)) {
+                continue;
+            }
+            Object startValue = base.root().get(key).unwrapped();
+            if (!Objects.equals(startValue, entry.getValue().unwrapped())) {
+                LOG.warn("Change of {} from {} to {} requires a restart", key, startValue,
+                        entry.getValue().unwrapped());
+            }
+        }
+    }
+
+    Object getApplied(String name) {
+        return applied.get(name);
+    }
+
+    private static void export(Property property, Object value) {
+        if (value instanceof Number) {
+            VALUES.labels(property.name).set(((Number) value).doubleValue());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A setting which can be changed on a running evaluator.
+     */
+    private static final class Property {
+
+        final String name;
+
+        final String[] keys;
+
+        final Function<Config, Object> read;
+
+        final Consumer<Object> apply;
+
+        /**
+         * @param name  the name used in logs and metrics
+         * @param read  reads the value from a config
+         * @param apply applies a changed value
+         * @param keys  the config keys the value is read from, defaults to the name
+         */
+        Property(String name, Function<Config, Object> read, Consumer<Object> apply, String... keys) {
+            this.name = name;
+            this.keys = keys.length == 0 ? new String[]{name} : keys;
+            this.read = read;
+            this.apply = apply;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ConfigRef;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up robots.txt parsing and matching before the service reports that it is serving.
+ * <p>
+ * The first lookups after start are slow since the DFA caches of the ANTLR robots.txt and User Agent grammars start
+ * out empty and the matching code is still interpreted. The warm-up parses a bundled corpus of robots.txt files over
+ * and over and evaluates a set of urls and User Agents against each, which fills the DFA caches shared by all parsers
+ * and lets the JIT compile the hot paths.
+ * <p>
+ * After that, requests are sent in-process through the evaluator api, so that the request path is compiled as well:
+ * politeness config lookup, User Agent parsing, the robots cache and the reply marshaller. The corpus is put in the
+ * cache for hosts of a job execution of its own, which is evicted afterwards, so nothing is fetched.
+ */
+final class Warmup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Warmup.class);
+
+    static final List<String> CORPUS = List.of("robots1.txt", "robots2.txt", "robots3.txt", "robots4.txt",
+            "robots5.txt");
+
+    static final List<String> USER_AGENTS = List.of(
+            "Mozilla/5.0 (compatible; veidemann/1.0; +http://www.nb.no/)",
+            "Googlebot/2.1 (+http://www.google.com/bot.html)",
+            "bingbot",
+            "a",
+            "fgh/1.0");
+
+    static final List<String> PATHS = List.of("/", "/c", "/d/e.html", "/g?q=1", "/cgi-bin/wa?a=b", "/archives/2019/",
+            "/search", "/search/about", "/private/public/index.html", "/tmp/a/b", "/file.pdf", "/style.css",
+            "/page?sessionid=42");
+
+    static final String JOB_EXECUTION_ID = "robots-warmup";
+
+    private final RobotsTxtParser parser;
+
+    private final List<String> corpus;
+
+    private final List<URL> urls;
+
+    /**
+     * Warm up with the bundled corpus.
+     *
+     * @param lazyGroups whether the parser the cache uses compiles groups lazily
+     */
+    Warmup(boolean lazyGroups) {
+        this(new RobotsTxtParser(lazyGroups), loadCorpus());
+    }
+
+    Warmup(RobotsTxtParser parser, List<String> corpus) {
+        this.parser = parser;
+        this.corpus = corpus;
+        urls = new ArrayList<>(PATHS.size() * 2);
+        try {
+            for (String path : PATHS) {
+                urls.add(new URL("http://www.example.com" + path));
+                urls.add(new URL("https://www.example.com:8443" + path));
+            }
+        } catch (MalformedURLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Run the warm-up.
+     *
+     * @param iterations the number of times to parse and evaluate the corpus, 0 to skip the warm-up
+     * @param maxMillis  the time to stop after even if not all iterations are done
+     * @return the number of evaluations done
+     */
+    long run(int iterations, long maxMillis) {
+        if (iterations <= 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long stopAt = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        long evaluations = 0;
+        int allowed = 0;
+        int iteration = 0;
+        for (; iteration < iterations && System.nanoTime() < stopAt; iteration++) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            for (int i = 0; i < corpus.size(); i++) {
+                RobotsTxt robots = parser.parse(corpus.get(i), CORPUS.get(i % CORPUS.size()));
+                for (String userAgent : USER_AGENTS) {
+                    for (URL url : urls) {
+                        if (robots.isAllowed(userAgent, url).getIsAllowed()) {
+                            allowed++;
+                        }
+                        evaluations++;
+                    }
+                }
+            }
+        }
+        LOG.info("Warmed up with {} iterations and {} evaluations ({} allowed) in {} ms", iteration, evaluations,
+                allowed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return evaluations;
+    }
+
+    /**
+     * Send requests for the corpus through the evaluator api.
+     *
+     * @param cache         the robots cache the service looks up
+     * @param robotsService the service as bound to the api server
+     * @param iterations    the number of times to send the requests, 0 to skip this part of the warm-up
+     * @param maxMillis     the time to stop after even if not all iterations are done
+     * @return the number of requests sent
+     */
+    long runRequests(RobotsCache cache, ServerServiceDefinition robotsService, int iterations, long maxMillis) {
+        if (iterations <= 0 || maxMillis <= 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long stopAt = start + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        String name = "robots-warmup-" + System.identityHashCode(this);
+        Server server = InProcessServerBuilder.forName(name).directExecutor().addService(robotsService).build();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        long requests = 0;
+        int allowed = 0;
+        int iteration = 0;
+        try {
+            server.start();
+            // Marked as forwarded, so that no request is routed to another replica
+            Metadata headers = new Metadata();
+            headers.put(PeerRouter.FORWARDED_BY_HEADER, name);
+            RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = MetadataUtils.attachHeaders(
+                    RobotsEvaluatorGrpc.newBlockingStub(channel), headers);
+            List<IsAllowedRequest> isAllowedRequests = seed(cache);
+            for (; iteration < iterations && System.nanoTime() < stopAt; iteration++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                for (IsAllowedRequest request : isAllowedRequests) {
+                    if (stub.isAllowed(request).getIsAllowed()) {
+                        allowed++;
+                    }
+                    requests++;
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            channel.shutdownNow();
+            server.shutdownNow();
+            cache.evictJobExecution(JOB_EXECUTION_ID);
+        }
+        LOG.info("Warmed up with {} iterations and {} requests ({} allowed) in {} ms", iteration, requests, allowed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return requests;
+    }
+
+    /**
+     * Put the corpus in the cache for the warm-up hosts and make the requests for them.
+     */
+    private List<IsAllowedRequest> seed(RobotsCache cache) throws MalformedURLException {
+        ConfigObject.Builder politeness = ConfigObject.newBuilder().setId(JOB_EXECUTION_ID);
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+        ConfigRef collectionRef = ConfigRef.newBuilder().setKind(Kind.collection).setId(JOB_EXECUTION_ID).build();
+        long now = System.currentTimeMillis();
+
+        List<IsAllowedRequest> requests = new ArrayList<>(corpus.size() * 2 * USER_AGENTS.size() * PATHS.size());
+        for (int i = 0; i < corpus.size(); i++) {
+            for (String origin : List.of("http://warmup" + i + ".invalid", "https://warmup" + i + ".invalid:8443")) {
+                CacheKey key = cache.createKey(new URL(origin + "/"), cache.getDefaultTtlSeconds(), JOB_EXECUTION_ID,
+                        JOB_EXECUTION_ID, JOB_EXECUTION_ID);
+                cache.put(key, 200, corpus.get(i), now);
+                for (String userAgent : USER_AGENTS) {
+                    for (String path : PATHS) {
+                        requests.add(IsAllowedRequest.newBuilder()
+                                .setUri(origin + path)
+                                .setUserAgent(userAgent)
+                                .setPoliteness(politeness)
+                                .setExecutionId(JOB_EXECUTION_ID)
+                                .setJobExecutionId(JOB_EXECUTION_ID)
+                                .setCollectionRef(collectionRef)
+                                .build());
+                    }
+                }
+            }
+        }
+        return requests;
+    }
+
+    static List<String> loadCorpus() {
+        List<String> corpus = new ArrayList<>(CORPUS.size());
+        for (String name : CORPUS) {
+            try (InputStream in = Warmup.class.getResourceAsStream("warmup/" + name)) {
+                if (in == null) {
+                    throw new IllegalStateException("Missing warm-up robots.txt " + name);
+                }
+                corpus.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return corpus;
+    }
+}
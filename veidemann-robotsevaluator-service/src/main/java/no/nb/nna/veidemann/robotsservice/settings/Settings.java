@@ -16,6 +16,9 @@
 package no.nb.nna.veidemann.robotsservice.settings;
 
 import no.nb.nna.veidemann.commons.settings.CommonSettings;
+import no.nb.nna.veidemann.robotsservice.CanonicalizationPolicy;
+import no.nb.nna.veidemann.robotsservice.FetchFailurePolicy;
+import no.nb.nna.veidemann.robotsservice.store.RobotsStore;
 
 /**
  * Configuration settings for Veidemann robots evaluator.
@@ -28,8 +31,76 @@ public class Settings extends CommonSettings {
 
     private int proxyPort;
 
+    private String proxies;
+
+    private double fetchHedgePercentile;
+
+    private FetchFailurePolicy fetchFailurePolicy;
+
+    private int hostFailureTrackingCapacity;
+
+    private int hostFailureThreshold;
+
+    private int hostFailureBackoffSeconds;
+
+    private int warmupIterations;
+
+    private int warmupMaxSeconds;
+
     private long cacheCapacityNumEntries;
 
+    private int cacheShards;
+
+    private CanonicalizationPolicy cacheCanonicalization;
+
+    private int prometheusPort;
+
+    private int parseThreads;
+
+    private int fetchMaxConcurrency;
+
+    private int prefetchQueueCapacity;
+
+    private int prefetchRatePerSecond;
+
+    private int prefetchMaxInFlight;
+
+    private RobotsStore.Type sharedCacheType;
+
+    private String peers;
+
+    private String peerSelf;
+
+    private long peerForwardTimeoutMs;
+
+    private String snapshotPath;
+
+    private boolean politenessTracking;
+
+    private int politenessTrackingCapacity;
+
+    private boolean snapshotRestoreOnStart;
+
+    private int snapshotRestoreThreads;
+
+    private int defaultTtlSeconds;
+
+    private long fetchTimeoutMs;
+
+    private String runtimeConfigPath;
+
+    private int runtimeConfigCheckSeconds;
+
+    private double traceSampleRate;
+
+    private int replyCacheMinBytes;
+
+    private boolean lazyGroupCompilation;
+
+    private boolean cacheAdmission;
+
+    private long allowAllHostsCapacity;
+
     public int getApiPort() {
         return apiPort;
     }
@@ -61,4 +132,276 @@ public class Settings extends CommonSettings {
     public void setCacheCapacityNumEntries(long cacheCapacityNumEntries) {
         this.cacheCapacityNumEntries = cacheCapacityNumEntries;
     }
+
+    public int getCacheShards() {
+        return cacheShards;
+    }
+
+    public void setCacheShards(int cacheShards) {
+        this.cacheShards = cacheShards;
+    }
+
+    public CanonicalizationPolicy getCacheCanonicalization() {
+        return cacheCanonicalization;
+    }
+
+    public void setCacheCanonicalization(CanonicalizationPolicy cacheCanonicalization) {
+        this.cacheCanonicalization = cacheCanonicalization;
+    }
+
+    public int getPrometheusPort() {
+        return prometheusPort;
+    }
+
+    public void setPrometheusPort(int prometheusPort) {
+        this.prometheusPort = prometheusPort;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    public void setParseThreads(int parseThreads) {
+        this.parseThreads = parseThreads;
+    }
+
+    public int getFetchMaxConcurrency() {
+        return fetchMaxConcurrency;
+    }
+
+    public void setFetchMaxConcurrency(int fetchMaxConcurrency) {
+        this.fetchMaxConcurrency = fetchMaxConcurrency;
+    }
+
+    public int getPrefetchQueueCapacity() {
+        return prefetchQueueCapacity;
+    }
+
+    public void setPrefetchQueueCapacity(int prefetchQueueCapacity) {
+        this.prefetchQueueCapacity = prefetchQueueCapacity;
+    }
+
+    public int getPrefetchRatePerSecond() {
+        return prefetchRatePerSecond;
+    }
+
+    public void setPrefetchRatePerSecond(int prefetchRatePerSecond) {
+        this.prefetchRatePerSecond = prefetchRatePerSecond;
+    }
+
+    public int getPrefetchMaxInFlight() {
+        return prefetchMaxInFlight;
+    }
+
+    public void setPrefetchMaxInFlight(int prefetchMaxInFlight) {
+        this.prefetchMaxInFlight = prefetchMaxInFlight;
+    }
+
+    public RobotsStore.Type getSharedCacheType() {
+        return sharedCacheType;
+    }
+
+    public void setSharedCacheType(RobotsStore.Type sharedCacheType) {
+        this.sharedCacheType = sharedCacheType;
+    }
+
+    public String getPeers() {
+        return peers;
+    }
+
+    public void setPeers(String peers) {
+        this.peers = peers;
+    }
+
+    public String getPeerSelf() {
+        return peerSelf;
+    }
+
+    public void setPeerSelf(String peerSelf) {
+        this.peerSelf = peerSelf;
+    }
+
+    public long getPeerForwardTimeoutMs() {
+        return peerForwardTimeoutMs;
+    }
+
+    public void setPeerForwardTimeoutMs(long peerForwardTimeoutMs) {
+        this.peerForwardTimeoutMs = peerForwardTimeoutMs;
+    }
+
+    public String getSnapshotPath() {
+        return snapshotPath;
+    }
+
+    public void setSnapshotPath(String snapshotPath) {
+        this.snapshotPath = snapshotPath;
+    }
+
+    public boolean isSnapshotRestoreOnStart() {
+        return snapshotRestoreOnStart;
+    }
+
+    public void setSnapshotRestoreOnStart(boolean snapshotRestoreOnStart) {
+        this.snapshotRestoreOnStart = snapshotRestoreOnStart;
+    }
+
+    public int getSnapshotRestoreThreads() {
+        return snapshotRestoreThreads;
+    }
+
+    public void setSnapshotRestoreThreads(int snapshotRestoreThreads) {
+        this.snapshotRestoreThreads = snapshotRestoreThreads;
+    }
+
+    public boolean isPolitenessTracking() {
+        return politenessTracking;
+    }
+
+    public void setPolitenessTracking(boolean politenessTracking) {
+        this.politenessTracking = politenessTracking;
+    }
+
+    public int getPolitenessTrackingCapacity() {
+        return politenessTrackingCapacity;
+    }
+
+    public void setPolitenessTrackingCapacity(int politenessTrackingCapacity) {
+        this.politenessTrackingCapacity = politenessTrackingCapacity;
+    }
+
+    public int getDefaultTtlSeconds() {
+        return defaultTtlSeconds;
+    }
+
+    public void setDefaultTtlSeconds(int defaultTtlSeconds) {
+        this.defaultTtlSeconds = defaultTtlSeconds;
+    }
+
+    public long getFetchTimeoutMs() {
+        return fetchTimeoutMs;
+    }
+
+    public void setFetchTimeoutMs(long fetchTimeoutMs) {
+        this.fetchTimeoutMs = fetchTimeoutMs;
+    }
+
+    public String getRuntimeConfigPath() {
+        return runtimeConfigPath;
+    }
+
+    public void setRuntimeConfigPath(String runtimeConfigPath) {
+        this.runtimeConfigPath = runtimeConfigPath;
+    }
+
+    public int getRuntimeConfigCheckSeconds() {
+        return runtimeConfigCheckSeconds;
+    }
+
+    public void setRuntimeConfigCheckSeconds(int runtimeConfigCheckSeconds) {
+        this.runtimeConfigCheckSeconds = runtimeConfigCheckSeconds;
+    }
+
+    public double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public void setTraceSampleRate(double traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    public int getReplyCacheMinBytes() {
+        return replyCacheMinBytes;
+    }
+
+    public void setReplyCacheMinBytes(int replyCacheMinBytes) {
+        this.replyCacheMinBytes = replyCacheMinBytes;
+    }
+
+    public boolean isLazyGroupCompilation() {
+        return lazyGroupCompilation;
+    }
+
+    public void setLazyGroupCompilation(boolean lazyGroupCompilation) {
+        this.lazyGroupCompilation = lazyGroupCompilation;
+    }
+
+    public boolean isCacheAdmission() {
+        return cacheAdmission;
+    }
+
+    public void setCacheAdmission(boolean cacheAdmission) {
+        this.cacheAdmission = cacheAdmission;
+    }
+
+    public long getAllowAllHostsCapacity() {
+        return allowAllHostsCapacity;
+    }
+
+    public void setAllowAllHostsCapacity(long allowAllHostsCapacity) {
+        this.allowAllHostsCapacity = allowAllHostsCapacity;
+    }
+
+    public String getProxies() {
+        return proxies;
+    }
+
+    public void setProxies(String proxies) {
+        this.proxies = proxies;
+    }
+
+    public double getFetchHedgePercentile() {
+        return fetchHedgePercentile;
+    }
+
+    public void setFetchHedgePercentile(double fetchHedgePercentile) {
+        this.fetchHedgePercentile = fetchHedgePercentile;
+    }
+
+    public FetchFailurePolicy getFetchFailurePolicy() {
+        return fetchFailurePolicy;
+    }
+
+    public void setFetchFailurePolicy(FetchFailurePolicy fetchFailurePolicy) {
+        this.fetchFailurePolicy = fetchFailurePolicy;
+    }
+
+    public int getHostFailureTrackingCapacity() {
+        return hostFailureTrackingCapacity;
+    }
+
+    public void setHostFailureTrackingCapacity(int hostFailureTrackingCapacity) {
+        this.hostFailureTrackingCapacity = hostFailureTrackingCapacity;
+    }
+
+    public int getHostFailureThreshold() {
+        return hostFailureThreshold;
+    }
+
+    public void setHostFailureThreshold(int hostFailureThreshold) {
+        this.hostFailureThreshold = hostFailureThreshold;
+    }
+
+    public int getHostFailureBackoffSeconds() {
+        return hostFailureBackoffSeconds;
+    }
+
+    public void setHostFailureBackoffSeconds(int hostFailureBackoffSeconds) {
+        this.hostFailureBackoffSeconds = hostFailureBackoffSeconds;
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public int getWarmupMaxSeconds() {
+        return warmupMaxSeconds;
+    }
+
+    public void setWarmupMaxSeconds(int warmupMaxSeconds) {
+        this.warmupMaxSeconds = warmupMaxSeconds;
+    }
 }
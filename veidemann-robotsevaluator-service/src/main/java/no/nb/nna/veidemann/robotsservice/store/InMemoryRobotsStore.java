@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.store;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link RobotsStore} kept in a map in this process.
+ * <p>
+ * Useful as a stand-in for a real shared store in tests. Nothing is removed unless asked to.
+ */
+public class InMemoryRobotsStore implements RobotsStore {
+
+    private final Map<StoreKey, StoredRobots> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public Optional<StoredRobots> get(StoreKey key) {
+        return Optional.ofNullable(entries.get(key));
+    }
+
+    @Override
+    public void put(StoreKey key, StoredRobots robots) {
+        entries.put(key, robots);
+    }
+
+    @Override
+    public void remove(StoreKey key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.store;
+
+import no.nb.nna.veidemann.commons.db.DbException;
+import no.nb.nna.veidemann.commons.db.DbQueryException;
+import no.nb.nna.veidemann.db.RethinkDbConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * A {@link RobotsStore} in a RethinkDB table shared by all evaluator replicas.
+ * <p>
+ * Each host is one document with the key as id, so a fetch by any replica replaces the previous one.
+ */
+public class RethinkDbRobotsStore implements RobotsStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RethinkDbRobotsStore.class);
+
+    static final String TABLE = "robots_cache";
+
+    private final RethinkDbConnection conn;
+
+    /**
+     * @param conn the connection to use, closed with the store
+     */
+    public RethinkDbRobotsStore(RethinkDbConnection conn) {
+        this.conn = conn;
+        createTableIfMissing();
+    }
+
+    private void createTableIfMissing() {
+        try {
+            if (tableExists()) {
+                return;
+            }
+            try {
+                conn.exec("robots-createTable", r.tableCreate(TABLE));
+                LOG.info("Created table '{}'", TABLE);
+            } catch (DbQueryException e) {
+                // Another replica may have created it since we looked
+                if (!tableExists()) {
+                    throw e;
+                }
+            }
+        } catch (DbException e) {
+            LOG.warn("Could not create table '{}'", TABLE, e);
+        }
+    }
+
+    private boolean tableExists() throws DbException {
+        List<String> tables = conn.exec("robots-tableList", r.tableList());
+        return tables.contains(TABLE);
+    }
+
+    @Override
+    public Optional<StoredRobots> get(StoreKey key) throws DbException {
+        Map<String, Object> doc = conn.exec("robots-get", r.table(TABLE).get(key.toId()));
+        if (doc == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new StoredRobots(
+                ((Number) doc.get("statusCode")).intValue(),
+                (String) doc.get("body"),
+                ((Number) doc.get("fetchTime")).longValue()));
+    }
+
+    @Override
+    public void put(StoreKey key, StoredRobots robots) throws DbException {
+        conn.exec("robots-put", r.table(TABLE)
+                .insert(r.hashMap("id", key.toId())
+                        .with("statusCode", robots.getStatusCode())
+                        .with("body", robots.getBody())
+                        .with("fetchTime", robots.getFetchTimeMillis()))
+                .optArg("conflict", "replace"));
+    }
+
+    @Override
+    public void remove(StoreKey key) throws DbException {
+        conn.exec("robots-remove", r.table(TABLE).get(key.toId()).delete());
+    }
+
+    @Override
+    public void close() {
+        conn.close();
+    }
+}
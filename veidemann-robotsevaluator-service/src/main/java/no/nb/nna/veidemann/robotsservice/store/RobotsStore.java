@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.store;
+
+import java.util.Optional;
+
+/**
+ * A second level robots.txt cache shared between evaluator replicas.
+ * <p>
+ * The store keeps the raw robots.txt as it was fetched, so replicas can skip the fetch and only parse. Entries are
+ * keyed by scheme, host and port. Whether an entry is still fresh is decided by the reader, since the validity
+ * time is part of each crawl's politeness config.
+ * <p>
+ * Implementations must be thread safe. Failures should be thrown as exceptions, the caller falls back to fetching
+ * robots.txt when the store is unavailable.
+ */
+public interface RobotsStore extends AutoCloseable {
+
+    /**
+     * The kinds of shared store the evaluator can be configured with.
+     */
+    enum Type {
+        NONE,
+        RETHINKDB
+    }
+
+    /**
+     * Get the stored robots.txt for a host.
+     *
+     * @param key the host
+     * @return the stored robots.txt or an empty Optional if nothing is stored for the host
+     * @throws Exception if the store could not be read
+     */
+    Optional<StoredRobots> get(StoreKey key) throws Exception;
+
+    /**
+     * Store robots.txt for a host, replacing whatever was stored before.
+     *
+     * @param key    the host
+     * @param robots the fetched robots.txt
+     * @throws Exception if the store could not be written
+     */
+    void put(StoreKey key, StoredRobots robots) throws Exception;
+
+    /**
+     * Remove the stored robots.txt for a host, so that the next replica needing it fetches it again.
+     *
+     * @param key the host
+     * @throws Exception if the store could not be written
+     */
+    void remove(StoreKey key) throws Exception;
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.store;
+
+import java.util.Objects;
+
+/**
+ * Identifies a robots.txt in the shared store by scheme, host and port.
+ */
+public final class StoreKey {
+
+    private final String protocol;
+
+    private final String domain;
+
+    private final int port;
+
+    public StoreKey(String protocol, String domain, int port) {
+        this.protocol = protocol;
+        this.domain = domain;
+        this.port = port;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get a string representation of the key suitable as a database id.
+     *
+     * @return the key as scheme://host:port
+     */
+    public String toId() {
+        return protocol + "://" + domain + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StoreKey storeKey = (StoreKey) o;
+        return port == storeKey.port && Objects.equals(protocol, storeKey.protocol) && Objects.equals(domain, storeKey.domain);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(protocol, domain, port);
+    }
+
+    @Override
+    public String toString() {
+        return toId();
+    }
+}
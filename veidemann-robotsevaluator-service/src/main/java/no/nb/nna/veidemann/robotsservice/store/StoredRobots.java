@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice.store;
+
+/**
+ * A robots.txt as it was fetched, together with the metadata needed to decide whether it is still valid.
+ */
+public final class StoredRobots {
+
+    private final int statusCode;
+
+    private final String body;
+
+    private final long fetchTimeMillis;
+
+    /**
+     * @param statusCode      the http status code of the fetch
+     * @param body            the robots.txt content, or null if the fetch didn't return any robots.txt
+     * @param fetchTimeMillis when robots.txt was fetched, in milliseconds since the epoch
+     */
+    public StoredRobots(int statusCode, String body, long fetchTimeMillis) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.fetchTimeMillis = fetchTimeMillis;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public long getFetchTimeMillis() {
+        return fetchTimeMillis;
+    }
+
+    /**
+     * Check if this robots.txt is still valid.
+     *
+     * @param ttlSeconds the validity time requested by the reader
+     * @param nowMillis  the current time in milliseconds since the epoch
+     * @return true if robots.txt was fetched less than ttlSeconds ago
+     */
+    public boolean isFresh(int ttlSeconds, long nowMillis) {
+        return fetchTimeMillis + 1000L * ttlSeconds > nowMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredRobots{statusCode=" + statusCode + ", fetchTimeMillis=" + fetchTimeMillis
+                + ", bodyLength=" + (body == null ? 0 : body.length()) + '}';
+    }
+}
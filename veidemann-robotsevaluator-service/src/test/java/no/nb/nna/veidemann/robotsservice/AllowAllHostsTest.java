@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AllowAllHostsTest {
+
+    static long fingerprint(int host) {
+        return AllowAllHosts.fingerprint("http", "www.host" + host + ".com", 80, "jid", false);
+    }
+
+    static long tag(int host) {
+        return AllowAllHosts.tag("www.host" + host + ".com", "jid");
+    }
+
+    static void add(AllowAllHosts hosts, String host, String jobExecutionId, long expiresAtMillis) {
+        hosts.add(AllowAllHosts.fingerprint("http", host, 80, jobExecutionId, false), expiresAtMillis,
+                AllowAllHosts.tag(host, jobExecutionId), AllowAllHosts.domains(host));
+    }
+
+    static boolean contains(AllowAllHosts hosts, String host, String jobExecutionId, long nowMillis) {
+        return hosts.contains(AllowAllHosts.fingerprint("http", host, 80, jobExecutionId, false), nowMillis);
+    }
+
+    @Test
+    public void hostsAreFoundUntilTheyExpireOrAreRemoved() {
+        AllowAllHosts hosts = new AllowAllHosts(100_000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50_000; i++) {
+            hosts.add(fingerprint(i), now + 60_000, tag(i), 0);
+        }
+        assertThat(hosts.size()).isEqualTo(50_000);
+        for (int i = 0; i < 50_000; i++) {
+            assertThat(hosts.contains(fingerprint(i), now)).isTrue();
+        }
+        assertThat(hosts.contains(fingerprint(50_000), now)).isFalse();
+        assertThat(hosts.contains(fingerprint(1), now + 60_000)).isFalse();
+
+        for (int i = 0; i < 50_000; i += 2) {
+            hosts.remove(fingerprint(i));
+        }
+        assertThat(hosts.size()).isEqualTo(25_000);
+        for (int i = 0; i < 50_000; i++) {
+            assertThat(hosts.contains(fingerprint(i), now)).isEqualTo(i % 2 == 1);
+        }
+    }
+
+    @Test
+    public void fullSetDropsExpiredHostsBeforeRejecting() {
+        AllowAllHosts hosts = new AllowAllHosts(AllowAllHosts.SEGMENTS * 100);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < AllowAllHosts.SEGMENTS * 200; i++) {
+            hosts.add(fingerprint(i), now - 1, tag(i), 0);
+        }
+        for (int i = 0; i < AllowAllHosts.SEGMENTS * 50; i++) {
+            hosts.add(fingerprint(-i - 1), now + 60_000, tag(-i - 1), 0);
+        }
+        for (int i = 0; i < AllowAllHosts.SEGMENTS * 50; i++) {
+            assertThat(hosts.contains(fingerprint(-i - 1), now)).isTrue();
+        }
+        assertThat(hosts.size()).isLessThanOrEqualTo(AllowAllHosts.SEGMENTS * 256);
+    }
+
+    @Test
+    public void hostsAreRemovedByHostNameOrJobExecution() {
+        AllowAllHosts hosts = new AllowAllHosts(100_000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            for (String jobExecutionId : new String[]{"jid1", "jid2"}) {
+                String host = "www.host" + i + ".com";
+                hosts.add(AllowAllHosts.fingerprint("http", host, 80, jobExecutionId, false), now + 60_000,
+                        AllowAllHosts.tag(host, jobExecutionId), AllowAllHosts.domains(host));
+                hosts.add(AllowAllHosts.fingerprint("https", host, 443, jobExecutionId, false), now + 60_000,
+                        AllowAllHosts.tag(host, jobExecutionId), AllowAllHosts.domains(host));
+            }
+        }
+
+        assertThat(hosts.removeMatching("www.host7.com", null)).isEqualTo(4);
+        assertThat(hosts.contains(AllowAllHosts.fingerprint("https", "www.host7.com", 443, "jid2", false), now))
+                .isFalse();
+        assertThat(hosts.removeMatching("www.host8.com", "jid1")).isEqualTo(2);
+        assertThat(hosts.contains(AllowAllHosts.fingerprint("http", "www.host8.com", 80, "jid2", false), now))
+                .isTrue();
+
+        assertThat(hosts.removeMatching(null, "jid1")).isEqualTo(2 * 998);
+        assertThat(hosts.size()).isEqualTo(2 * 999);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(hosts.contains(AllowAllHosts.fingerprint("http", "www.host" + i + ".com", 80, "jid2", false),
+                    now)).isEqualTo(i != 7);
+        }
+    }
+
+    @Test
+    public void hostsAreRemovedBelowDomain() {
+        AllowAllHosts hosts = new AllowAllHosts(100_000);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            add(hosts, "www.host" + i + ".com", "jid1", now + 60_000);
+        }
+        String[] below = {"a.sub.example.org", "b.sub.example.org", "www.example.org"};
+        for (String jobExecutionId : new String[]{"jid1", "jid2"}) {
+            for (String host : below) {
+                add(hosts, host, jobExecutionId, now + 60_000);
+            }
+            add(hosts, "example.org", jobExecutionId, now + 60_000);
+            add(hosts, "www.example.com", jobExecutionId, now + 60_000);
+        }
+
+        assertThat(hosts.removeBelow("sub.example.org", "jid1")).isEqualTo(2);
+        assertThat(contains(hosts, "a.sub.example.org", "jid1", now)).isFalse();
+        assertThat(contains(hosts, "a.sub.example.org", "jid2", now)).isTrue();
+        assertThat(contains(hosts, "www.example.org", "jid1", now)).isTrue();
+
+        // The filter may match a few unrelated hosts, but never misses one below the domain
+        assertThat(hosts.removeBelow("example.org", null)).isBetween(4, 4 + 10);
+        for (String host : below) {
+            assertThat(contains(hosts, host, "jid2", now)).isFalse();
+        }
+        assertThat(contains(hosts, "example.org", "jid1", now)).isTrue();
+        assertThat(contains(hosts, "www.example.com", "jid2", now)).isTrue();
+    }
+
+    @Test
+    public void fingerprintFollowsCacheKeyEquality() {
+        assertThat(AllowAllHosts.fingerprint("http", "www.example.com", 80, "jid", true))
+                .isEqualTo(AllowAllHosts.fingerprint("https", "www.example.com", 443, "jid", true));
+        assertThat(AllowAllHosts.fingerprint("http", "www.example.com", 80, "jid", false))
+                .isNotEqualTo(AllowAllHosts.fingerprint("https", "www.example.com", 443, "jid", false));
+        assertThat(AllowAllHosts.fingerprint("http", "www.example.com", 80, "jid", false))
+                .isNotEqualTo(AllowAllHosts.fingerprint("http", "www.example.com", 80, "jid2", false));
+        assertThat(AllowAllHosts.fingerprint("http", "www.example.co", 80, "mjid", false))
+                .isNotEqualTo(AllowAllHosts.fingerprint("http", "www.example.com", 80, "jid", false));
+    }
+}
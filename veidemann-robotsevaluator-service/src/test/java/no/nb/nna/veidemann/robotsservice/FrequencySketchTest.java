@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsAreEstimatedAndCapped() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("www.hot.com".hashCode());
+        }
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("www.capped.com".hashCode());
+        }
+        for (int i = 0; i < 500; i++) {
+            sketch.increment(("www.host" + i + ".com").hashCode());
+        }
+
+        assertThat(sketch.frequency("www.hot.com".hashCode())).isBetween(5, 6);
+        assertThat(sketch.frequency("www.capped.com".hashCode())).isEqualTo(FrequencySketch.MAX_FREQUENCY);
+        assertThat(sketch.frequency("www.unseen.com".hashCode())).isLessThanOrEqualTo(1);
+    }
+
+    @Test
+    public void countsAreHalvedAfterSampleSize() {
+        FrequencySketch sketch = new FrequencySketch(100);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("www.old.com".hashCode());
+        }
+        for (int i = 0; sketch.frequency("www.old.com".hashCode()) == 8 && i < sketch.getSampleSize(); i++) {
+            sketch.increment(("www.host" + i + ".com").hashCode());
+        }
+
+        assertThat(sketch.frequency("www.old.com".hashCode())).isEqualTo(4);
+    }
+
+    @Test
+    public void concurrentIncrementsAreNotLost() throws Exception {
+        // A small table, so that the threads' keys share longs and race on them
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int trial = 0; trial < 200; trial++) {
+                FrequencySketch sketch = new FrequencySketch(16);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int key = ("www.host" + t + ".com").hashCode();
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 12; i++) {
+                            sketch.increment(key);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                for (int t = 0; t < 8; t++) {
+                    assertThat(sketch.frequency(("www.host" + t + ".com").hashCode())).isGreaterThanOrEqualTo(12);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
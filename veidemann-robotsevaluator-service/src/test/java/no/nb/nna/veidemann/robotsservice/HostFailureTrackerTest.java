@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import no.nb.nna.veidemann.robotsservice.HostFailureTracker.Permit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HostFailureTrackerTest {
+
+    static final long BACKOFF = 1000;
+
+    /**
+     * Later than the backoff with the most jitter it can get.
+     */
+    static final long AFTER_BACKOFF = BACKOFF + BACKOFF / 10 + 1;
+
+    @Test
+    public void circuitOpensAfterThresholdAndLetsOneProbeThrough() {
+        HostFailureTracker tracker = new HostFailureTracker(100, 2, BACKOFF);
+        long host = AllowAllHosts.fingerprint("http", "www.failing.com", 80, "", false);
+        long now = 1_000_000;
+
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.CLOSED);
+        assertThat(tracker.failed(host, now)).isEqualTo(now + BACKOFF);
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.CLOSED);
+        // Answers for an open circuit are kept until the probe
+        assertThat(tracker.failed(host, now)).isBetween(now + BACKOFF, now + AFTER_BACKOFF - 1);
+        assertThat(tracker.refetchAt(host, now)).isBetween(now + BACKOFF, now + AFTER_BACKOFF - 1);
+        assertThat(tracker.isOpen(host)).isTrue();
+        assertThat(tracker.acquire(host, now + BACKOFF / 2)).isEqualTo(Permit.OPEN);
+
+        now += AFTER_BACKOFF;
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.PROBE);
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.OPEN);
+
+        // A failed probe doubles the backoff
+        tracker.failed(host, now);
+        assertThat(tracker.acquire(host, now + AFTER_BACKOFF)).isEqualTo(Permit.OPEN);
+        now += 2 * AFTER_BACKOFF;
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.PROBE);
+
+        // A probe ending without an answer lets the next one through
+        tracker.released(host);
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.PROBE);
+
+        tracker.succeeded(host);
+        assertThat(tracker.isOpen(host)).isFalse();
+        assertThat(tracker.acquire(host, now)).isEqualTo(Permit.CLOSED);
+    }
+
+    @Test
+    public void trackedHostsAreBounded() {
+        HostFailureTracker tracker = new HostFailureTracker(4, 1, BACKOFF);
+        int open = 0;
+        for (int i = 0; i < 1000; i++) {
+            tracker.failed(AllowAllHosts.fingerprint("http", "www.failing" + i + ".com", 80, "", false), 0);
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (tracker.isOpen(AllowAllHosts.fingerprint("http", "www.failing" + i + ".com", 80, "", false))) {
+                open++;
+            }
+        }
+        assertThat(open).isBetween(1, 2 * HostFailureTracker.WAYS);
+
+        tracker.clear();
+        assertThat(tracker.isOpen(AllowAllHosts.fingerprint("http", "www.failing999.com", 80, "", false))).isFalse();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.ConfigRef;
+import no.nb.nna.veidemann.api.config.v1.Kind;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
+import no.nb.nna.veidemann.robots.v1.GetRulesReply;
+import no.nb.nna.veidemann.robots.v1.GetRulesRequest;
+import no.nb.nna.veidemann.robots.v1.RobotsDirective;
+import no.nb.nna.veidemann.robots.v1.RobotsRulesGrpc;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PeerRouterTest {
+    MockWebServer webServer;
+    RobotsCache robotsCache;
+    PeerRouter peerRouter;
+    RobotsApiServer service;
+    Server peerB;
+    ManagedChannel channel;
+    List<String> forwardedBy = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new MockWebServer();
+        for (int i = 0; i < 10; i++) {
+            webServer.enqueue(new MockResponse().setResponseCode(404));
+        }
+        webServer.start();
+        HttpUrl baseUrl = webServer.url("");
+        robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000);
+
+        // Peer b disallows everything and records who forwarded the request
+        ServerInterceptor recorder = new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                forwardedBy.add(headers.get(PeerRouter.FORWARDED_BY_HEADER));
+                return next.startCall(call, headers);
+            }
+        };
+        peerB = InProcessServerBuilder.forName("peer-b")
+                .addService(ServerInterceptors.intercept(new RobotsEvaluatorGrpc.RobotsEvaluatorImplBase() {
+                    @Override
+                    public void isAllowed(IsAllowedRequest request, StreamObserver<IsAllowedReply> respObserver) {
+                        respObserver.onNext(IsAllowedReply.newBuilder().setIsAllowed(false).build());
+                        respObserver.onCompleted();
+                    }
+                }, recorder))
+                .addService(ServerInterceptors.intercept(new RobotsRulesGrpc.RobotsRulesImplBase() {
+                    @Override
+                    public void getRules(GetRulesRequest request, StreamObserver<GetRulesReply> respObserver) {
+                        GetRulesReply.Builder reply = GetRulesReply.newBuilder();
+                        reply.addDirectiveBuilder().setType(RobotsDirective.Type.DISALLOW).setPath("/");
+                        respObserver.onNext(reply.build());
+                        respObserver.onCompleted();
+                    }
+                }, recorder))
+                .build()
+                .start();
+
+        peerRouter = new PeerRouter("a", Arrays.asList("a", "b"),
+                address -> InProcessChannelBuilder.forName("peer-" + address).build());
+        service = new RobotsApiServer(InProcessServerBuilder.forName("peer-a"), robotsCache, peerRouter).start();
+        channel = InProcessChannelBuilder.forName("peer-a").build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.shutdown();
+        service.close();
+        peerRouter.close();
+        peerB.shutdown();
+        robotsCache.close();
+        webServer.shutdown();
+    }
+
+    @Test
+    public void requestsAreForwardedToOwner() {
+        HostRing ring = new HostRing(Arrays.asList("a", "b"));
+        String ownedByA = hostOwnedBy(ring, "a");
+        String ownedByB = hostOwnedBy(ring, "b");
+        RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+
+        assertThat(stub.isAllowed(request(ownedByA)).getIsAllowed()).isTrue();
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+        assertThat(forwardedBy).isEmpty();
+
+        assertThat(stub.isAllowed(request(ownedByB)).getIsAllowed()).isFalse();
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+        assertThat(forwardedBy).containsExactly("a");
+    }
+
+    @Test
+    public void rulesAreForwardedToOwner() {
+        HostRing ring = new HostRing(Arrays.asList("a", "b"));
+        String ownedByA = hostOwnedBy(ring, "a");
+        String ownedByB = hostOwnedBy(ring, "b");
+        RobotsRulesGrpc.RobotsRulesBlockingStub stub = RobotsRulesGrpc.newBlockingStub(channel);
+
+        assertThat(stub.getRules(rulesRequest(ownedByA)).getDirectiveList()).isEmpty();
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+        assertThat(forwardedBy).isEmpty();
+
+        assertThat(stub.getRules(rulesRequest(ownedByB)).getDirectiveList()).hasSize(1);
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+        assertThat(forwardedBy).containsExactly("a");
+
+        // Forwarded requests are served by the receiver
+        Metadata headers = new Metadata();
+        headers.put(PeerRouter.FORWARDED_BY_HEADER, "b");
+        assertThat(stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .getRules(rulesRequest(ownedByB)).getDirectiveList()).isEmpty();
+        assertThat(webServer.getRequestCount()).isEqualTo(2);
+        assertThat(forwardedBy).containsExactly("a");
+    }
+
+    @Test
+    public void forwardedRequestsAreEvaluatedLocally() {
+        String ownedByB = hostOwnedBy(new HostRing(Arrays.asList("a", "b")), "b");
+        Metadata headers = new Metadata();
+        headers.put(PeerRouter.FORWARDED_BY_HEADER, "b");
+        RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel)
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+
+        assertThat(stub.isAllowed(request(ownedByB)).getIsAllowed()).isTrue();
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+        assertThat(forwardedBy).isEmpty();
+    }
+
+    @Test
+    public void unreachableOwnerFallsBackToLocal() {
+        peerRouter.setPeers(Arrays.asList("a", "c"));
+        String ownedByC = hostOwnedBy(new HostRing(Arrays.asList("a", "c")), "c");
+        RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+
+        assertThat(stub.isAllowed(request(ownedByC)).getIsAllowed()).isTrue();
+        assertThat(webServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void timedOutForwardIsNotEvaluatedLocally() throws Exception {
+        // Peer d never answers
+        Server peerD = InProcessServerBuilder.forName("peer-d")
+                .addService(new RobotsEvaluatorGrpc.RobotsEvaluatorImplBase() {
+                    @Override
+                    public void isAllowed(IsAllowedRequest request, StreamObserver<IsAllowedReply> respObserver) {
+                    }
+                })
+                .build()
+                .start();
+        try {
+            peerRouter.setPeers(Arrays.asList("a", "d"));
+            peerRouter.setForwardTimeoutMs(200);
+            String ownedByD = hostOwnedBy(new HostRing(Arrays.asList("a", "d")), "d");
+            RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+
+            assertThatThrownBy(() -> stub.isAllowed(request(ownedByD)))
+                    .isInstanceOf(StatusRuntimeException.class).hasMessageContaining("DEADLINE_EXCEEDED");
+            assertThat(webServer.getRequestCount()).isZero();
+        } finally {
+            peerD.shutdownNow();
+        }
+    }
+
+    @Test
+    public void ringIsBalancedAndMovesFewHostsOnChange() {
+        HostRing three = new HostRing(Arrays.asList("a", "b", "c"));
+        HostRing four = new HostRing(Arrays.asList("c", "b", "a", "d"));
+        int hosts = 30000;
+        int[] counts = new int[3];
+        int moved = 0;
+        for (int i = 0; i < hosts; i++) {
+            String host = "www.host" + i + ".com";
+            String owner = three.ownerOf(host);
+            counts[owner.charAt(0) - 'a']++;
+            if (!four.ownerOf(host).equals(owner)) {
+                assertThat(four.ownerOf(host)).isEqualTo("d");
+                moved++;
+            }
+        }
+        for (int count : counts) {
+            assertThat(count).isBetween(hosts / 3 * 8 / 10, hosts / 3 * 12 / 10);
+        }
+        assertThat(moved).isBetween(hosts / 4 * 8 / 10, hosts / 4 * 12 / 10);
+        assertThat(new HostRing(Arrays.asList("b", "a", "c")).ownerOf("www.example.com"))
+                .isEqualTo(three.ownerOf("www.example.com"));
+    }
+
+    static String hostOwnedBy(HostRing ring, String member) {
+        for (int i = 0; ; i++) {
+            String host = "www.host" + i + ".com";
+            if (ring.ownerOf(host).equals(member)) {
+                return host;
+            }
+        }
+    }
+
+    static GetRulesRequest rulesRequest(String host) {
+        return GetRulesRequest.newBuilder()
+                .setUri("http://" + host + "/page")
+                .setExecutionId("eid")
+                .setJobExecutionId("jid")
+                .setUserAgent("userAgent")
+                .setCollectionId("collection1")
+                .build();
+    }
+
+    static IsAllowedRequest request(String host) {
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+        return IsAllowedRequest.newBuilder()
+                .setUri("http://" + host + "/page")
+                .setExecutionId("eid")
+                .setJobExecutionId("jid")
+                .setUserAgent("userAgent")
+                .setPoliteness(politeness)
+                .setCollectionRef(ConfigRef.newBuilder().setKind(Kind.collection).setId("collection1"))
+                .build();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import com.google.protobuf.Timestamp;
+import no.nb.nna.veidemann.api.config.v1.ConfigObject;
+import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PolicyHandleTest {
+
+    @Test
+    public void handleIsReusedUntilConfigIsModified() {
+        PolicyHandle.Registry registry = new PolicyHandle.Registry();
+        ConfigObject.Builder politeness = ConfigObject.newBuilder().setId("p1");
+        politeness.getMetaBuilder().setLastModified(Timestamp.newBuilder().setSeconds(1000));
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.CUSTOM_ROBOTS)
+                .setCustomRobots("user-agent: *\ndisallow: /private\n");
+
+        PolicyHandle handle = registry.get(politeness.build());
+        assertThat(handle.mode).isEqualTo(PolicyHandle.Mode.CUSTOM);
+        assertThat(handle.usesCache()).isFalse();
+        assertThat(handle.ttlSeconds(300)).isEqualTo(300);
+        assertThat(registry.get(politeness.build())).isSameAs(handle);
+
+        politeness.getMetaBuilder().setLastModified(Timestamp.newBuilder().setSeconds(2000));
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.CUSTOM_IF_MISSING_CLASSIC)
+                .setMinimumRobotsValidityDurationS(60);
+        PolicyHandle modified = registry.get(politeness.build());
+        assertThat(modified).isNotSameAs(handle);
+        assertThat(modified.mode).isEqualTo(PolicyHandle.Mode.CUSTOM_IF_MISSING);
+        assertThat(modified.usesCache()).isTrue();
+        assertThat(modified.ttlSeconds(300)).isEqualTo(60);
+        assertThat(registry.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void configsWithoutIdOrVersionAreComparedByContent() throws Exception {
+        PolicyHandle.Registry registry = new PolicyHandle.Registry();
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.CUSTOM_ROBOTS)
+                .setCustomRobots("user-agent: *\ndisallow: /private\n");
+
+        PolicyHandle handle = registry.get(politeness.build());
+        assertThat(registry.get(politeness.build())).isSameAs(handle);
+        assertThat(handle.customRobots.isAllowedForBaseUserAgent("bot", new URL("http://www.example.com/private"))
+                .getIsAllowed()).isFalse();
+
+        politeness.getPolitenessConfigBuilder().setCustomRobots("user-agent: *\ndisallow: /other\n");
+        PolicyHandle other = registry.get(politeness.build());
+        assertThat(other).isNotSameAs(handle);
+        assertThat(other.customRobots.isAllowedForBaseUserAgent("bot", new URL("http://www.example.com/private"))
+                .getIsAllowed()).isTrue();
+
+        // A stored config without last modified time is replaced when its content changes
+        politeness.setId("p1");
+        PolicyHandle stored = registry.get(politeness.build());
+        assertThat(registry.get(politeness.build())).isSameAs(stored);
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.IGNORE_ROBOTS);
+        assertThat(registry.get(politeness.build()).mode).isEqualTo(PolicyHandle.Mode.IGNORE);
+    }
+
+    @Test
+    public void userAgentIsParsedOncePerChange() {
+        PolicyHandle handle = new PolicyHandle.Registry().get(ConfigObject.getDefaultInstance());
+
+        String base = handle.baseUserAgent("Veidemann/1.0 (+http://example.com/bot)");
+        assertThat(base).isEqualTo("veidemann");
+        assertThat(handle.baseUserAgent("Veidemann/1.0 (+http://example.com/bot)")).isSameAs(base);
+        assertThat(handle.baseUserAgent("OtherBot/2.0")).isEqualTo("otherbot");
+    }
+}
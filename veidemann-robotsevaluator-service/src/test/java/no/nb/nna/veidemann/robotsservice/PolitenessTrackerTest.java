@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PolitenessTrackerTest {
+
+    @Test
+    public void fetchesOfOneHostAreSpacedByTheDelay() {
+        PolitenessTracker tracker = new PolitenessTracker(1024);
+        long now = 1_000_000L;
+
+        assertThat(tracker.reserve("www.example.com", "p1", 2000, now)).isEqualTo(now);
+        assertThat(tracker.reserve("www.example.com", "p1", 2000, now)).isEqualTo(now + 2000);
+        assertThat(tracker.reserve("www.example.com", "p1", 2000, now + 100)).isEqualTo(now + 4000);
+        assertThat(tracker.peek("www.example.com", "p1", now)).isEqualTo(now + 6000);
+
+        // Once the delay has passed the next fetch may start right away
+        assertThat(tracker.reserve("www.example.com", "p1", 2000, now + 10000)).isEqualTo(now + 10000);
+    }
+
+    @Test
+    public void hostsAndPoliciesAreTrackedSeparately() {
+        PolitenessTracker tracker = new PolitenessTracker(1024);
+        long now = 1_000_000L;
+
+        assertThat(tracker.reserve("www.example.com", "p1", 2000, now)).isEqualTo(now);
+        assertThat(tracker.reserve("www.example.org", "p1", 2000, now)).isEqualTo(now);
+        assertThat(tracker.reserve("www.example.com", "p2", 2000, now)).isEqualTo(now);
+        assertThat(tracker.peek("www.unknown.com", "p1", now)).isEqualTo(now);
+    }
+
+    @Test
+    public void fullTableReusesTheOldestSlots() {
+        PolitenessTracker tracker = new PolitenessTracker(16);
+        assertThat(tracker.getCapacity()).isEqualTo(16);
+        long now = 1_000_000L;
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(tracker.reserve("www.host" + i + ".com", "p1", 1000, now + i)).isEqualTo(now + i);
+        }
+        // The most recent hosts are still tracked
+        assertThat(tracker.reserve("www.host999.com", "p1", 1000, now + 1000)).isEqualTo(now + 1999);
+    }
+
+    @Test
+    public void concurrentReservationsGetDistinctSlots() throws Exception {
+        PolitenessTracker tracker = new PolitenessTracker(1024);
+        long now = 1_000_000L;
+        int threads = 4;
+        int perThread = 500;
+        List<Long> slots = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    slots.add(tracker.reserve("www.example.com", "p1", 10, now));
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(slots).hasSize(threads * perThread).doesNotHaveDuplicates();
+        assertThat(Collections.max(slots)).isEqualTo(now + 10L * (threads * perThread - 1));
+    }
+}
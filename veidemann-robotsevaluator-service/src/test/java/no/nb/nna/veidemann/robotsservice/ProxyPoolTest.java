@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Context;
+import io.grpc.Context.CancellableContext;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsservice.ProxyPool.Endpoint;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.nb.nna.veidemann.robotsservice.RobotsCache.EMPTY_ROBOTS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProxyPoolTest {
+
+    static final long SLOW_MILLIS = 2000;
+
+    MockWebServer fastProxy;
+
+    MockWebServer slowProxy;
+
+    AtomicLong slowProxyDelay = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        fastProxy = proxy(new AtomicLong());
+        slowProxy = proxy(slowProxyDelay);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fastProxy.shutdown();
+        slowProxy.shutdown();
+    }
+
+    @Test
+    public void failingProxyIsEjectedAndFetchesRetriedThroughAnother() throws Exception {
+        MockWebServer deadProxy = new MockWebServer();
+        deadProxy.start();
+        InetSocketAddress deadAddress = address(deadProxy);
+        deadProxy.shutdown();
+
+        try (RobotsCache robotsCache = new RobotsCache("localhost", fastProxy.getPort(), 2000, 1,
+                CanonicalizationPolicy.STRICT)) {
+            robotsCache.setProxies(List.of(deadAddress, address(fastProxy)));
+
+            for (int i = 0; i < 10; i++) {
+                RobotsTxt robots = robotsCache.get(new URL("http://www.example" + i + ".com/page"), 300, "eid", "jid",
+                        "cid");
+                assertThat(robots).isNotSameAs(EMPTY_ROBOTS);
+            }
+            assertThat(fastProxy.getRequestCount()).isEqualTo(10);
+
+            Endpoint dead = endpoint(robotsCache, deadAddress);
+            assertThat(dead.ejectedUntil).isGreaterThan(System.currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void slowFetchIsHedgedThroughAnotherProxy() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache("localhost", fastProxy.getPort(), 2000, 1,
+                CanonicalizationPolicy.STRICT)) {
+            robotsCache.setProxies(List.of(address(fastProxy), address(slowProxy)));
+            robotsCache.setFetchHedgePercentile(90);
+
+            // Enough fetches with both proxies fast to know the latency percentile
+            int host = 0;
+            for (; host < ProxyPool.LatencyWindow.MIN_SAMPLES + 8; host++) {
+                robotsCache.get(new URL("http://www.example" + host + ".com/page"), 300, "eid", "jid", "cid");
+            }
+
+            slowProxyDelay.set(SLOW_MILLIS);
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++, host++) {
+                RobotsTxt robots = robotsCache.get(new URL("http://www.example" + host + ".com/page"), 300, "eid",
+                        "jid", "cid");
+                assertThat(robots).isNotSameAs(EMPTY_ROBOTS);
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertThat(elapsedMillis).isLessThan(SLOW_MILLIS);
+
+            // Requests losing to the fast proxy still make the slow one look slow
+            assertThat(endpoint(robotsCache, address(slowProxy)).getLatencyMillis())
+                    .isGreaterThan(endpoint(robotsCache, address(fastProxy)).getLatencyMillis());
+        }
+    }
+
+    @Test
+    public void timeoutCappedByTheCallersDeadlineIsNotCountedAgainstTheProxy() throws Exception {
+        MockWebServer otherSlowProxy = proxy(new AtomicLong(SLOW_MILLIS));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        slowProxyDelay.set(SLOW_MILLIS);
+
+        try (RobotsCache robotsCache = new RobotsCache("localhost", slowProxy.getPort(), 5000, 1,
+                CanonicalizationPolicy.STRICT)) {
+            robotsCache.setProxies(List.of(address(slowProxy), address(otherSlowProxy)));
+
+            for (int i = 0; i < ProxyPool.EJECT_AFTER_FAILURES + 1; i++) {
+                URL url = new URL("http://www.example" + i + ".com/page");
+                CancellableContext context = Context.current().withDeadlineAfter(200, TimeUnit.MILLISECONDS, scheduler);
+                assertThatThrownBy(() -> context.call(() -> robotsCache.get(url, 300, "eid", "jid", "cid")))
+                        .isInstanceOfSatisfying(StatusRuntimeException.class,
+                                e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED));
+            }
+            Thread.sleep(500);
+
+            // No fetch was retried through the other proxy
+            assertThat(slowProxy.getRequestCount() + otherSlowProxy.getRequestCount())
+                    .isBetween(1, ProxyPool.EJECT_AFTER_FAILURES + 1);
+            for (Endpoint endpoint : robotsCache.getProxyPool().getEndpoints()) {
+                assertThat(endpoint.getConsecutiveFailures()).isZero();
+                assertThat(endpoint.ejectedUntil).isZero();
+            }
+        } finally {
+            scheduler.shutdown();
+            otherSlowProxy.shutdown();
+        }
+    }
+
+    MockWebServer proxy(AtomicLong delayMillis) throws Exception {
+        MockWebServer proxy = new MockWebServer();
+        proxy.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(200)
+                        .setBody("user-agent: *\ndisallow: /forbidden\n")
+                        .setHeadersDelay(delayMillis.get(), TimeUnit.MILLISECONDS);
+            }
+        });
+        proxy.start();
+        return proxy;
+    }
+
+    InetSocketAddress address(MockWebServer proxy) {
+        return new InetSocketAddress(proxy.getHostName(), proxy.getPort());
+    }
+
+    Endpoint endpoint(RobotsCache robotsCache, InetSocketAddress address) {
+        for (Endpoint endpoint : robotsCache.getProxyPool().getEndpoints()) {
+            if (endpoint.address.equals(address)) {
+                return endpoint;
+            }
+        }
+        throw new AssertionError("No proxy " + address);
+    }
+}
@@ -0,0 +1,739 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.nb.nna.veidemann.robotsservice;
+
+import io.grpc.Context;
+import io.grpc.Context.CancellableContext;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CacheKey;
+import no.nb.nna.veidemann.robotsservice.RobotsCache.CachedRobots;
+import no.nb.nna.veidemann.robotsservice.store.InMemoryRobotsStore;
+import no.nb.nna.veidemann.robotsservice.store.StoreKey;
+import no.nb.nna.veidemann.robotsservice.store.StoredRobots;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static no.nb.nna.veidemann.robotsservice.RobotsCache.EMPTY_ROBOTS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RobotsCacheTest {
+    static final String SAME_CONTENT = "user-agent: *\ndisallow: /same\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    MockWebServer webServer;
+    HttpUrl baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        webServer = new MockWebServer();
+        webServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getRequestLine().startsWith("GET http://www.example")) {
+                    return new MockResponse().setResponseCode(200).setBody("user-agent: *\ndisallow: /forbidden\n");
+                }
+                if (request.getRequestLine().startsWith("GET http://www.same.com")) {
+                    return new MockResponse().setResponseCode(200).setBody(SAME_CONTENT);
+                }
+                if (request.getRequestLine().startsWith("GET http://www.failing.com")) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        webServer.start();
+        baseUrl = webServer.url("");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        webServer.shutdown();
+    }
+
+    @Test
+    public void shardedCacheLoadsEachHostOnce() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 4, CanonicalizationPolicy.STRICT)) {
+            assertThat(robotsCache.getShardCount()).isEqualTo(4);
+
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 20; i++) {
+                    RobotsTxt robots = robotsCache.get(new URL("http://www.example" + i + ".com/page"), 300, "eid", "jid", "cid");
+                    assertThat(robots).isNotSameAs(EMPTY_ROBOTS);
+                }
+            }
+            RobotsTxt missing = robotsCache.get(new URL("http://missing.com/page"), 300, "eid", "jid", "cid");
+            assertThat(missing).isSameAs(EMPTY_ROBOTS);
+
+            assertThat(webServer.getRequestCount()).isEqualTo(21);
+        }
+    }
+
+    @Test
+    public void shareSchemesFillsHttpsEntryFromRedirect() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 1, CanonicalizationPolicy.SHARE_SCHEMES)) {
+            CacheKey httpKey = new CacheKey(new URL("http://www.redirect.com/page"), 300, "eid", "jid", "cid");
+            CacheKey httpsKey = new CacheKey(new URL("https://www.redirect.com/page"), 300, "eid", "jid", "cid");
+            CachedRobots fetched = new CachedRobots(new RobotsTxt("test"), "test", 1L, 200, System.currentTimeMillis());
+
+            robotsCache.shareRedirectTarget(httpKey, HttpUrl.get("https://www.other.com/robots.txt"), fetched);
+            assertThat(robotsCache.shardFor(httpsKey).peek(httpsKey)).isNull();
+
+            robotsCache.shareRedirectTarget(httpKey, HttpUrl.get("https://www.redirect.com/robots.txt"), fetched);
+            assertThat(robotsCache.shardFor(httpsKey).peek(httpsKey)).isSameAs(fetched);
+
+            RobotsTxt https = robotsCache.get(new URL("https://www.redirect.com/page"), 300, "eid", "jid", "cid");
+            assertThat(https).isSameAs(fetched.robotsTxt);
+            assertThat(webServer.getRequestCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shareSchemesStoresIdenticalContentOnce() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 1, CanonicalizationPolicy.SHARE_SCHEMES)) {
+            CacheKey httpsKey = new CacheKey(new URL("https://www.same.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt httpsRobots = new RobotsTxtParser().parse(SAME_CONTENT, "https");
+            robotsCache.shardFor(httpsKey).put(httpsKey, new CachedRobots(httpsRobots, SAME_CONTENT,
+                    RobotsCache.contentHash(SAME_CONTENT), 200, System.currentTimeMillis()));
+
+            RobotsTxt http = robotsCache.get(new URL("http://www.same.com/page"), 300, "eid", "jid", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(1);
+            assertThat(http).isSameAs(httpsRobots);
+        }
+    }
+
+    @Test
+    public void strictKeepsSchemesApart() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 1, CanonicalizationPolicy.STRICT)) {
+            CacheKey httpsKey = new CacheKey(new URL("https://www.same.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt httpsRobots = new RobotsTxtParser().parse(SAME_CONTENT, "https");
+            robotsCache.shardFor(httpsKey).put(httpsKey, new CachedRobots(httpsRobots, SAME_CONTENT,
+                    RobotsCache.contentHash(SAME_CONTENT), 200, System.currentTimeMillis()));
+
+            RobotsTxt http = robotsCache.get(new URL("http://www.same.com/page"), 300, "eid", "jid", "cid");
+            assertThat(http).isNotSameAs(httpsRobots);
+        }
+    }
+
+    @Test
+    public void identicalContentIsSharedAcrossHosts() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 4, CanonicalizationPolicy.STRICT)) {
+            RobotsTxt first = robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt second = robotsCache.get(new URL("http://www.example2.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt other = robotsCache.get(new URL("http://www.same.com/page"), 300, "eid", "jid", "cid");
+
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+            assertThat(second).isSameAs(first);
+            assertThat(other).isNotSameAs(first);
+            assertThat(other.isAllowed("bot", new URL("http://www.same.com/same")).getIsAllowed()).isFalse();
+            assertThat(first.isAllowed("bot", new URL("http://www.example1.com/same")).getIsAllowed()).isTrue();
+        }
+    }
+
+    @Test
+    public void hostPolicyIgnoresSchemeAndPort() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 1, CanonicalizationPolicy.HOST)) {
+            RobotsTxt http = robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt https = robotsCache.get(new URL("https://www.example1.com:8443/page"), 300, "eid", "jid", "cid");
+            assertThat(https).isSameAs(http);
+            assertThat(webServer.getRequestCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void prefetchLoadsInBackground() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 2, CanonicalizationPolicy.STRICT)) {
+            List<CacheKey> keys = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                keys.add(robotsCache.createKey(new URL("http://www.example" + i + ".com/"), 300, "eid", "jid", "cid"));
+            }
+            assertThat(robotsCache.prefetch(keys, 1)).isEqualTo(5);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (webServer.getRequestCount() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertThat(webServer.getRequestCount()).isEqualTo(5);
+            for (CacheKey key : keys) {
+                while (!robotsCache.shardFor(key).containsKey(key) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+            }
+
+            // Already cached keys are not queued again
+            assertThat(robotsCache.prefetch(keys)).isEqualTo(0);
+
+            RobotsTxt robots = robotsCache.get(new URL("http://www.example3.com/page"), 300, "eid", "jid", "cid");
+            assertThat(robots).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(webServer.getRequestCount()).isEqualTo(5);
+        }
+    }
+
+    @Test
+    public void sharedStoreIsUsedAcrossReplicas() throws Exception {
+        InMemoryRobotsStore store = new InMemoryRobotsStore();
+        URL url = new URL("http://www.example1.com/page");
+
+        // Replicas are simulated by caches created one after the other sharing the same store
+        try (RobotsCache replica1 = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            replica1.setRobotsStore(store);
+            assertThat(replica1.get(url, 300, "eid", "jid", "cid")).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(replica1.get(new URL("http://missing.com/page"), 300, "eid", "jid", "cid")).isSameAs(EMPTY_ROBOTS);
+        }
+        assertThat(webServer.getRequestCount()).isEqualTo(2);
+        assertThat(store.size()).isEqualTo(2);
+
+        try (RobotsCache replica2 = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            replica2.setRobotsStore(store);
+            assertThat(replica2.get(url, 300, "eid", "jid", "cid")).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(replica2.get(new URL("http://missing.com/page"), 300, "eid", "jid", "cid")).isSameAs(EMPTY_ROBOTS);
+        }
+        assertThat(webServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void staleSharedEntryIsFetchedAgain() throws Exception {
+        InMemoryRobotsStore store = new InMemoryRobotsStore();
+        long anHourAgo = System.currentTimeMillis() - 3600_000L;
+        store.put(new StoreKey("http", "www.example1.com", 80), new StoredRobots(200, SAME_CONTENT, anHourAgo));
+
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            robotsCache.setRobotsStore(store);
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(1);
+            assertThat(store.get(new StoreKey("http", "www.example1.com", 80)).get().getFetchTimeMillis())
+                    .isGreaterThan(anHourAgo);
+        }
+    }
+
+    @Test
+    public void snapshotRestoresValidEntriesWithoutFetching() throws Exception {
+        Path snapshot = temporaryFolder.getRoot().toPath().resolve("robots.snapshot");
+        URL missing = new URL("http://missing.com/page");
+
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 4, CanonicalizationPolicy.STRICT)) {
+            for (int i = 0; i < 20; i++) {
+                robotsCache.get(new URL("http://www.example" + i + ".com/page"), 300, "eid", "jid", "cid");
+            }
+            robotsCache.get(missing, 300, "eid", "jid", "cid");
+
+            CacheKey expired = new CacheKey(new URL("http://www.expired.com/page"), 300, "eid", "jid", "cid");
+            robotsCache.shardFor(expired).put(expired, new CachedRobots(new RobotsTxt("test"), "test", 1L, 200,
+                    System.currentTimeMillis() - 3600_000L));
+
+            RobotsSnapshot.Summary written = robotsCache.writeSnapshot(snapshot);
+            assertThat(written.getEntries()).isEqualTo(21);
+            assertThat(written.getBytes()).isEqualTo(Files.size(snapshot));
+        }
+        assertThat(webServer.getRequestCount()).isEqualTo(21);
+
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 2, CanonicalizationPolicy.STRICT)) {
+            RobotsSnapshot.Summary restored = robotsCache.readSnapshot(snapshot, 4);
+            assertThat(restored.getEntries()).isEqualTo(21);
+            assertThat(restored.getSkipped()).isEqualTo(0);
+
+            RobotsTxt first = robotsCache.get(new URL("http://www.example0.com/page"), 300, "eid", "jid", "cid");
+            RobotsTxt second = robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            assertThat(first).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(second).isSameAs(first);
+            assertThat(first.isAllowed("agent", new URL("http://www.example0.com/forbidden")).getIsAllowed()).isFalse();
+            assertThat(robotsCache.get(missing, 300, "eid", "jid", "cid")).isSameAs(EMPTY_ROBOTS);
+
+            // A second restore does not replace what is already cached
+            assertThat(robotsCache.readSnapshot(snapshot, 1).getSkipped()).isEqualTo(21);
+        }
+        assertThat(webServer.getRequestCount()).isEqualTo(21);
+    }
+
+    @Test
+    public void corruptSnapshotIsRejected() throws Exception {
+        Path snapshot = temporaryFolder.getRoot().toPath().resolve("robots.snapshot");
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            robotsCache.writeSnapshot(snapshot);
+
+            byte[] bytes = Files.readAllBytes(snapshot);
+            Files.write(snapshot, Arrays.copyOf(bytes, bytes.length - 10));
+            assertThatThrownBy(() -> robotsCache.readSnapshot(snapshot, 1)).isInstanceOf(IOException.class);
+
+            Files.write(snapshot, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+            assertThatThrownBy(() -> robotsCache.readSnapshot(snapshot, 1)).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void fetchConcurrencyAndParsingAreLimitedSeparately() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        MockWebServer slowServer = new MockWebServer();
+        slowServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                inFlight.decrementAndGet();
+                return new MockResponse().setResponseCode(200).setBody("user-agent: *\ndisallow: /forbidden\n");
+            }
+        });
+        slowServer.start();
+
+        try (RobotsCache robotsCache = new RobotsCache(slowServer.getHostName(), slowServer.getPort(), 2000)) {
+            robotsCache.setFetchMaxConcurrency(2);
+            robotsCache.setParseThreads(1);
+            assertThat(robotsCache.getParsePool().getParallelism()).isEqualTo(1);
+
+            List<CompletableFuture<RobotsTxt>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                URL url = new URL("http://www.example" + i + ".com/page");
+                results.add(CompletableFuture.supplyAsync(() -> robotsCache.get(url, 300, "eid", "jid", "cid")));
+            }
+            for (CompletableFuture<RobotsTxt> result : results) {
+                RobotsTxt robots = result.get(10, TimeUnit.SECONDS);
+                assertThat(robots.isAllowed("agent", new URL("http://www.example.com/forbidden")).getIsAllowed()).isFalse();
+            }
+            assertThat(maxInFlight.get()).isEqualTo(2);
+            assertThat(robotsCache.getParsePool().getQueueSize()).isEqualTo(0);
+        } finally {
+            slowServer.shutdown();
+        }
+    }
+
+    @Test
+    public void lookupGivesUpAtDeadlineWithoutCachingTheHost() throws Exception {
+        AtomicLong delayMillis = new AtomicLong(2000);
+        MockWebServer slowServer = slowServer(delayMillis);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        try (RobotsCache robotsCache = new RobotsCache(slowServer.getHostName(), slowServer.getPort(), 2000)) {
+            URL url = new URL("http://www.example1.com/page");
+            CancellableContext context = Context.current().withDeadlineAfter(200, TimeUnit.MILLISECONDS, scheduler);
+            long start = System.nanoTime();
+            assertThatThrownBy(() -> context.call(() -> robotsCache.get(url, 300, "eid", "jid", "cid")))
+                    .isInstanceOfSatisfying(StatusRuntimeException.class,
+                            e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED));
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+
+            // The cancelled fetch did not leave the host cached as having no robots.txt
+            delayMillis.set(0);
+            assertThat(robotsCache.get(url, 300, "eid", "jid", "cid")).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(slowServer.getRequestCount()).isEqualTo(2);
+        } finally {
+            scheduler.shutdown();
+            slowServer.shutdown();
+        }
+    }
+
+    @Test
+    public void sharedLoadIsKeptWhileACallerWaits() throws Exception {
+        MockWebServer slowServer = slowServer(new AtomicLong(500));
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+        try (RobotsCache robotsCache = new RobotsCache(slowServer.getHostName(), slowServer.getPort(), 2000)) {
+            URL url = new URL("http://www.example1.com/page");
+            CancellableContext patient = Context.current().withDeadlineAfter(10, TimeUnit.SECONDS, scheduler);
+            CompletableFuture<RobotsTxt> waiting = CompletableFuture.supplyAsync(
+                    () -> robotsCache.get(url, 300, "eid", "jid", "cid"), patient.fixedContextExecutor(scheduler));
+            assertThat(slowServer.takeRequest(5, TimeUnit.SECONDS)).isNotNull();
+
+            CancellableContext hasty = Context.current().withCancellation();
+            CompletableFuture<RobotsTxt> cancelled = CompletableFuture.supplyAsync(
+                    () -> robotsCache.get(url, 300, "eid", "jid", "cid"), hasty.fixedContextExecutor(scheduler));
+            Thread.sleep(50);
+            hasty.cancel(null);
+            assertThatThrownBy(() -> cancelled.get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(StatusRuntimeException.class);
+
+            assertThat(waiting.get(5, TimeUnit.SECONDS)).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(slowServer.getRequestCount()).isEqualTo(1);
+        } finally {
+            scheduler.shutdown();
+            slowServer.shutdown();
+        }
+    }
+
+    @Test
+    public void failingHostIsAnsweredByPolicyWithoutFetching() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            robotsCache.setFetchFailurePolicy(FetchFailurePolicy.DISALLOW);
+            robotsCache.setHostFailureTracking(100, 2, 60_000);
+            URL url = new URL("http://www.failing.com/page");
+
+            // Each job execution has its own entry, but they share the host's circuit
+            for (int i = 0; i < 5; i++) {
+                RobotsTxt robots = robotsCache.get(url, 300, "eid", "jid" + i, "cid");
+                assertThat(robots.isAllowed("agent", url).getIsAllowed()).isFalse();
+            }
+            assertThat(webServer.getRequestCount()).isEqualTo(2);
+
+            // Other hosts are fetched as usual
+            assertThat(robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid")
+                    .isAllowed("agent", new URL("http://www.example1.com/page")).getIsAllowed()).isTrue();
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void answerForFailingHostIsReloadedAfterTheBackoff() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            robotsCache.setFetchFailurePolicy(FetchFailurePolicy.DISALLOW);
+            robotsCache.setHostFailureTracking(100, 1, 500);
+            URL url = new URL("http://www.failing.com/page");
+            CacheKey failed = robotsCache.createKey(url, 300, "eid", "jid0", "cid");
+            CacheKey open = robotsCache.createKey(url, 300, "eid", "jid1", "cid");
+
+            // The failure opens the circuit, and the second job is answered without fetching
+            robotsCache.get(url, 300, "eid", "jid0", "cid");
+            robotsCache.get(url, 300, "eid", "jid1", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(1);
+            assertThat(robotsCache.isCached(failed)).isTrue();
+            assertThat(robotsCache.isCached(open)).isTrue();
+
+            // Both answers are dropped when the host may be probed, not after the 300 second ttl
+            Thread.sleep(3000);
+            assertThat(robotsCache.isCached(failed)).isFalse();
+            assertThat(robotsCache.isCached(open)).isFalse();
+            robotsCache.get(url, 300, "eid", "jid0", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void probeCutShortByTheCallersDeadlineIsNotCountedAsAFailure() throws Exception {
+        AtomicInteger statusCode = new AtomicInteger(503);
+        AtomicLong delayMillis = new AtomicLong();
+        MockWebServer flakyServer = new MockWebServer();
+        flakyServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(statusCode.get())
+                        .setBody("user-agent: *\ndisallow: /forbidden\n")
+                        .setHeadersDelay(delayMillis.get(), TimeUnit.MILLISECONDS);
+            }
+        });
+        flakyServer.start();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+        try (RobotsCache robotsCache = new RobotsCache(flakyServer.getHostName(), flakyServer.getPort(), 2000)) {
+            robotsCache.setHostFailureTracking(100, 1, 500);
+            URL url = new URL("http://www.failing.com/page");
+            long host = AllowAllHosts.fingerprint("http", "www.failing.com", 80, "", false);
+            HostFailureTracker tracker = robotsCache.getFailureTracker();
+
+            robotsCache.get(url, 300, "eid", "jid0", "cid");
+            assertThat(flakyServer.takeRequest()).isNotNull();
+            assertThat(tracker.isOpen(host)).isTrue();
+            Thread.sleep(600);
+
+            // The probe's timeout is capped by the first caller's deadline. The second caller, joining it, sees
+            // it time out and probes again.
+            statusCode.set(200);
+            delayMillis.set(1000);
+            CancellableContext hasty = Context.current().withDeadlineAfter(200, TimeUnit.MILLISECONDS, scheduler);
+            CompletableFuture<RobotsTxt> timedOut = CompletableFuture.supplyAsync(
+                    () -> robotsCache.get(url, 300, "eid", "jid1", "cid"), hasty.fixedContextExecutor(scheduler));
+            assertThat(flakyServer.takeRequest(5, TimeUnit.SECONDS)).isNotNull();
+            CancellableContext patient = Context.current().withDeadlineAfter(10, TimeUnit.SECONDS, scheduler);
+            CompletableFuture<RobotsTxt> waiting = CompletableFuture.supplyAsync(
+                    () -> robotsCache.get(url, 300, "eid", "jid1", "cid"), patient.fixedContextExecutor(scheduler));
+
+            assertThatThrownBy(() -> timedOut.get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(StatusRuntimeException.class).hasMessageContaining("DEADLINE_EXCEEDED");
+            // Checked while the second probe is running, as its response resets the proxy's failures
+            Thread.sleep(200);
+            assertThat(robotsCache.getProxyPool().getEndpoints()[0].getConsecutiveFailures()).isZero();
+            assertThat(robotsCache.getProxyPool().getEndpoints()[0].ejectedUntil).isZero();
+            // Had the timeout counted as a failure, the host's backoff would have doubled and this not be fetched
+            assertThat(waiting.get(5, TimeUnit.SECONDS)).isNotSameAs(EMPTY_ROBOTS);
+            assertThat(flakyServer.getRequestCount()).isEqualTo(3);
+            assertThat(tracker.isOpen(host)).isFalse();
+        } finally {
+            scheduler.shutdown();
+            flakyServer.shutdown();
+        }
+    }
+
+    MockWebServer slowServer(AtomicLong delayMillis) throws IOException {
+        MockWebServer slowServer = new MockWebServer();
+        slowServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(200).setBody("user-agent: *\ndisallow: /forbidden\n")
+                        .setHeadersDelay(delayMillis.get(), TimeUnit.MILLISECONDS);
+            }
+        });
+        slowServer.start();
+        return slowServer;
+    }
+
+    @Test
+    public void indexFollowsCacheAndFindsEntriesByHostAndJob() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 4, CanonicalizationPolicy.STRICT)) {
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid1", "cid");
+            robotsCache.get(new URL("http://www.example1.com/other"), 300, "eid", "jid1", "cid");
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid2", "cid");
+            robotsCache.get(new URL("http://sub.www.example1.com/page"), 300, "eid", "jid1", "cid");
+            robotsCache.get(new URL("http://missing.com/page"), 300, "eid", "jid2", "cid");
+
+            CacheIndex index = robotsCache.getIndex();
+            assertThat(index.find("www.example1.com", "")).hasSize(2);
+            assertThat(index.find("www.example1.com", "jid1")).hasSize(1);
+            assertThat(index.find("*.example1.com", "")).hasSize(3);
+            assertThat(index.find("*.www.example1.com", "")).hasSize(1);
+            assertThat(index.find("*.example1.co", "")).isEmpty();
+            assertThat(index.find("", "jid2")).hasSize(2);
+            assertThat(index.find("*", "")).hasSize(4);
+
+            List<CacheIndex.HostStats> top = index.top(1, CacheIndex.HostStats.BY_HITS);
+            assertThat(top).hasSize(1);
+            assertThat(top.get(0).getHost()).isEqualTo("www.example1.com");
+            assertThat(top.get(0).getEntries()).isEqualTo(2);
+            assertThat(top.get(0).getHits()).isEqualTo(3);
+            assertThat(index.top(10, CacheIndex.HostStats.BY_SIZE).get(2).getSize()).isEqualTo(0);
+
+            robotsCache.shardFor(index.find("missing.com", "").get(0)).remove(index.find("missing.com", "").get(0));
+            assertThat(index.find("missing.com", "")).isEmpty();
+            assertThat(index.getHostCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void invalidateRemovesEntriesAndSharedCopies() throws Exception {
+        InMemoryRobotsStore store = new InMemoryRobotsStore();
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000)) {
+            robotsCache.setRobotsStore(store);
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            robotsCache.get(new URL("http://www.example2.com/page"), 300, "eid", "jid", "cid");
+            assertThat(store.size()).isEqualTo(2);
+
+            assertThat(robotsCache.invalidate(robotsCache.getIndex().find("www.example1.com", ""), false))
+                    .isEqualTo(1);
+            assertThat(robotsCache.getIndex().find("*", "")).hasSize(1);
+            assertThat(store.size()).isEqualTo(1);
+
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+
+            // Refreshing loads both hosts again in the background
+            robotsCache.invalidate(robotsCache.getIndex().find("", "jid"), true);
+            for (int i = 0; i < 5; i++) {
+                assertThat(webServer.takeRequest(5, TimeUnit.SECONDS)).isNotNull();
+            }
+            assertThat(robotsCache.getIndex().find("", "jid")).hasSize(2);
+        }
+    }
+
+    @Test
+    public void endedJobExecutionIsEvictedWithoutTouchingSharedStore() throws Exception {
+        InMemoryRobotsStore store = new InMemoryRobotsStore();
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 4, CanonicalizationPolicy.STRICT)) {
+            robotsCache.setRobotsStore(store);
+            for (int i = 0; i < 5; i++) {
+                robotsCache.get(new URL("http://www.example" + i + ".com/page"), 300, "eid", "jid1", "cid");
+            }
+            robotsCache.get(new URL("http://www.example0.com/page"), 300, "eid", "jid2", "cid");
+
+            assertThat(robotsCache.evictJobExecution("jid1")).isEqualTo(5);
+            assertThat(robotsCache.getIndex().find("", "jid1")).isEmpty();
+            assertThat(robotsCache.getIndex().find("*", "")).hasSize(1);
+            assertThat(store.size()).isEqualTo(5);
+            assertThat(robotsCache.evictJobExecution("jid1")).isEqualTo(0);
+            assertThatThrownBy(() -> robotsCache.evictJobExecution("")).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void hostsWithoutRobotsTxtAreKeptInAllowAllSet() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 2, CanonicalizationPolicy.STRICT)) {
+            robotsCache.setAllowAllHostsCapacity(1000);
+            assertThat(robotsCache.get(new URL("http://www.missing.com/page"), 300, "eid", "jid", "cid"))
+                    .isSameAs(EMPTY_ROBOTS);
+            assertThat(robotsCache.get(new URL("http://www.missing.com/other"), 300, "eid", "jid", "cid"))
+                    .isSameAs(EMPTY_ROBOTS);
+            robotsCache.get(new URL("http://www.example1.com/page"), 300, "eid", "jid", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(2);
+
+            // Only the host with robots.txt takes an entry in the cache
+            assertThat(robotsCache.getIndex().find("*", "")).hasSize(1);
+            CacheKey missing = robotsCache.createKey(new URL("http://www.missing.com/"), 300, "eid", "jid", "cid");
+            assertThat(robotsCache.peek(missing)).isNull();
+            assertThat(robotsCache.isCached(missing)).isTrue();
+            assertThat(robotsCache.prefetch(List.of(missing))).isEqualTo(0);
+
+            robotsCache.invalidate(List.of(missing), false);
+            assertThat(robotsCache.isCached(missing)).isFalse();
+            robotsCache.get(new URL("http://www.missing.com/page"), 300, "eid", "jid", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void hostsOnlyInAllowAllSetAreInvalidatedByNameAndJobExecution() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2000, 2, CanonicalizationPolicy.STRICT)) {
+            robotsCache.setAllowAllHostsCapacity(1000);
+            URL missing = new URL("http://www.missing.com/page");
+            URL other = new URL("http://www.other.com/page");
+            robotsCache.get(missing, 300, "eid", "jid1", "cid");
+            robotsCache.get(missing, 300, "eid", "jid2", "cid");
+            robotsCache.get(other, 300, "eid", "jid1", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+            assertThat(robotsCache.getIndex().find("www.missing.com", "")).isEmpty();
+
+            // The host published a robots.txt, invalidate it by name for all job executions
+            assertThat(robotsCache.forgetAllowAllHosts("www.missing.com", "")).isEqualTo(2);
+            robotsCache.get(missing, 300, "eid", "jid1", "cid");
+            robotsCache.get(missing, 300, "eid", "jid2", "cid");
+            robotsCache.get(other, 300, "eid", "jid1", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(5);
+
+            assertThat(robotsCache.evictJobExecution("jid1")).isEqualTo(2);
+            robotsCache.get(other, 300, "eid", "jid1", "cid");
+            robotsCache.get(missing, 300, "eid", "jid2", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(6);
+
+            // A pattern for the subdomains of a domain leaves other hosts alone
+            assertThat(robotsCache.forgetAllowAllHosts("*.missing.com", "")).isEqualTo(1);
+            robotsCache.get(missing, 300, "eid", "jid2", "cid");
+            robotsCache.get(other, 300, "eid", "jid1", "cid");
+            assertThat(webServer.getRequestCount()).isEqualTo(7);
+        }
+    }
+
+    @Test
+    public void fullCacheOnlyAdmitsHostsUsedMoreThanTheVictim() throws Exception {
+        try (RobotsCache robotsCache = new RobotsCache(baseUrl.host(), baseUrl.port(), 2)) {
+            robotsCache.setAdmission(true);
+            settledGet(robotsCache, new URL("http://www.example1.com/page"));
+            settledGet(robotsCache, new URL("http://www.example2.com/page"));
+
+            // A one-off host is served without being cached
+            RobotsTxt oneOff = settledGet(robotsCache, new URL("http://www.example3.com/page"));
+            assertThat(oneOff.isAllowed("bot", new URL("http://www.example3.com/forbidden")).getIsAllowed()).isFalse();
+            assertThat(robotsCache.getIndex().find("*", "")).hasSize(2);
+            settledGet(robotsCache, new URL("http://www.example1.com/page"));
+            settledGet(robotsCache, new URL("http://www.example2.com/page"));
+            assertThat(webServer.getRequestCount()).isEqualTo(3);
+
+            // The second miss admits it, evicting a host used twice
+            settledGet(robotsCache, new URL("http://www.example3.com/page"));
+            settledGet(robotsCache, new URL("http://www.example3.com/page"));
+            assertThat(webServer.getRequestCount()).isEqualTo(4);
+            assertThat(robotsCache.getIndex().find("www.example3.com", "")).hasSize(1);
+
+            // Two misses are no longer enough, since that is what the victim had
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            assertThat(webServer.getRequestCount()).isEqualTo(6);
+            assertThat(robotsCache.getIndex().find("www.example4.com", "")).isEmpty();
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            assertThat(webServer.getRequestCount()).isEqualTo(7);
+            assertThat(robotsCache.getIndex().find("www.example4.com", "")).hasSize(1);
+        }
+    }
+
+    /**
+     * Look up a url and wait until its load, if any, is done, so the next lookup starts a load of its own.
+     */
+    private static RobotsTxt settledGet(RobotsCache robotsCache, URL url) throws InterruptedException {
+        RobotsTxt robots = robotsCache.get(url, 300, "eid", "jid", "cid");
+        CacheKey key = robotsCache.createKey(url, 300, "eid", "jid", "cid");
+        for (int i = 0; i < 100 && robotsCache.isLoading(key); i++) {
+            Thread.sleep(10);
+        }
+        return robots;
+    }
+
+    @Test
+    public void concurrentMissesOfAHostNotAdmittedShareOneFetch() throws Exception {
+        AtomicLong delayMillis = new AtomicLong();
+        MockWebServer slowServer = slowServer(delayMillis);
+
+        try (RobotsCache robotsCache = new RobotsCache(slowServer.getHostName(), slowServer.getPort(), 2)) {
+            robotsCache.setAdmission(true);
+            // Fill the cache with popular hosts, and make one of them the victim of a host admitted after two misses
+            for (int i = 0; i < 10; i++) {
+                settledGet(robotsCache, new URL("http://www.example1.com/page"));
+                settledGet(robotsCache, new URL("http://www.example2.com/page"));
+            }
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            settledGet(robotsCache, new URL("http://www.example4.com/page"));
+            assertThat(robotsCache.getShardEntries(0)).isEqualTo(2);
+            assertThat(slowServer.getRequestCount()).isEqualTo(4);
+
+            delayMillis.set(300);
+            URL url = new URL("http://www.example3.com/page");
+            List<CompletableFuture<RobotsTxt>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> robotsCache.get(url, 300, "eid", "jid", "cid")));
+            }
+            for (CompletableFuture<RobotsTxt> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isNotSameAs(EMPTY_ROBOTS);
+            }
+            assertThat(slowServer.getRequestCount()).isEqualTo(5);
+            assertThat(robotsCache.getIndex().find("www.example3.com", "")).isEmpty();
+            assertThat(robotsCache.getShardEntries(0)).isEqualTo(2);
+
+            robotsCache.invalidate(robotsCache.getIndex().find("*", ""), false);
+            assertThat(robotsCache.getShardEntries(0)).isZero();
+        } finally {
+            slowServer.shutdown();
+        }
+    }
+
+    @Test
+    public void shardIndexIsStableAndSpread() {
+        int[] counts = new int[8];
+        for (int i = 0; i < 8000; i++) {
+            String host = "www.host" + i + ".com";
+            int shard = RobotsCache.shardIndex(host, counts.length);
+            assertThat(RobotsCache.shardIndex(host, counts.length)).isEqualTo(shard);
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertThat(count).isBetween(800, 1200);
+        }
+        assertThat(RobotsCache.shardIndex("www.example.com", 1)).isEqualTo(0);
+    }
+}
@@ -16,13 +16,24 @@
 
 package no.nb.nna.veidemann.robotsservice;
 
+import io.grpc.ManagedChannel;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.opentracing.Scope;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
 import no.nb.nna.veidemann.api.config.v1.ConfigObject;
 import no.nb.nna.veidemann.api.config.v1.ConfigRef;
 import no.nb.nna.veidemann.api.config.v1.Kind;
 import no.nb.nna.veidemann.api.config.v1.PolitenessConfig.RobotsPolicy;
 import no.nb.nna.veidemann.api.frontier.v1.QueuedUri;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedReply;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.IsAllowedRequest;
+import no.nb.nna.veidemann.api.robotsevaluator.v1.RobotsEvaluatorGrpc;
 import okhttp3.HttpUrl;
 import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
@@ -32,6 +43,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RobotsServiceTest {
@@ -56,6 +69,12 @@ public class RobotsServiceTest {
                         return new MockResponse().setResponseCode(404);
                     case "GET http://www.example2.com/robots.txt HTTP/1.1":
                         return new MockResponse().setResponseCode(200).setBody("user-agent : userAgent\ndisallow: /forbidden\n");
+                    case "GET http://www.sitemaps.com/robots.txt HTTP/1.1":
+                        StringBuilder body = new StringBuilder("user-agent: *\ndisallow: /forbidden\n");
+                        for (int i = 0; i < 100; i++) {
+                            body.append("sitemap: http://www.sitemaps.com/sitemap").append(i).append(".xml\n");
+                        }
+                        return new MockResponse().setResponseCode(200).setBody(body.toString());
                 }
                 return new MockResponse().setResponseCode(404);
             }
@@ -262,4 +281,178 @@ public class RobotsServiceTest {
 
         assertThat(webServer.getRequestCount()).isEqualTo(0);
     }
+
+    @Test
+    public void isAllowed_returnsNextFetchTimeWhenTracking() throws Exception {
+        service.getRobotsService().setPolitenessTracker(new PolitenessTracker(1024));
+        ManagedChannel channel = InProcessChannelBuilder.forName("Robots service").build();
+        RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+
+        ConfigObject.Builder politeness = ConfigObject.newBuilder().setId("politeness1");
+        politeness.getPolitenessConfigBuilder()
+                .setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS)
+                .setMinTimeBetweenPageLoadMs(2000);
+        IsAllowedRequest request = IsAllowedRequest.newBuilder()
+                .setUri("http://www.example2.com/page")
+                .setJobExecutionId("jid")
+                .setExecutionId("eid")
+                .setUserAgent("userAgent")
+                .setPoliteness(politeness)
+                .setCollectionRef(collectionRef)
+                .build();
+
+        long first = nextFetchTime(stub.isAllowed(request));
+        long second = nextFetchTime(stub.isAllowed(request));
+        assertThat(second - first).isGreaterThanOrEqualTo(2000);
+
+        IsAllowedReply forbidden = stub.isAllowed(request.toBuilder().setUri("http://www.example2.com/forbidden").build());
+        assertThat(forbidden.getIsAllowed()).isFalse();
+        assertThat(forbidden.getOtherFieldsList())
+                .noneMatch(f -> f.getName().equals(PolitenessTracker.NEXT_FETCH_FIELD));
+        channel.shutdownNow();
+    }
+
+    @Test
+    public void isAllowed_sendsLargeRepliesFromKeptBytes() throws Exception {
+        ManagedChannel channel = InProcessChannelBuilder.forName("Robots service").build();
+        RobotsEvaluatorGrpc.RobotsEvaluatorBlockingStub stub = RobotsEvaluatorGrpc.newBlockingStub(channel);
+
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+        IsAllowedRequest request = IsAllowedRequest.newBuilder()
+                .setUri("http://www.sitemaps.com/page")
+                .setJobExecutionId("jid")
+                .setExecutionId("eid")
+                .setUserAgent("userAgent")
+                .setPoliteness(politeness)
+                .setCollectionRef(collectionRef)
+                .build();
+
+        IsAllowedReply first = stub.isAllowed(request);
+        assertThat(first.getIsAllowed()).isTrue();
+        assertThat(first.getSitemapCount()).isEqualTo(100);
+        assertThat(service.getReplyCache().size()).isEqualTo(1);
+
+        assertThat(stub.isAllowed(request)).isEqualTo(first);
+        assertThat(service.getReplyCache().size()).isEqualTo(1);
+
+        IsAllowedReply forbidden = stub.isAllowed(request.toBuilder().setUri("http://www.sitemaps.com/forbidden").build());
+        assertThat(forbidden.getIsAllowed()).isFalse();
+        assertThat(forbidden.getSitemapList()).isEqualTo(first.getSitemapList());
+        assertThat(service.getReplyCache().size()).isEqualTo(2);
+
+        // Small replies are serialized for every call
+        stub.isAllowed(request.toBuilder().setUri("http://www.example2.com/page").build());
+        assertThat(service.getReplyCache().size()).isEqualTo(2);
+        channel.shutdownNow();
+    }
+
+    @Test
+    public void health_reportsServingOnlyWhenReady() throws Exception {
+        ManagedChannel channel = InProcessChannelBuilder.forName("Robots service").build();
+        HealthGrpc.HealthBlockingStub health = HealthGrpc.newBlockingStub(channel);
+        HealthCheckRequest server = HealthCheckRequest.getDefaultInstance();
+        HealthCheckRequest evaluator = HealthCheckRequest.newBuilder()
+                .setService(RobotsEvaluatorGrpc.SERVICE_NAME).build();
+
+        assertThat(health.check(server).getStatus()).isEqualTo(ServingStatus.NOT_SERVING);
+        assertThat(health.check(evaluator).getStatus()).isEqualTo(ServingStatus.NOT_SERVING);
+
+        service.setServing(true);
+        assertThat(health.check(server).getStatus()).isEqualTo(ServingStatus.SERVING);
+        assertThat(health.check(evaluator).getStatus()).isEqualTo(ServingStatus.SERVING);
+        channel.shutdownNow();
+    }
+
+    @Test
+    public void isAllowed_tracesStepsOfSampledRequests() throws Exception {
+        MockTracer tracer = new MockTracer();
+        robotsCache.setTracer(tracer);
+        RobotsService robotsService = service.getRobotsService();
+        robotsService.setTracer(tracer);
+        robotsService.setTraceSampleRate(1.0);
+
+        ConfigObject.Builder politeness = ConfigObject.newBuilder();
+        politeness.getPolitenessConfigBuilder().setRobotsPolicy(RobotsPolicy.OBEY_ROBOTS);
+        IsAllowedRequest request = IsAllowedRequest.newBuilder()
+                .setUri("http://www.example2.com/forbidden")
+                .setJobExecutionId("jid")
+                .setExecutionId("eid")
+                .setUserAgent("userAgent")
+                .setPoliteness(politeness)
+                .setCollectionRef(collectionRef)
+                .build();
+
+        // A miss is traced down to the fetch and parse
+        MockSpan root = tracer.buildSpan("request").start();
+        try (Scope ignored = tracer.activateSpan(root)) {
+            assertThat(isAllowed(robotsService, request).getIsAllowed()).isFalse();
+        }
+        MockSpan lookup = finishedSpan(tracer, "robots.cache.get");
+        assertThat(lookup.parentId()).isEqualTo(root.context().spanId());
+        assertThat(lookup.tags()).containsEntry(RobotsCache.CACHE_HIT_TAG, false);
+        MockSpan fetch = finishedSpan(tracer, "robots.fetch");
+        assertThat(fetch.parentId()).isEqualTo(lookup.context().spanId());
+        assertThat(fetch.tags()).containsEntry("http.status_code", 200).containsKey("robots.bytes");
+        assertThat(finishedSpan(tracer, "robots.parse").tags())
+                .containsEntry("robots.groups", 1)
+                .containsEntry("robots.directives", 1);
+        assertThat(finishedSpan(tracer, "robots.match").tags()).containsEntry("robots.allowed", false);
+
+        // A hit
+        tracer.reset();
+        try (Scope ignored = tracer.activateSpan(root)) {
+            isAllowed(robotsService, request);
+        }
+        assertThat(finishedSpan(tracer, "robots.cache.get").tags()).containsEntry(RobotsCache.CACHE_HIT_TAG, true);
+        assertThat(tracer.finishedSpans()).extracting(MockSpan::operationName)
+                .containsExactlyInAnyOrder("robots.cache.get", "robots.match");
+
+        // Without sampling only loads are traced, on the request's span
+        tracer.reset();
+        robotsService.setTraceSampleRate(0);
+        try (Scope ignored = tracer.activateSpan(root)) {
+            isAllowed(robotsService, request.toBuilder().setUri("http://www.example.com/page").build());
+            isAllowed(robotsService, request);
+        }
+        assertThat(tracer.finishedSpans()).extracting(MockSpan::operationName).containsExactly("robots.fetch");
+        assertThat(finishedSpan(tracer, "robots.fetch").parentId()).isEqualTo(root.context().spanId());
+        assertThat(root.tags()).containsEntry(RobotsCache.CACHE_HIT_TAG, false);
+    }
+
+    private static IsAllowedReply isAllowed(RobotsService robotsService, IsAllowedRequest request) {
+        AtomicReference<IsAllowedReply> reply = new AtomicReference<>();
+        robotsService.isAllowed(request, new StreamObserver<IsAllowedReply>() {
+            @Override
+            public void onNext(IsAllowedReply value) {
+                reply.set(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return reply.get();
+    }
+
+    private static MockSpan finishedSpan(MockTracer tracer, String operationName) {
+        return tracer.finishedSpans().stream()
+                .filter(s -> s.operationName().equals(operationName))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No span " + operationName));
+    }
+
+    private static long nextFetchTime(IsAllowedReply reply) {
+        assertThat(reply.getIsAllowed()).isTrue();
+        return reply.getOtherFieldsList().stream()
+                .filter(f -> f.getName().equals(PolitenessTracker.NEXT_FETCH_FIELD))
+                .mapToLong(f -> Long.parseLong(f.getValue()))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+    }
 }
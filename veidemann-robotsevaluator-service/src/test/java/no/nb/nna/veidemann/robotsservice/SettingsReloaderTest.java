@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SettingsReloaderTest {
+
+    static final String BASE = "proxyHost=localhost\n"
+            + "proxyPort=7700\n"
+            + "proxies=\"\"\n"
+            + "fetchHedgePercentile=0\n"
+            + "apiPort=50053\n"
+            + "cacheCapacityNumEntries=100\n"
+            + "defaultTtlSeconds=300\n"
+            + "fetchTimeoutMs=30000\n"
+            + "fetchMaxConcurrency=64\n"
+            + "parseThreads=1\n"
+            + "prefetchQueueCapacity=10000\n"
+            + "prefetchRatePerSecond=50\n"
+            + "prefetchMaxInFlight=16\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    RobotsCache cache;
+
+    SettingsReloader reloader;
+
+    Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        Config base = ConfigFactory.parseString(BASE).resolve();
+        cache = new RobotsCache("localhost", 7700, 100, 2, CanonicalizationPolicy.STRICT);
+        file = temporaryFolder.getRoot().toPath().resolve("runtime.conf");
+        reloader = new SettingsReloader(file, base, cache, null);
+    }
+
+    @After
+    public void tearDown() {
+        reloader.close();
+        cache.close();
+    }
+
+    @Test
+    public void reload_appliesChangedSettings() throws Exception {
+        Files.write(file, ("cacheCapacityNumEntries=400\n"
+                + "defaultTtlSeconds=60\n"
+                + "proxyPort=7701\n"
+                + "apiPort=1\n").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(reloader.reload()).containsExactly("cacheCapacityNumEntries", "defaultTtlSeconds", "proxy");
+        assertThat(cache.getCapacity()).isEqualTo(400L);
+        assertThat(cache.getDefaultTtlSeconds()).isEqualTo(60);
+        assertThat(reloader.getApplied("proxy")).isEqualTo("localhost:7701");
+
+        // Reading the same file again changes nothing
+        assertThat(reloader.reload()).isEmpty();
+    }
+
+    @Test
+    public void reload_keepsOldValueOfInvalidSettings() throws Exception {
+        Files.write(file, ("defaultTtlSeconds=0\n"
+                + "fetchMaxConcurrency=many\n"
+                + "prefetchRatePerSecond=10\n").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(reloader.reload()).containsExactly("prefetchRatePerSecond");
+        assertThat(cache.getDefaultTtlSeconds()).isEqualTo(300);
+        assertThat(reloader.getApplied("defaultTtlSeconds")).isEqualTo(300);
+        assertThat(reloader.getApplied("fetchMaxConcurrency")).isEqualTo(64);
+    }
+
+    @Test
+    public void reload_revertsToStartSettingsWhenFileIsRemoved() throws Exception {
+        Files.write(file, "defaultTtlSeconds=60\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(reloader.reload()).containsExactly("defaultTtlSeconds");
+
+        Files.delete(file);
+        assertThat(reloader.reload()).containsExactly("defaultTtlSeconds");
+        assertThat(cache.getDefaultTtlSeconds()).isEqualTo(300);
+    }
+
+    @Test
+    public void reload_keepsSettingsWhenFileIsUnparsable() throws Exception {
+        Files.write(file, "defaultTtlSeconds=60\n".getBytes(StandardCharsets.UTF_8));
+        reloader.reload();
+
+        Files.write(file, "defaultTtlSeconds={\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(reloader.reload()).isEmpty();
+        assertThat(cache.getDefaultTtlSeconds()).isEqualTo(60);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 National Library of Norway.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package no.nb.nna.veidemann.robotsservice;
+
+import no.nb.nna.veidemann.robotsparser.RobotsTxt;
+import no.nb.nna.veidemann.robotsparser.RobotsTxtParser;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WarmupTest {
+
+    @Test
+    public void bundledCorpusParses() {
+        List<String> corpus = Warmup.loadCorpus();
+        assertThat(corpus).hasSameSizeAs(Warmup.CORPUS);
+
+        RobotsTxtParser parser = new RobotsTxtParser();
+        for (int i = 0; i < corpus.size(); i++) {
+            RobotsTxt robots = parser.parse(corpus.get(i), Warmup.CORPUS.get(i));
+            assertThat(robots.getDirectiveGroups()).as(Warmup.CORPUS.get(i)).isNotEmpty();
+        }
+    }
+
+    @Test
+    public void runsTheIterationsAskedFor() {
+        Warmup warmup = new Warmup(false);
+        long perIteration = Warmup.CORPUS.size() * Warmup.USER_AGENTS.size() * Warmup.PATHS.size() * 2;
+
+        assertThat(warmup.run(0, 10_000)).isZero();
+        assertThat(warmup.run(3, 10_000)).isEqualTo(3 * perIteration);
+        assertThat(warmup.run(Integer.MAX_VALUE, 0)).isZero();
+    }
+
+    @Test
+    public void requestsGoThroughTheApiWithoutFetching() throws Exception {
+        MockWebServer proxy = new MockWebServer();
+        proxy.start();
+
+        try (RobotsCache robotsCache = new RobotsCache(proxy.getHostName(), proxy.getPort(), 2000)) {
+            RobotsService robotsService = new RobotsService(robotsCache);
+            SerializedReplyCache replyCache = new SerializedReplyCache();
+            robotsService.setSerializedReplyCache(replyCache);
+            Warmup warmup = new Warmup(false);
+            long perIteration = Warmup.CORPUS.size() * 2 * Warmup.USER_AGENTS.size() * Warmup.PATHS.size();
+
+            assertThat(warmup.runRequests(robotsCache, replyCache.bind(robotsService), 0, 10_000)).isZero();
+            assertThat(warmup.runRequests(robotsCache, replyCache.bind(robotsService), 2, 10_000))
+                    .isEqualTo(2 * perIteration);
+
+            // The corpus was served from the cache and is gone from it afterwards
+            assertThat(proxy.getRequestCount()).isZero();
+            assertThat(robotsCache.getIndex().find("", Warmup.JOB_EXECUTION_ID)).isEmpty();
+        } finally {
+            proxy.shutdown();
+        }
+    }
+}